@@ -0,0 +1,26 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * One measured operation. setUp() runs once before warm up, runOnce() is timed in batches.
+ */
+
+abstract class Benchmark {
+
+    //Results are folded in here so the JIT can't drop the work being measured
+    static volatile long sink;
+
+    private final String name;
+
+    Benchmark(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void setUp() {
+    }
+
+    abstract void runOnce();
+}
@@ -0,0 +1,152 @@
+package com.alittlelost.soundaffect;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs every benchmark, reports time and allocation per operation, and compares them with a stored baseline.
+ * Usage: BenchmarkRunner baseline.properties [--record]
+ * Exits with 1 if anything got slower than the time tolerance allows or allocates more than it used to.
+ */
+
+public class BenchmarkRunner {
+
+    private static final int WARM_UP_OPERATIONS = 200000;
+    private static final int ROUNDS = 7;
+    private static final int OPERATIONS_PER_ROUND = 100000;
+
+    //Timings vary between runs and machines far more than allocations do, only flag a time that doubled
+    private static final double TIME_TOLERANCE = Double.parseDouble(System.getProperty("benchmark.timeTolerance", "1.0"));
+    private static final double ALLOCATION_SLACK_BYTES = 8;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: BenchmarkRunner <baseline.properties> [--record]");
+            System.exit(2);
+        }
+
+        File baselineFile = new File(args[0]);
+        boolean record = args.length > 1 && args[1].equals("--record");
+        Properties baseline = load(baselineFile);
+        Properties results = new Properties();
+        boolean regressed = false;
+
+        System.out.println(String.format("%-24s %12s %12s %12s %12s", "benchmark", "ns/op", "baseline", "bytes/op",
+                "baseline"));
+
+        List<Benchmark> benchmarks = EngineBenchmarks.all();
+        for (Benchmark benchmark : benchmarks) {
+            Result result = measure(benchmark);
+            results.setProperty(benchmark.getName() + ".nsPerOp", String.format("%.1f", result.nanosPerOperation));
+            results.setProperty(benchmark.getName() + ".bytesPerOp", String.format("%.1f", result.bytesPerOperation));
+
+            double baselineNanos = read(baseline, benchmark.getName() + ".nsPerOp");
+            double baselineBytes = read(baseline, benchmark.getName() + ".bytesPerOp");
+            boolean slower = baselineNanos >= 0 && result.nanosPerOperation > baselineNanos * (1 + TIME_TOLERANCE);
+            boolean allocates = baselineBytes >= 0 && result.bytesPerOperation >= 0
+                    && result.bytesPerOperation > baselineBytes + ALLOCATION_SLACK_BYTES;
+
+            System.out.println(String.format("%-24s %12.1f %12s %12.1f %12s%s", benchmark.getName(),
+                    result.nanosPerOperation, format(baselineNanos), result.bytesPerOperation, format(baselineBytes),
+                    slower || allocates ? "  REGRESSED" : ""));
+            regressed |= slower || allocates;
+        }
+
+        if (record) {
+            save(results, baselineFile);
+            System.out.println("Baseline written to " + baselineFile);
+            return;
+        }
+
+        if (regressed) {
+            System.out.println("Benchmarks regressed against " + baselineFile);
+            System.exit(1);
+        }
+    }
+
+    private static class Result {
+        final double nanosPerOperation;
+        //-1 if the JVM can't count allocated bytes
+        final double bytesPerOperation;
+
+        Result(double nanosPerOperation, double bytesPerOperation) {
+            this.nanosPerOperation = nanosPerOperation;
+            this.bytesPerOperation = bytesPerOperation;
+        }
+    }
+
+    //Fastest and least allocating of several rounds, the minimum is far steadier than the mean between runs
+    private static Result measure(Benchmark benchmark) {
+        benchmark.setUp();
+        for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+            benchmark.runOnce();
+        }
+
+        double nanos = Double.MAX_VALUE;
+        double bytes = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+                benchmark.runOnce();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes();
+
+            nanos = Math.min(nanos, (double) elapsed / OPERATIONS_PER_ROUND);
+            if (allocatedBefore >= 0) {
+                bytes = Math.min(bytes, (double) (allocatedAfter - allocatedBefore) / OPERATIONS_PER_ROUND);
+            }
+        }
+
+        return new Result(nanos, bytes == Double.MAX_VALUE ? -1 : bytes);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static double read(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        return value != null ? Double.parseDouble(value) : -1;
+    }
+
+    private static String format(double value) {
+        return value >= 0 ? String.format("%.1f", value) : "-";
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (!file.exists()) {
+            return properties;
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static void save(Properties properties, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "SoundAffect benchmark baseline, rewrite with ./gradlew :benchmark:run -Precord");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.alittlelost.soundaffect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Engine hot paths that run on a plain JVM: metrics, queue navigation, the virtual clock,
+ * players going through load, play, seek and pause on SimulatedPlayerBackend, the mixer,
+ * and the seek bar arithmetic and time label formatting SoundAffect does every frame.
+ */
+
+class EngineBenchmarks {
+
+    private static final String[] SOURCES = {
+            "/cache/track0.audio", "/cache/track1.audio", "/cache/track2.audio",
+            "/cache/track3.audio", "/cache/track4.audio"
+    };
+
+    static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        benchmarks.add(new Benchmark("histogramRecord") {
+            private final LatencyHistogram histogram = new LatencyHistogram("benchmark");
+            private int value = 0;
+
+            @Override
+            void runOnce() {
+                value = (value + 37) % 5000;
+                histogram.record(value);
+            }
+        });
+
+        benchmarks.add(new Benchmark("histogramPercentile") {
+            private final LatencyHistogram histogram = new LatencyHistogram("benchmark");
+
+            @Override
+            void setUp() {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record((i * 37) % 5000);
+                }
+            }
+
+            @Override
+            void runOnce() {
+                sink += histogram.getPercentile(99);
+            }
+        });
+
+        benchmarks.add(new Benchmark("queueSkip") {
+            private final PlaybackQueue queue = new PlaybackQueue();
+
+            @Override
+            void setUp() {
+                for (int i = 0; i < 50; i++) {
+                    queue.add("https://example.com/track" + i + ".mp3");
+                }
+                queue.setRepeatMode(RepeatMode.ALL);
+            }
+
+            @Override
+            void runOnce() {
+                queue.setCurrentIndex(queue.getSkipIndex());
+                sink += queue.getNextIndex() + queue.getPreviousIndex();
+            }
+        });
+
+        benchmarks.add(new Benchmark("clockScheduleAdvance") {
+            private final VirtualClock clock = new VirtualClock();
+            private final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    sink++;
+                }
+            };
+
+            @Override
+            void runOnce() {
+                clock.schedule(10, task);
+                clock.advance(10);
+            }
+        });
+
+        benchmarks.add(new Benchmark("playerLoadPlaySeek") {
+            private final VirtualClock clock = new VirtualClock();
+            private final SimulatedPlayerBackend.Factory factory = new SimulatedPlayerBackend.Factory(clock);
+            private PlayerBackend player;
+            private int round = 0;
+
+            @Override
+            void setUp() {
+                player = factory.create();
+            }
+
+            @Override
+            void runOnce() {
+                player.reset();
+                try {
+                    player.setDataSource(SOURCES[round++ % SOURCES.length]);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                player.prepareAsync();
+                clock.advanceToNextTask();
+                player.start();
+                clock.advance(500);
+                player.seekTo(60000);
+                clock.advanceToNextTask();
+                sink += player.getCurrentPosition();
+                player.pause();
+            }
+        });
+
+        benchmarks.add(new Benchmark("poolAcquireRecycle") {
+            private final VirtualClock clock = new VirtualClock();
+            private final PlayerPool pool = new PlayerPool(new SimulatedPlayerBackend.Factory(clock));
+            private int round = 0;
+
+            @Override
+            void runOnce() {
+                String source = SOURCES[round++ % SOURCES.length];
+                PlayerPool.Entry entry = pool.acquire(source);
+                if (!entry.isLoaded()) {
+                    try {
+                        entry.player.setDataSource(source);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    pool.register(entry, source);
+                    entry.player.prepareAsync();
+                    clock.advanceToNextTask();
+                    pool.markPrepared(entry);
+                }
+                pool.recycle(entry);
+            }
+        });
+
+        benchmarks.add(new Benchmark("mixerMix") {
+            //One mix of four stereo channels, two of them ramping, refilled as a decoder would
+            private static final int FRAMES = 256;
+            private final Mixer mixer = new Mixer(2, FRAMES);
+            private final MixerChannel[] channels = new MixerChannel[4];
+            private final short[] block = new short[FRAMES * 2];
+            private final short[] out = new short[FRAMES * 2];
+            private boolean rising = true;
+
+            @Override
+            void setUp() {
+                for (int i = 0; i < block.length; i++) {
+                    block[i] = (short) ((i * 131) % 20000 - 10000);
+                }
+                for (int i = 0; i < channels.length; i++) {
+                    channels[i] = new MixerChannel(FRAMES * 2 * 4, 0.5f);
+                    mixer.add(channels[i]);
+                }
+            }
+
+            @Override
+            void runOnce() {
+                for (MixerChannel channel : channels) {
+                    channel.ring.write(block, 0, block.length);
+                }
+                channels[0].rampTo(rising ? 1 : 0, FRAMES * 4, false);
+                channels[1].rampTo(rising ? 0 : 1, FRAMES * 4, false);
+                rising = !rising;
+                mixer.mix(out, FRAMES);
+                sink += out[FRAMES];
+            }
+        });
+
+        benchmarks.add(new Benchmark("timeTextFormat") {
+            private final char[] chars = new char[TimeText.MAX_LENGTH];
+            private long seconds = 0;
+
+            @Override
+            void runOnce() {
+                //Wraps after 100 hours so the minutes keep changing width
+                seconds = (seconds + 1) % 360000;
+                int start = TimeText.format(seconds, chars);
+                sink += start + chars[start];
+            }
+        });
+
+        benchmarks.add(new Benchmark("seekBarFrame") {
+            //What a frame does to the seek bar: old indicator bounds, move it, new bounds, the time label's bounds
+            private static final int DURATION = 3 * 60 * 60 * 1000;
+            private final SeekBarGeometry geometry = new SeekBarGeometry(10, 10, 100, 15.0f);
+            private final int[] bounds = new int[4];
+            private int position = 0;
+            private boolean dot = false;
+
+            @Override
+            void setUp() {
+                geometry.setSeekBar(16, 200, 1064, 210);
+            }
+
+            @Override
+            void runOnce() {
+                position = (position + 16) % DURATION;
+                dot = !dot;
+                geometry.getIndicatorBounds(dot, bounds);
+                int left = bounds[0];
+                geometry.setNotchX(geometry.positionToX(position, DURATION));
+                geometry.getNotchBounds(bounds);
+                geometry.getNotchTouchBounds(bounds);
+                geometry.getIndicatorBounds(dot, bounds);
+                int right = bounds[2];
+                geometry.getTimeLabelBounds(70, 180, -30, 8, bounds);
+                sink += left + right + bounds[1];
+            }
+        });
+
+        benchmarks.add(new Benchmark("seekBarScrub") {
+            //A touch move: the finger's x clamped to the bar, turned into a position, the indicator following it
+            private static final int DURATION = 3 * 60 * 60 * 1000;
+            private final SeekBarGeometry geometry = new SeekBarGeometry(10, 10, 100, 15.0f);
+            private final int[] bounds = new int[4];
+            private float x = 0;
+
+            @Override
+            void setUp() {
+                geometry.setSeekBar(16, 200, 1064, 210);
+            }
+
+            @Override
+            void runOnce() {
+                x = x > 1100 ? -20 : x + 3.7f;
+                float clamped = geometry.clampX(x);
+                sink += geometry.xToPosition(clamped, DURATION);
+                geometry.setNotchX(clamped);
+                geometry.getNotchBounds(bounds);
+                geometry.getNotchTouchBounds(bounds);
+                sink += bounds[0];
+            }
+        });
+
+        return benchmarks;
+    }
+}
@@ -0,0 +1,516 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded disk cache for audio loaded from URLs, kept under the app cache dir.
+ * Tracks are written through while they are first played and served from disk afterwards.
+ * Recency is persisted through each file's last modified time so LRU order survives restarts.
+ */
+
+class AudioCache implements CacheDownload.Listener {
+
+    private static final String TAG = "AudioCache";
+    private static final String DIRECTORY_NAME = "soundaffect";
+    private static final String CHUNK_DIRECTORY_NAME = "soundaffect-chunks";
+    private static final String COMPLETE_SUFFIX = ".audio";
+    private static final String PART_SUFFIX = ".part";
+    private static final String SEEK_INDEX_SUFFIX = ".seek";
+
+    static final long DEFAULT_MAX_BYTES = 50 * 1024 * 1024;
+
+    private final File directory;
+
+    //Trimming and loading clips into memory
+    private final ExecutorService executor;
+
+    //Downloads of tracks being played, each started straight away so a player never waits on a queue
+    private final ExecutorService playbackExecutor;
+
+    //Seek indexing reads whole tracks, so it gets a low priority thread of its own that never delays the above
+    private final ExecutorService indexExecutor;
+
+    private final ClipMemoryCache memoryCache;
+
+    //Range-aware alternative to whole-file downloads, started on first use while enabled
+    private final ChunkStore chunkStore;
+    private final StreamingProxy streamingProxy;
+    private boolean streamingProxyEnabled = false;
+    private final Map<String, CacheDownload> activeDownloads = new HashMap<>();
+
+    //Run once the whole-track download of their url stops, for work that needs the complete file
+    private final Map<String, List<Runnable>> finishCallbacks = new HashMap<>();
+
+    //Track lengths learned from earlier downloads, lets playback of a prefetched track start without waiting on the network
+    private final Map<String, Long> knownLengths = new HashMap<>();
+
+    //Seek indexes of recently sought tracks, and tracks found not to need one or being indexed right now
+    private final LruCache<String, SeekIndex> seekIndexes = new LruCache<>(4);
+    private final Set<String> unindexedUrls = new HashSet<>();
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private CacheEvictionPolicy evictionPolicy = CacheEvictionPolicy.LEAST_RECENTLY_USED;
+
+    AudioCache(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+        playbackExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        ThreadPoolExecutor indexThreadPoolExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        indexThreadPoolExecutor.allowCoreThreadTimeOut(true);
+        indexExecutor = indexThreadPoolExecutor;
+        memoryCache = new ClipMemoryCache(ClipMemoryCache.DEFAULT_MAX_BYTES, executor);
+        chunkStore = new ChunkStore(new File(context.getCacheDir(), CHUNK_DIRECTORY_NAME));
+        streamingProxy = new StreamingProxy(chunkStore);
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimInBackground();
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized void setEvictionPolicy(CacheEvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        trimInBackground();
+    }
+
+    synchronized CacheEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return the fully cached file for this url, or null if it has not been downloaded yet
+     */
+    synchronized File get(String url) {
+        File file = completeFileFor(url);
+        if (!file.exists()) {
+            return null;
+        }
+
+        //Keep recency on disk for LRU eviction
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * @return the encoded bytes of a short, fully cached clip if they are in memory. On a miss
+     * a clip that is on disk is read into memory in the background for next time
+     */
+    byte[] getInMemory(String url) {
+        if (!ClipMemoryCache.isSupported()) {
+            return null;
+        }
+
+        byte[] clip = memoryCache.get(url);
+        if (clip == null) {
+            File file = completeFileFor(url);
+            if (file.exists()) {
+                memoryCache.loadInBackground(url, file);
+            }
+        }
+        return clip;
+    }
+
+    /**
+     * @return the frame index of a fully cached VBR track, or null if it has none (yet). A cached track
+     * without one is indexed in the background for next time. An index written by an earlier run is read
+     * from disk without holding the cache's lock, so it never holds up downloads or trims
+     */
+    SeekIndex getSeekIndex(String url) {
+        File file;
+        File indexFile;
+        synchronized (this) {
+            SeekIndex index = seekIndexes.get(url);
+            if (index != null || unindexedUrls.contains(url)) {
+                return index;
+            }
+
+            file = completeFileFor(url);
+            if (!file.exists()) {
+                return null;
+            }
+
+            indexFile = seekIndexFileFor(url);
+            if (!indexFile.exists()) {
+                indexInBackground(url, file);
+                return null;
+            }
+        }
+
+        SeekIndex index = null;
+        try {
+            index = SeekIndex.read(indexFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read seek index: " + e);
+        }
+
+        synchronized (this) {
+            if (index != null) {
+                seekIndexes.put(url, index);
+                return index;
+            }
+
+            //Unreadable or from an older version, or trimmed away with its track while it was read
+            indexFile.delete();
+            if (file.exists() && !unindexedUrls.contains(url)) {
+                indexInBackground(url, file);
+            }
+            return null;
+        }
+    }
+
+    //One pass over the frame headers, written next to the track so it is only ever done once
+    private void indexInBackground(final String url, final File file) {
+        unindexedUrls.add(url);
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                SeekIndex index = null;
+                try {
+                    index = SeekIndex.build(file);
+                    if (index != null) {
+                        index.write(seekIndexFileFor(url));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to index " + url + ": " + e);
+                }
+
+                synchronized (AudioCache.this) {
+                    if (index != null) {
+                        unindexedUrls.remove(url);
+                        seekIndexes.put(url, index);
+                    }
+                }
+            }
+        });
+    }
+
+    void setMemoryMaxBytes(int maxBytes) {
+        memoryCache.setMaxBytes(maxBytes);
+    }
+
+    //Drops the memory tier only, clips still play from disk
+    void clearMemory() {
+        memoryCache.clear();
+    }
+
+    ClipCacheStats getMemoryStats() {
+        return memoryCache.getStats();
+    }
+
+    /**
+     * Streams tracks that aren't fully cached through the local StreamingProxy instead of downloading
+     * them whole, so seeks fetch only the ranges they need and dropped connections resume.
+     */
+    synchronized void setStreamingProxyEnabled(boolean enabled) {
+        streamingProxyEnabled = enabled;
+        if (!enabled) {
+            streamingProxy.stop();
+        }
+    }
+
+    /**
+     * @return a loopback url streaming url through the proxy, or null if the proxy is disabled or can't start.
+     * Where players can't read a download as it is written the proxy is used even when disabled, it stores
+     * what it streams instead of a second download fetching the same bytes alongside the player
+     */
+    synchronized String getProxyUrl(String url) {
+        if (!streamingProxyEnabled && canReadWhileDownloading()) {
+            return null;
+        }
+
+        try {
+            streamingProxy.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start streaming proxy: " + e);
+            return null;
+        }
+        return streamingProxy.getProxyUrl(url);
+    }
+
+    void setStreamingProxyMaxBytes(long maxBytes) {
+        chunkStore.setMaxBytes(maxBytes);
+    }
+
+    //Stops anything still serving players, the service is going away
+    synchronized void shutdown() {
+        streamingProxy.stop();
+    }
+
+    //Players read a download as it is written through a MediaDataSource, which needs API 23
+    static boolean canReadWhileDownloading() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Starts (or joins) a background download of the whole track at url into the cache, on a thread of its own
+     * rather than behind other downloads. Any prefix already fetched by a prefetch is reused.
+     */
+    synchronized CacheDownload download(String url) {
+        CacheDownload download = activeDownloads.get(url);
+        if (download != null) {
+            if (!download.isLimited() || download.extend()) {
+                return download;
+            }
+            activeDownloads.remove(url);
+        }
+
+        return startDownload(url, -1, playbackExecutor);
+    }
+
+    /**
+     * Runs callback on the download's thread once the whole-track download of url in progress has stopped,
+     * successfully or not. Nothing new is fetched.
+     *
+     * @return false if no such download is running, the callback is then dropped
+     */
+    synchronized boolean whenDownloaded(String url, Runnable callback) {
+        CacheDownload download = activeDownloads.get(url);
+        if (download == null || download.isLimited()) {
+            return false;
+        }
+
+        List<Runnable> callbacks = finishCallbacks.get(url);
+        if (callbacks == null) {
+            callbacks = new ArrayList<>();
+            finishCallbacks.put(url, callbacks);
+        }
+        callbacks.add(callback);
+        return true;
+    }
+
+    /**
+     * Downloads the first byteLimit bytes of url on the given executor, unless they are already cached.
+     *
+     * @return the download, or null if there was nothing to do
+     */
+    synchronized CacheDownload prefetch(String url, long byteLimit, Executor prefetchExecutor) {
+        if (completeFileFor(url).exists() || activeDownloads.containsKey(url)) {
+            return null;
+        }
+
+        if (partFileFor(url).length() >= byteLimit) {
+            return null;
+        }
+
+        return startDownload(url, byteLimit, prefetchExecutor);
+    }
+
+    private CacheDownload startDownload(String url, long byteLimit, Executor downloadExecutor) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create cache directory " + directory);
+        }
+
+        Long knownLength = knownLengths.get(url);
+        CacheDownload download = new CacheDownload(url, partFileFor(url), completeFileFor(url), this,
+                byteLimit, knownLength != null ? knownLength : -1);
+        activeDownloads.put(url, download);
+        downloadExecutor.execute(download);
+        return download;
+    }
+
+    synchronized void clear() {
+        memoryCache.clear();
+        chunkStore.clear();
+        seekIndexes.evictAll();
+        unindexedUrls.clear();
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!isActive(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public void onDownloadFinished(CacheDownload download, boolean success) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            //A cancelled prefetch may already have been replaced by a playback download
+            if (activeDownloads.get(download.getUrl()) == download) {
+                activeDownloads.remove(download.getUrl());
+            }
+
+            if (download.getContentLength() != -1) {
+                knownLengths.put(download.getUrl(), download.getContentLength());
+            }
+
+            if (success) {
+                if (download.getPartFile().renameTo(download.getCompleteFile())) {
+                    download.markCommitted();
+                    download.getCompleteFile().setLastModified(System.currentTimeMillis());
+                    indexInBackground(download.getUrl(), download.getCompleteFile());
+                } else {
+                    Log.e(TAG, "Failed to commit " + download.getUrl());
+                }
+            }
+
+            //A cancelled download may have been replaced, its callbacks then find the file missing and wait again
+            callbacks = finishCallbacks.remove(download.getUrl());
+        }
+
+        trim();
+
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    private void trimInBackground() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                trim();
+            }
+        });
+    }
+
+    //Evicts files in policy order until the cache fits its budget, in-flight downloads are never evicted
+    synchronized void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        List<File> candidates = new ArrayList<>(files.length);
+        for (File file : files) {
+            size += file.length();
+
+            //Seek indexes go along with their track
+            if (!isActive(file) && !file.getName().endsWith(SEEK_INDEX_SUFFIX)) {
+                candidates.add(file);
+            }
+        }
+
+        if (size <= maxBytes) {
+            return;
+        }
+
+        Collections.sort(candidates, comparatorFor(evictionPolicy));
+
+        for (File file : candidates) {
+            if (size <= maxBytes) {
+                break;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+
+            String name = file.getName();
+            if (name.endsWith(COMPLETE_SUFFIX)) {
+                File indexFile = new File(directory,
+                        name.substring(0, name.length() - COMPLETE_SUFFIX.length()) + SEEK_INDEX_SUFFIX);
+                long indexLength = indexFile.length();
+                if (indexFile.delete()) {
+                    size -= indexLength;
+                }
+            }
+        }
+    }
+
+    private boolean isActive(File file) {
+        for (CacheDownload download : activeDownloads.values()) {
+            if (download.getPartFile().equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Comparator<File> comparatorFor(CacheEvictionPolicy policy) {
+        switch (policy) {
+            case LARGEST_FIRST:
+                return new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        return compareLongs(b.length(), a.length());
+                    }
+                };
+            case LEAST_RECENTLY_USED:
+            default:
+                return new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        return compareLongs(a.lastModified(), b.lastModified());
+                    }
+                };
+        }
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private File completeFileFor(String url) {
+        return new File(directory, keyFor(url) + COMPLETE_SUFFIX);
+    }
+
+    private File seekIndexFileFor(String url) {
+        return new File(directory, keyFor(url) + SEEK_INDEX_SUFFIX);
+    }
+
+    private File partFileFor(String url) {
+        return new File(directory, keyFor(url) + PART_SUFFIX);
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            char[] hex = new char[hash.length * 2];
+            char[] digits = "0123456789abcdef".toCharArray();
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = digits[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = digits[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            //Both are guaranteed on Android, fall back to something filesystem safe regardless
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
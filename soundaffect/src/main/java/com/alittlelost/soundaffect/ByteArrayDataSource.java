@@ -0,0 +1,39 @@
+package com.alittlelost.soundaffect;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+/**
+ * Feeds MediaPlayer from encoded bytes already in memory.
+ */
+
+@TargetApi(Build.VERSION_CODES.M)
+class ByteArrayDataSource extends MediaDataSource {
+
+    private final byte[] data;
+
+    ByteArrayDataSource(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) {
+        if (position >= data.length) {
+            return -1;
+        }
+
+        int length = (int) Math.min(size, data.length - position);
+        System.arraycopy(data, (int) position, buffer, offset, length);
+        return length;
+    }
+
+    @Override
+    public long getSize() {
+        return data.length;
+    }
+
+    @Override
+    public void close() {
+    }
+}
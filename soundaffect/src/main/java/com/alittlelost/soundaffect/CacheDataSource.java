@@ -0,0 +1,55 @@
+package com.alittlelost.soundaffect;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Feeds MediaPlayer from a cache file that is still being downloaded, blocking each read
+ * until the requested bytes have been written. This is what makes the cache write-through
+ * on first playback instead of downloading the track twice. A download that fails partway
+ * fails the read rather than ending the track early.
+ */
+
+@TargetApi(Build.VERSION_CODES.M)
+class CacheDataSource extends MediaDataSource {
+
+    private final CacheDownload download;
+    private RandomAccessFile file;
+
+    CacheDataSource(CacheDownload download) {
+        this.download = download;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (!download.awaitPosition(position)) {
+            return -1;
+        }
+
+        if (file == null) {
+            file = download.openForRead();
+        }
+
+        long available = download.getBytesAvailable() - position;
+        int length = (int) Math.min(size, available);
+        file.seek(position);
+        return file.read(buffer, offset, length);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return download.awaitContentLength();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.alittlelost.soundaffect;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads a single URL into a ".part" file in the audio cache, resuming from whatever
+ * is already on disk. Readers can block on the download until the bytes they need have been written,
+ * which is what lets playback read through the cache while the track is still arriving.
+ * A download can be limited to the first bytes of a track for prefetching, and extended
+ * to the full track later if playback catches up with it.
+ */
+
+class CacheDownload implements Runnable {
+
+    interface Listener {
+        void onDownloadFinished(CacheDownload download, boolean success);
+    }
+
+    private static final String TAG = "CacheDownload";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String url;
+    private final File partFile;
+    private final File completeFile;
+    private final Listener listener;
+    private long byteLimit;
+
+    private final Object lock = new Object();
+    private long bytesAvailable = 0;
+    private long contentLength = -1;
+    private boolean headersReceived = false;
+    private boolean finished = false;
+    private boolean failed = false;
+    private boolean committed = false;
+    private boolean started = false;
+    private boolean stopping = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param byteLimit stop once this many bytes are on disk, or -1 to download the whole track
+     * @param contentLength the track length if already known from an earlier download, otherwise -1
+     */
+    CacheDownload(String url, File partFile, File completeFile, Listener listener, long byteLimit, long contentLength) {
+        this.url = url;
+        this.partFile = partFile;
+        this.completeFile = completeFile;
+        this.listener = listener;
+        this.byteLimit = byteLimit;
+        this.contentLength = contentLength;
+        this.bytesAvailable = partFile.length();
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    File getPartFile() {
+        return partFile;
+    }
+
+    File getCompleteFile() {
+        return completeFile;
+    }
+
+    /**
+     * Lifts the byte limit so the download runs to the end of the track.
+     *
+     * @return false if the download has not started yet (it is cancelled instead) or is already
+     * winding down, in which case the caller should start a new one
+     */
+    boolean extend() {
+        synchronized (lock) {
+            if (!started) {
+                cancelled = true;
+                lock.notifyAll();
+                return false;
+            }
+            if (stopping || cancelled) {
+                return false;
+            }
+            byteLimit = -1;
+            return true;
+        }
+    }
+
+    boolean isLimited() {
+        synchronized (lock) {
+            return byteLimit != -1;
+        }
+    }
+
+    //Cancels only while this is still a prefix download, playback that took it over keeps it running
+    boolean cancelIfLimited() {
+        synchronized (lock) {
+            if (byteLimit == -1) {
+                return false;
+            }
+            cancelled = true;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean success = false;
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        FileOutputStream out = null;
+
+        try {
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                started = true;
+            }
+
+            long offset = partFile.length();
+            if (reachedLimit(offset)) {
+                return;
+            }
+
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+
+            int responseCode = connection.getResponseCode();
+            long length = connection.getContentLength();
+
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                setHeaders(offset, length != -1 ? offset + length : -1);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                //Server ignored the range, start over
+                offset = 0;
+                setHeaders(0, length);
+            } else if (responseCode == 416 && offset > 0) {
+                //Requested range not satisfiable, we already have the whole file
+                setHeaders(offset, offset);
+                success = true;
+                return;
+            } else {
+                Log.e(TAG, "Unexpected response " + responseCode + " for " + url);
+                return;
+            }
+
+            in = connection.getInputStream();
+            out = new FileOutputStream(partFile, offset > 0);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            boolean endOfStream = false;
+            int read;
+            while (!cancelled) {
+                read = in.read(buffer);
+                if (read == -1) {
+                    endOfStream = true;
+                    break;
+                }
+
+                out.write(buffer, 0, read);
+                synchronized (lock) {
+                    bytesAvailable += read;
+                    lock.notifyAll();
+                }
+
+                if (reachedLimit(bytesAvailable)) {
+                    break;
+                }
+            }
+
+            out.flush();
+            synchronized (lock) {
+                stopping = true;
+                success = endOfStream && (contentLength == -1 || bytesAvailable == contentLength);
+                if (success && contentLength == -1) {
+                    contentLength = bytesAvailable;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when downloading " + url + ": " + e);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+            if (connection != null) {
+                connection.disconnect();
+            }
+
+            synchronized (lock) {
+                stopping = true;
+            }
+
+            //Let the cache commit the file before waiters are released
+            listener.onDownloadFinished(this, success);
+
+            synchronized (lock) {
+                headersReceived = true;
+                finished = true;
+                failed = !success;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    //A prefix download that has hit its limit stops here, the part file is kept for later playback
+    private boolean reachedLimit(long available) {
+        synchronized (lock) {
+            if (byteLimit != -1 && available >= byteLimit) {
+                stopping = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void setHeaders(long available, long length) {
+        synchronized (lock) {
+            bytesAvailable = available;
+            contentLength = length;
+            headersReceived = true;
+            lock.notifyAll();
+        }
+    }
+
+    //Called by the cache once the part file has been renamed to its final name
+    void markCommitted() {
+        synchronized (lock) {
+            committed = true;
+        }
+    }
+
+    boolean isFinished() {
+        synchronized (lock) {
+            return finished;
+        }
+    }
+
+    boolean isFailed() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    long getBytesAvailable() {
+        synchronized (lock) {
+            return bytesAvailable;
+        }
+    }
+
+    long getContentLength() {
+        synchronized (lock) {
+            return contentLength;
+        }
+    }
+
+    /**
+     * Blocks until the track length is known.
+     *
+     * @return the total length of the track or -1 if the server did not report it
+     */
+    long awaitContentLength() {
+        synchronized (lock) {
+            while (contentLength == -1 && !headersReceived && !cancelled) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            return contentLength;
+        }
+    }
+
+    //Blocks until the download has stopped, successfully or not
+    void awaitFinished() throws InterruptedException {
+        synchronized (lock) {
+            while (!finished) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Blocks until the byte at position has been written or the download stops.
+     *
+     * @return false if position is past the end of the track
+     * @throws IOException if the download failed or was cancelled before reaching position
+     */
+    boolean awaitPosition(long position) throws IOException {
+        synchronized (lock) {
+            while (bytesAvailable <= position && !finished && !cancelled) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + url);
+                }
+            }
+
+            if (bytesAvailable > position) {
+                return true;
+            }
+            //A track cut short is an error, not its end
+            if (failed || cancelled) {
+                throw new IOException("Download of " + url + " stopped at " + bytesAvailable + " bytes");
+            }
+            return false;
+        }
+    }
+
+    //Opens whichever file currently holds the data, the handle stays valid across the final rename
+    RandomAccessFile openForRead() throws IOException {
+        synchronized (lock) {
+            return new RandomAccessFile(committed ? completeFile : partFile, "r");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Decides which cached tracks are removed first once the disk cache goes over its byte budget.
+ */
+
+public enum CacheEvictionPolicy {
+    //Tracks that have not been played for the longest time go first
+    LEAST_RECENTLY_USED,
+    //The biggest files go first, keeping as many short clips as possible
+    LARGEST_FIRST
+}
@@ -0,0 +1,276 @@
+package com.alittlelost.soundaffect;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse on-disk store for tracks streamed through the StreamingProxy.
+ * Each track is a data file written in fixed size chunks at their own offsets plus a small index
+ * of which chunks are complete, so whatever ranges were fetched before (even by another session
+ * or before a restart) are served locally and only the gaps go to the network.
+ * Size-bounded, least recently used tracks go first.
+ */
+
+class ChunkStore {
+
+    private static final String TAG = "ChunkStore";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String INDEX_SUFFIX = ".chunks";
+    private static final int INDEX_VERSION = 1;
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final long DEFAULT_MAX_BYTES = 50 * 1024 * 1024;
+
+    /**
+     * One track's chunks. Reads and writes may come from several proxy connections at once.
+     */
+    static class Track {
+
+        private final File dataFile;
+        private final File indexFile;
+        private long length = -1;
+        private boolean[] chunks = new boolean[0];
+        private RandomAccessFile data;
+
+        //Proxy connections currently streaming this track, guarded by the store
+        private int users = 0;
+
+        private Track(File dataFile, File indexFile) {
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+        }
+
+        //-1 until the origin has reported it
+        synchronized long getLength() {
+            return length;
+        }
+
+        synchronized void setLength(long length) {
+            if (this.length == length) {
+                return;
+            }
+
+            //A different length means the origin changed the file, nothing stored still applies
+            this.length = length;
+            chunks = new boolean[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            writeIndex();
+        }
+
+        synchronized boolean hasChunk(int index) {
+            return index < chunks.length && chunks[index];
+        }
+
+        /**
+         * Reads stored bytes from position up to the end of its chunk, which must be complete.
+         */
+        synchronized int read(long position, byte[] buffer, int offset, int size) throws IOException {
+            long chunkEnd = Math.min(length, (position / CHUNK_SIZE + 1) * CHUNK_SIZE);
+            int count = (int) Math.min(size, chunkEnd - position);
+            RandomAccessFile file = open();
+            file.seek(position);
+            file.readFully(buffer, offset, count);
+            return count;
+        }
+
+        synchronized void writeChunk(int index, byte[] buffer, int count) throws IOException {
+            if (index >= chunks.length || chunks[index]) {
+                return;
+            }
+
+            RandomAccessFile file = open();
+            file.seek((long) index * CHUNK_SIZE);
+            file.write(buffer, 0, count);
+            chunks[index] = true;
+            writeIndex();
+        }
+
+        private RandomAccessFile open() throws IOException {
+            if (data == null) {
+                data = new RandomAccessFile(dataFile, "rw");
+            }
+            return data;
+        }
+
+        private synchronized void close() {
+            closeQuietly(data);
+            data = null;
+        }
+
+        private void readIndex() {
+            if (!indexFile.exists() || !dataFile.exists()) {
+                return;
+            }
+
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(indexFile));
+                if (in.readInt() != INDEX_VERSION) {
+                    return;
+                }
+
+                long storedLength = in.readLong();
+                boolean[] stored = new boolean[in.readInt()];
+                for (int i = 0; i < stored.length; i++) {
+                    stored[i] = in.readBoolean();
+                }
+                length = storedLength;
+                chunks = stored;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read chunk index: " + e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        //Written after each chunk, it is a few hundred bytes even for long tracks
+        private void writeIndex() {
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new FileOutputStream(indexFile));
+                out.writeInt(INDEX_VERSION);
+                out.writeLong(length);
+                out.writeInt(chunks.length);
+                for (boolean chunk : chunks) {
+                    out.writeBoolean(chunk);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write chunk index: " + e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+    }
+
+    private final File directory;
+    private final Map<String, Track> tracks = new HashMap<>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    ChunkStore(File directory) {
+        this.directory = directory;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the same Track for every caller streaming url at the same time, loaded from disk if
+     * it was streamed before. Hand it back with release() once done
+     */
+    synchronized Track open(String url) {
+        Track track = tracks.get(url);
+        if (track != null) {
+            track.users++;
+            return track;
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create chunk directory " + directory);
+        }
+
+        String key = AudioCache.keyFor(url);
+        track = new Track(new File(directory, key + DATA_SUFFIX), new File(directory, key + INDEX_SUFFIX));
+        track.readIndex();
+        track.dataFile.setLastModified(System.currentTimeMillis());
+        track.users = 1;
+        tracks.put(url, track);
+
+        trim();
+        return track;
+    }
+
+    synchronized void release(String url, Track track) {
+        if (--track.users > 0 || tracks.get(url) != track) {
+            return;
+        }
+
+        tracks.remove(url);
+        track.close();
+    }
+
+    //Deletes least recently opened tracks until the store fits its budget, ones being streamed are kept
+    synchronized void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        List<File> candidates = new ArrayList<>();
+        for (File file : files) {
+            size += file.length();
+            if (file.getName().endsWith(DATA_SUFFIX) && !isOpen(file)) {
+                candidates.add(file);
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() == b.lastModified() ? 0 : 1);
+            }
+        });
+
+        for (File file : candidates) {
+            if (size <= maxBytes) {
+                break;
+            }
+
+            String name = file.getName();
+            File index = new File(directory, name.substring(0, name.length() - DATA_SUFFIX.length()) + INDEX_SUFFIX);
+            size -= file.length() + index.length();
+            file.delete();
+            index.delete();
+        }
+    }
+
+    //Deletes every track that isn't being streamed
+    synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            String dataName = name.endsWith(INDEX_SUFFIX)
+                    ? name.substring(0, name.length() - INDEX_SUFFIX.length()) + DATA_SUFFIX : name;
+            if (!isOpen(new File(directory, dataName))) {
+                file.delete();
+            }
+        }
+    }
+
+    private boolean isOpen(File dataFile) {
+        for (Track track : tracks.values()) {
+            if (track.dataFile.equals(dataFile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Snapshot of how well the in-memory clip cache is doing at serving replays without touching the disk.
+ */
+
+public final class ClipCacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int cachedBytes;
+    private final int maxBytes;
+
+    ClipCacheStats(long hits, long misses, long evictions, int cachedBytes, int maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.cachedBytes = cachedBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    //URL loads played straight from memory
+    public long getHits() {
+        return hits;
+    }
+
+    //URL loads that had to go to the disk cache or the network
+    public long getMisses() {
+        return misses;
+    }
+
+    //Clips dropped to stay within the byte budget or under memory pressure
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ClipCacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", cachedBytes=" + cachedBytes + ", maxBytes=" + maxBytes + "}";
+    }
+}
@@ -0,0 +1,113 @@
+package com.alittlelost.soundaffect;
+
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Memory tier in front of AudioCache for short, frequently replayed clips.
+ * Keeps the encoded bytes of small fully cached tracks in an LRU with a byte budget,
+ * so loading one again doesn't touch the disk. Players read the bytes through a MediaDataSource,
+ * which only exists from M on; below that the tier stays disabled and clips play from their files.
+ */
+
+class ClipMemoryCache {
+
+    private static final String TAG = "ClipMemoryCache";
+
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    //Anything bigger is a track rather than a clip and streams from disk
+    static final int MAX_CLIP_BYTES = 256 * 1024;
+
+    private final LruCache<String, byte[]> clips;
+    private final Executor executor;
+
+    //Urls being read into memory, so a burst of replays reads the file once
+    private final Set<String> loading = new HashSet<>();
+
+    ClipMemoryCache(int maxBytes, Executor executor) {
+        this.executor = executor;
+        clips = new LruCache<String, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(String url, byte[] clip) {
+                return clip.length;
+            }
+        };
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * @return the clip's encoded bytes, or null if they aren't in memory
+     */
+    byte[] get(String url) {
+        return isSupported() ? clips.get(url) : null;
+    }
+
+    //Reads a fully cached file into memory in the background if it is small enough to be worth keeping
+    void loadInBackground(final String url, final File file) {
+        long length = file.length();
+        if (!isSupported() || length <= 0 || length > MAX_CLIP_BYTES || length > clips.maxSize() / 4) {
+            return;
+        }
+
+        synchronized (loading) {
+            if (!loading.add(url)) {
+                return;
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clips.put(url, readFully(file));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read clip into memory: " + e);
+                } finally {
+                    synchronized (loading) {
+                        loading.remove(url);
+                    }
+                }
+            }
+        });
+    }
+
+    void setMaxBytes(int maxBytes) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            clips.resize(maxBytes);
+        }
+    }
+
+    void clear() {
+        clips.evictAll();
+    }
+
+    ClipCacheStats getStats() {
+        synchronized (clips) {
+            return new ClipCacheStats(clips.hitCount(), clips.missCount(), clips.evictionCount(),
+                    clips.size(), clips.maxSize());
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
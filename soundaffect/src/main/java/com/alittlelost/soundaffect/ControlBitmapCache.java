@@ -0,0 +1,147 @@
+package com.alittlelost.soundaffect;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of decoded, pre-tinted control bitmaps shared by every SoundAffect.
+ * Bitmaps are keyed by resource, density and tint and reference counted: one in use by any view stays,
+ * one no view uses is kept in a small LRU for the next inflation and dropped under memory pressure.
+ * Must only be used from the main thread.
+ */
+
+class ControlBitmapCache implements ComponentCallbacks2 {
+
+    //Tint value meaning "draw the resource as it is"
+    static final int NO_TINT = -1;
+
+    //Unused bitmaps kept around for views inflated later, a control icon is a few tens of KB at most
+    private static final int UNUSED_MAX_BYTES = 512 * 1024;
+
+    private static ControlBitmapCache instance;
+
+    private static class Entry {
+        final String key;
+        final Bitmap bitmap;
+        int references = 0;
+
+        Entry(String key, Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private final Map<String, Entry> inUse = new HashMap<>();
+    private final Map<Bitmap, Entry> entriesByBitmap = new IdentityHashMap<>();
+    private final LruCache<String, Bitmap> unused = new LruCache<String, Bitmap>(UNUSED_MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+
+    private long decodes = 0;
+
+    private ControlBitmapCache() {
+    }
+
+    static ControlBitmapCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ControlBitmapCache();
+
+            //Layout previews have no application context to listen on
+            Context applicationContext = context.getApplicationContext();
+            if (applicationContext != null) {
+                applicationContext.registerComponentCallbacks(instance);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param tint color the opaque pixels are painted with, or NO_TINT
+     * @return a shared bitmap that must not be modified, hand it back with release() when done
+     */
+    Bitmap acquire(Resources resources, int resourceId, int tint) {
+        String key = resourceId + "@" + resources.getDisplayMetrics().densityDpi + "#" + tint;
+
+        Entry entry = inUse.get(key);
+        if (entry == null) {
+            Bitmap bitmap = unused.remove(key);
+            if (bitmap == null) {
+                bitmap = decode(resources, resourceId, tint);
+            }
+
+            entry = new Entry(key, bitmap);
+            inUse.put(key, entry);
+            entriesByBitmap.put(bitmap, entry);
+        }
+
+        entry.references++;
+        return entry.bitmap;
+    }
+
+    void release(Bitmap bitmap) {
+        Entry entry = entriesByBitmap.get(bitmap);
+        if (entry == null || --entry.references > 0) {
+            return;
+        }
+
+        inUse.remove(entry.key);
+        entriesByBitmap.remove(bitmap);
+        unused.put(entry.key, bitmap);
+    }
+
+    //Number of bitmaps decoded since the process started, the rest were served from the cache
+    long getDecodeCount() {
+        return decodes;
+    }
+
+    private Bitmap decode(Resources resources, int resourceId, int tint) {
+        decodes++;
+        Bitmap source = BitmapFactory.decodeResource(resources, resourceId);
+        if (tint == NO_TINT) {
+            return source;
+        }
+
+        //Tinted once here so drawing needs no color filter
+        Bitmap tinted = Bitmap.createBitmap(source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888);
+        tinted.setDensity(source.getDensity());
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColorFilter(new PorterDuffColorFilter(tint, PorterDuff.Mode.SRC_IN));
+        new Canvas(tinted).drawBitmap(source, 0, 0, paint);
+        source.recycle();
+        return tinted;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        //Bitmaps in use stay, views still draw them
+        if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            unused.evictAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        unused.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
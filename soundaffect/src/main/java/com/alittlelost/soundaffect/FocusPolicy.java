@@ -0,0 +1,12 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * What happens to other sessions when one SoundAffect starts playing.
+ */
+
+public enum FocusPolicy {
+    //Only one session plays at a time, starting one pauses the rest
+    PAUSE_OTHERS,
+    //Sessions play independently of each other
+    PLAY_ALONGSIDE
+}
@@ -0,0 +1,85 @@
+package com.alittlelost.soundaffect;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Process-wide, frame-synchronised scheduler shared by every SoundAffect instance.
+ * Frame callbacks are only requested while at least one listener is registered.
+ * Must only be used from the main thread.
+ */
+
+class FrameTicker implements Choreographer.FrameCallback {
+
+    interface Listener {
+        void onFrame(long frameTimeNanos);
+    }
+
+    private static FrameTicker instance;
+
+    private final Choreographer choreographer;
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+
+    //Snapshot reused on every frame so listeners can unregister themselves while being dispatched
+    private final ArrayList<Listener> dispatchList = new ArrayList<>();
+    private boolean frameScheduled = false;
+
+    private FrameTicker() {
+        choreographer = Choreographer.getInstance();
+    }
+
+    static FrameTicker getInstance() {
+        if (instance == null) {
+            instance = new FrameTicker();
+        }
+        return instance;
+    }
+
+    void addListener(Listener listener) {
+        if (listeners.contains(listener)) {
+            return;
+        }
+
+        listeners.add(listener);
+        scheduleFrame();
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+
+        if (listeners.isEmpty() && frameScheduled) {
+            choreographer.removeFrameCallback(this);
+            frameScheduled = false;
+        }
+    }
+
+    boolean hasListener(Listener listener) {
+        return listeners.contains(listener);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+
+        dispatchList.clear();
+        for (int i = 0; i < listeners.size(); i++) {
+            dispatchList.add(listeners.get(i));
+        }
+        for (int i = 0; i < dispatchList.size(); i++) {
+            dispatchList.get(i).onFrame(frameTimeNanos);
+        }
+        dispatchList.clear();
+
+        if (!listeners.isEmpty()) {
+            scheduleFrame();
+        }
+    }
+
+    private void scheduleFrame() {
+        if (!frameScheduled) {
+            choreographer.postFrameCallback(this);
+            frameScheduled = true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Distribution of one kind of latency in milliseconds, with percentile queries.
+ * Values are counted in log-linear buckets, so memory stays fixed however many are recorded
+ * and a reported percentile is never more than an eighth above the true value.
+ */
+
+public final class LatencyHistogram {
+
+    //Each power of two range is split into this many linear buckets
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+
+    //Enough ranges to cover a little over 12 days, anything longer lands in the last bucket
+    private static final int BUCKET_COUNT = SUB_BUCKETS * 28;
+
+    private final String name;
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    synchronized void record(long millis) {
+        if (millis < 0) {
+            return;
+        }
+
+        counts[bucketFor(millis)]++;
+        count++;
+        sum += millis;
+        min = Math.min(min, millis);
+        max = Math.max(max, millis);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 50 for the median or 99 for the tail
+     * @return the smallest bucket bound at or above that share of recorded values, 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(upperBoundOf(i), max));
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    //Values below SUB_BUCKETS get a bucket each, above that every doubling is split into SUB_BUCKETS
+    private static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >> shift) - SUB_BUCKETS;
+        return Math.min((shift + 1) * SUB_BUCKETS + subBucket, BUCKET_COUNT - 1);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LatencyHistogram{" + name + ", count=" + count + ", p50=" + getPercentile(50)
+                + ", p90=" + getPercentile(90) + ", p99=" + getPercentile(99) + ", max=" + max + "}";
+    }
+}
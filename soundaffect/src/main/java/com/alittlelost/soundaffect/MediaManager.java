@@ -1,98 +1,587 @@
 package com.alittlelost.soundaffect;
 
 import android.content.Context;
-import android.media.AudioAttributes;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
  * Created by seanashmore on 20/09/2017.
  */
 
-class MediaManager {
+class MediaManager implements PlaybackEngine {
 
     private static final String TAG = "MediaManager";
-    private MediaPlayer mediaPlayer;
+
+    interface OnTrackChangeListener {
+        //The pre-prepared next player took over gaplessly
+        void onTrackAdvanced();
+
+        //The current track finished with nothing queued behind it
+        void onTrackCompleted();
+    }
+
+    interface OnStateChangeListener {
+        //A player finished preparing, completed or failed without being asked to
+        void onPlayerStateChanged();
+    }
+
+    private PlayerBackend player;
+    private PlayerPool.Entry currentEntry;
+
+    //Prepared alongside the current player and chained with setNextPlayer for gapless playback
+    private PlayerPool.Entry nextEntry;
+    private OnTrackChangeListener onTrackChangeListener;
+    private OnStateChangeListener onStateChangeListener;
+    private boolean looping = false;
+    private boolean playWhenPrepared = false;
+    private int pendingSeekPosition = -1;
+
     private Context context;
+    private AudioCache audioCache;
+    private PlayerPool playerPool;
 
-    private boolean prepared = false;
+    private final PlaybackMetrics metrics;
+    private final String sessionId;
+    private String metricsSourceKey;
 
-    MediaManager(Context context) {
+    //Start times of the intervals being measured for the current player, -1 when none is open
+    private long loadRequestedUptime = -1;
+    private long playRequestedUptime = -1;
+    private long seekIssuedUptime = -1;
+    private long bufferingStartUptime = -1;
+
+    MediaManager(Context context, AudioCache audioCache, PlayerPool playerPool, PlaybackMetrics metrics,
+                 String sessionId) {
         this.context = context;
+        this.audioCache = audioCache;
+        this.playerPool = playerPool;
+        this.metrics = metrics;
+        this.sessionId = sessionId;
     }
 
-    void loadUrl(String url) {
-        try {
-            mediaPlayer = new MediaPlayer();
-            mediaPlayer.setDataSource(url);
-
-            AudioAttributes.Builder audioAttributes;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                audioAttributes = new AudioAttributes.Builder();
-                audioAttributes.setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
-                audioAttributes.setLegacyStreamType(AudioManager.STREAM_MUSIC);
-                audioAttributes.setUsage(AudioAttributes.USAGE_MEDIA);
-                mediaPlayer.setAudioAttributes(audioAttributes.build());
+    void setOnTrackChangeListener(OnTrackChangeListener onTrackChangeListener) {
+        this.onTrackChangeListener = onTrackChangeListener;
+    }
+
+    void setOnStateChangeListener(OnStateChangeListener onStateChangeListener) {
+        this.onStateChangeListener = onStateChangeListener;
+    }
+
+    private void notifyStateChanged() {
+        if (onStateChangeListener != null) {
+            onStateChangeListener.onPlayerStateChanged();
+        }
+    }
+
+    public void loadUrl(String url) {
+        String key = "url:" + url;
+        if (promoteNext(key)) {
+            recordLoadRequested(key);
+            return;
+        }
+
+        PlayerPool.Entry entry = acquire(key);
+        recordLoadRequested(key);
+        if (!entry.isLoaded() && !loadUrlInto(entry, url)) {
+            record(PlaybackEvent.Type.ERROR, -1, PlayerBackend.ERROR_UNKNOWN, 0);
+            currentEntry = null;
+            player = null;
+        }
+    }
+
+    /**
+     * Prepares url on a second player and chains it behind the current one, or clears the next track if url is null.
+     */
+    void setNextUrl(String url) {
+        clearNext();
+        if (url == null) {
+            return;
+        }
+
+        PlayerPool.Entry entry = playerPool.acquire("url:" + url);
+        nextEntry = entry;
+        bindListener(entry);
+
+        if (entry.isLoaded()) {
+            if (entry.prepared) {
+                entry.player.seekTo(0);
+                entry.positionCorrectionMs = 0;
             }
+            linkNext();
+        } else if (!loadUrlInto(entry, url)) {
+            nextEntry = null;
+        }
+    }
 
-            mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                @Override
-                public void onPrepared(MediaPlayer mediaPlayer) {
-                    prepared = true;
-                }
-            });
+    void setLooping(boolean looping) {
+        this.looping = looping;
 
-            mediaPlayer.prepareAsync();
+        if (isPrepared()) {
+            //A corrected position is only right until the player wraps, hand it back to the player's own estimate
+            if (looping && currentEntry.positionCorrectionMs != 0) {
+                int position = getCurrentPosition();
+                currentEntry.positionCorrectionMs = 0;
+                player.seekTo(position);
+            }
+            player.setLooping(looping);
+        }
+    }
 
+    //Loads url into a freshly acquired player, discarding the player if that fails
+    private boolean loadUrlInto(PlayerPool.Entry entry, String url) {
+        try {
+            setCachedDataSource(entry.player, url);
+            prepare(entry, "url:" + url);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "IOException when playing from URL: " + e);
         } catch (Exception e) {
             Log.e(TAG, "Failed to play from URL: " + e);
         }
+
+        playerPool.discard(entry);
+        return false;
+    }
+
+    //Plays from memory or the disk cache when possible, otherwise streams through the proxy
+    //or fills the cache while the track is played. Only ever fetches the track once
+    private void setCachedDataSource(PlayerBackend player, String url) throws IOException {
+        byte[] clip = audioCache.getInMemory(url);
+        if (clip != null) {
+            player.setDataSource(clip);
+            return;
+        }
+
+        File cachedFile = audioCache.get(url);
+        if (cachedFile != null) {
+            player.setDataSource(cachedFile.getAbsolutePath());
+            return;
+        }
+
+        String proxyUrl = audioCache.getProxyUrl(url);
+        if (proxyUrl != null) {
+            player.setDataSource(proxyUrl);
+            return;
+        }
+
+        if (AudioCache.canReadWhileDownloading()) {
+            player.setDataSource(audioCache.download(url));
+        } else {
+            //The proxy couldn't start, stream uncached rather than download the track alongside the player
+            player.setDataSource(url);
+        }
+    }
+
+    @Override
+    public void loadResource(int resourceId) {
+        PlayerPool.Entry entry = acquire("res:" + resourceId);
+        recordLoadRequested("res:" + resourceId);
+        if (entry.isLoaded()) {
+            return;
+        }
+
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getResources().openRawResourceFd(resourceId);
+            entry.player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            prepare(entry, "res:" + resourceId);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to play from resource: " + e);
+            record(PlaybackEvent.Type.ERROR, -1, PlayerBackend.ERROR_UNKNOWN, 0);
+            discardCurrent();
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    //Swaps the current player back into the pool and takes one for the new source, rewound if it was pooled
+    private PlayerPool.Entry acquire(String key) {
+        releaseCurrent();
+
+        PlayerPool.Entry entry = playerPool.acquire(key);
+        makeCurrent(entry);
+        return entry;
+    }
+
+    //Loading the track that is already queued as next just swaps it in
+    private boolean promoteNext(String key) {
+        if (nextEntry == null || !key.equals(nextEntry.key)) {
+            return false;
+        }
+
+        PlayerPool.Entry entry = nextEntry;
+        nextEntry = null;
+        releaseCurrent();
+        makeCurrent(entry);
+        return true;
+    }
+
+    private void makeCurrent(PlayerPool.Entry entry) {
+        currentEntry = entry;
+        player = entry.player;
+        bindListener(entry);
+        playWhenPrepared = false;
+        pendingSeekPosition = -1;
+        playRequestedUptime = -1;
+        seekIssuedUptime = -1;
+        bufferingStartUptime = -1;
+
+        if (entry.isLoaded() && entry.prepared) {
+            player.seekTo(0);
+            entry.positionCorrectionMs = 0;
+            player.setLooping(looping);
+            if (entry.seekIndex == null) {
+                resolveSeekIndex(entry);
+            }
+        }
+    }
+
+    private void linkNext() {
+        if (nextEntry != null && nextEntry.prepared && isPrepared()) {
+            player.setNextPlayer(nextEntry.player);
+        }
+    }
+
+    private void clearNext() {
+        if (nextEntry == null) {
+            return;
+        }
+
+        if (isPrepared()) {
+            player.setNextPlayer(null);
+        }
+        playerPool.recycle(nextEntry);
+        nextEntry = null;
     }
 
-    void loadResource(int resourceId) {
-        mediaPlayer = MediaPlayer.create(context, resourceId);
-        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+    //The current player finished and the chained one is already playing, make it current
+    private void advanceToNext() {
+        PlayerPool.Entry finished = currentEntry;
+        PlayerPool.Entry entry = nextEntry;
+        nextEntry = null;
+
+        playerPool.recycle(finished);
+        currentEntry = entry;
+        player = entry.player;
+        player.setLooping(looping);
+        metricsSourceKey = entry.key;
+        seekIssuedUptime = -1;
+        bufferingStartUptime = -1;
+    }
+
+    /**
+     * Points entry's player callbacks at this manager. The pool is shared by every session, so a pooled
+     * player still calls back into whichever manager last used it until the one acquiring it rebinds it.
+     */
+    private void bindListener(final PlayerPool.Entry entry) {
+        entry.player.setListener(new PlayerBackend.Listener() {
             @Override
-            public void onPrepared(MediaPlayer mediaPlayer) {
-                prepared = true;
+            public void onPrepared(PlayerBackend player) {
+                playerPool.markPrepared(entry);
+                resolveSeekIndex(entry);
+
+                if (entry == currentEntry) {
+                    recordInterval(PlaybackEvent.Type.PREPARED, loadRequestedUptime);
+                    loadRequestedUptime = -1;
+
+                    player.setLooping(looping);
+                    if (pendingSeekPosition != -1) {
+                        seekTo(pendingSeekPosition);
+                        pendingSeekPosition = -1;
+                    }
+                    if (playWhenPrepared) {
+                        playWhenPrepared = false;
+                        player.start();
+                    }
+                }
+
+                if (entry == currentEntry || entry == nextEntry) {
+                    linkNext();
+                }
+                if (entry == currentEntry) {
+                    notifyStateChanged();
+                }
+            }
+
+            @Override
+            public void onCompletion(PlayerBackend player) {
+                if (entry != currentEntry) {
+                    return;
+                }
+
+                if (nextEntry != null && nextEntry.prepared) {
+                    advanceToNext();
+                    if (onTrackChangeListener != null) {
+                        onTrackChangeListener.onTrackAdvanced();
+                    }
+                } else if (onTrackChangeListener != null) {
+                    onTrackChangeListener.onTrackCompleted();
+                }
+                notifyStateChanged();
+            }
+
+            @Override
+            public void onError(PlayerBackend player, int what, int extra) {
+                Log.e(TAG, "Player error " + what + "/" + extra);
+                if (entry == currentEntry) {
+                    record(PlaybackEvent.Type.ERROR, -1, what, extra);
+                    discardCurrent();
+                    notifyStateChanged();
+                } else if (entry == nextEntry) {
+                    nextEntry = null;
+                    playerPool.discard(entry);
+                } else {
+                    playerPool.discard(entry);
+                }
+            }
+
+            @Override
+            public void onInfo(PlayerBackend player, int what, int extra) {
+                if (entry == currentEntry) {
+                    onCurrentPlayerInfo(what);
+                }
+            }
+
+            @Override
+            public void onSeekComplete(PlayerBackend player) {
+                if (entry == currentEntry && seekIssuedUptime != -1) {
+                    recordInterval(PlaybackEvent.Type.SEEK_COMPLETED, seekIssuedUptime);
+                    seekIssuedUptime = -1;
+                }
             }
         });
     }
 
-    boolean isPrepared() {
-        return prepared;
+    private void prepare(PlayerPool.Entry entry, String key) {
+        playerPool.register(entry, key);
+        entry.player.prepareAsync();
+    }
+
+    private void releaseCurrent() {
+        if (currentEntry == null) {
+            return;
+        }
+
+        if (currentEntry.prepared) {
+            if (nextEntry != null) {
+                player.setNextPlayer(null);
+            }
+            if (player.isPlaying()) {
+                player.pause();
+            }
+        }
+
+        playerPool.recycle(currentEntry);
+        currentEntry = null;
+        player = null;
+    }
+
+    private void discardCurrent() {
+        if (currentEntry != null) {
+            playWhenPrepared = false;
+            playerPool.discard(currentEntry);
+            currentEntry = null;
+            player = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        clearNext();
+        releaseCurrent();
     }
 
-    int getCurrentPosition() {
-        return mediaPlayer != null ? mediaPlayer.getCurrentPosition() : 0;
+    @Override
+    public boolean isPrepared() {
+        return currentEntry != null && currentEntry.prepared;
     }
 
-    void setCurrentPosition(int currentPosition) {
-        mediaPlayer.seekTo(currentPosition);
+    @Override
+    public int getCurrentPosition() {
+        if (isPrepared()) {
+            return currentEntry.positionCorrectionMs + player.getCurrentPosition();
+        }
+        return 0;
+    }
+
+    @Override
+    public void setCurrentPosition(int currentPosition) {
+        if (isPrepared()) {
+            seekTo(currentPosition);
+        } else if (currentEntry != null) {
+            pendingSeekPosition = currentPosition;
+        }
     }
 
-    void reset() {
-        mediaPlayer.seekTo(0);
+    @Override
+    public void scrubTo(int position) {
+        if (isPrepared()) {
+            seekTo(position, false);
+        } else if (currentEntry != null) {
+            pendingSeekPosition = position;
+        }
     }
 
-    boolean isPlaying() {
-        return mediaPlayer != null && mediaPlayer.isPlaying();
+    @Override
+    public void reset() {
+        setCurrentPosition(0);
     }
 
-    void play() {
-        mediaPlayer.start();
+    //True while a track is loaded, prepared or not
+    boolean hasTrack() {
+        return currentEntry != null;
     }
 
-    void pause() {
-        mediaPlayer.pause();
+    @Override
+    public boolean isPlaying() {
+        return isPrepared() && player.isPlaying();
     }
 
-    int getDuration() {
-        return (mediaPlayer != null && mediaPlayer.getDuration() != -1) ? mediaPlayer.getDuration() : 0;
+    @Override
+    public void play() {
+        if (currentEntry != null && playRequestedUptime == -1 && !isPlaying()) {
+            playRequestedUptime = SystemClock.uptimeMillis();
+        }
+
+        if (isPrepared()) {
+            player.start();
+        } else if (currentEntry != null) {
+            //Still preparing, start as soon as it is ready
+            playWhenPrepared = true;
+        }
+    }
+
+    @Override
+    public void pause() {
+        playWhenPrepared = false;
+        playRequestedUptime = -1;
+        if (isPrepared()) {
+            player.pause();
+        }
+    }
+
+    private void seekTo(int position) {
+        seekTo(position, true);
+    }
+
+    private void seekTo(int position, boolean precise) {
+        seekIssuedUptime = SystemClock.uptimeMillis();
+        record(PlaybackEvent.Type.SEEK_ISSUED, -1, 0, 0);
+
+        int playerPosition = indexedPlayerPosition(position);
+        if (playerPosition == -1) {
+            currentEntry.positionCorrectionMs = 0;
+            playerPosition = position;
+        }
+
+        if (precise) {
+            player.seekTo(playerPosition);
+        } else {
+            player.seekToClosestSync(playerPosition);
+        }
+    }
+
+    /**
+     * Players estimate where to seek in a VBR MP3 without a table of contents from its bitrate, which can be
+     * seconds out on long tracks. For a cached track with a SeekIndex the indexed frame before position is looked up
+     * instead, and the player is sent to the time its own estimate maps onto that frame's byte offset.
+     * Its positions are then corrected by the difference, leaving it at most one index interval to estimate.
+     * The player stays prepared throughout, nothing is reset or reloaded.
+     *
+     * @return the position to give the player, or -1 if its own estimate should be used
+     */
+    private int indexedPlayerPosition(int position) {
+        SeekIndex index = currentEntry.seekIndex;
+        int playerDuration = player.getDuration();
+        //Looping wraps the player back to its own zero, which a correction can't follow
+        if (looping || index == null || playerDuration <= 0) {
+            return -1;
+        }
+
+        //The player's estimate spreads its duration evenly over the bytes from the first frame on
+        long firstFrame = index.getOffset(0);
+        long audioBytes = index.getFileLength() - firstFrame;
+        if (audioBytes <= 0) {
+            return -1;
+        }
+
+        int entry = index.findEntry(position);
+        int estimatedMs = (int) ((index.getOffset(entry) - firstFrame) * playerDuration / audioBytes);
+        currentEntry.positionCorrectionMs = index.getTimeMs(entry) - estimatedMs;
+        return position - currentEntry.positionCorrectionMs;
+    }
+
+    /**
+     * Looks the index of a cached URL track up once, as its player is prepared, so the duration and seeks come
+     * from the same source for as long as the track is loaded. An index still being built is picked up the
+     * next time the track is loaded.
+     */
+    private void resolveSeekIndex(PlayerPool.Entry entry) {
+        if (entry.key != null && entry.key.startsWith("url:")) {
+            entry.seekIndex = audioCache.getSeekIndex(entry.key.substring("url:".length()));
+        }
+    }
+
+    private void onCurrentPlayerInfo(int what) {
+        if (what == PlayerBackend.INFO_BUFFERING_START) {
+            bufferingStartUptime = SystemClock.uptimeMillis();
+            record(PlaybackEvent.Type.BUFFERING_START, -1, 0, 0);
+        } else if (what == PlayerBackend.INFO_BUFFERING_END && bufferingStartUptime != -1) {
+            recordInterval(PlaybackEvent.Type.BUFFERING_END, bufferingStartUptime);
+            bufferingStartUptime = -1;
+        } else if (what == PlayerBackend.INFO_AUDIO_RENDERING_START) {
+            recordFirstAudio();
+        }
+    }
+
+    private void recordLoadRequested(String key) {
+        metricsSourceKey = key;
+        loadRequestedUptime = SystemClock.uptimeMillis();
+        record(PlaybackEvent.Type.LOAD_REQUESTED, -1, 0, 0);
+
+        //A pooled player is already prepared, which is exactly what the pool is for, so that counts as instant
+        if (isPrepared()) {
+            record(PlaybackEvent.Type.PREPARED, 0, 0, 0);
+            loadRequestedUptime = -1;
+        }
+    }
+
+    private void recordFirstAudio() {
+        if (playRequestedUptime != -1) {
+            recordInterval(PlaybackEvent.Type.FIRST_AUDIO, playRequestedUptime);
+            playRequestedUptime = -1;
+        }
+    }
+
+    private void recordInterval(PlaybackEvent.Type type, long startUptime) {
+        if (startUptime != -1) {
+            record(type, SystemClock.uptimeMillis() - startUptime, 0, 0);
+        }
+    }
+
+    private void record(PlaybackEvent.Type type, long latencyMillis, int errorWhat, int errorExtra) {
+        if (metrics == null) {
+            return;
+        }
+
+        metrics.record(new PlaybackEvent(type, sessionId, metricsSourceKey, SystemClock.uptimeMillis(), latencyMillis,
+                errorWhat, errorExtra));
+    }
+
+    @Override
+    public int getDuration() {
+        if (isPrepared() && currentEntry.seekIndex != null) {
+            return currentEntry.seekIndex.getDurationMs();
+        }
+        return (isPrepared() && player.getDuration() != -1) ? player.getDuration() : 0;
     }
 }
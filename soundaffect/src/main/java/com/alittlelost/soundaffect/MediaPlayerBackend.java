@@ -0,0 +1,178 @@
+package com.alittlelost.soundaffect;
+
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Build;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * PlayerBackend on top of android.media.MediaPlayer, used by the service on devices.
+ */
+
+class MediaPlayerBackend implements PlayerBackend {
+
+    static class Factory implements PlayerBackend.Factory {
+        @Override
+        public PlayerBackend create() {
+            return new MediaPlayerBackend();
+        }
+    }
+
+    private final MediaPlayer mediaPlayer = new MediaPlayer();
+    private Listener listener;
+
+    private void applyAudioAttributes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            AudioAttributes.Builder audioAttributes = new AudioAttributes.Builder();
+            audioAttributes.setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+            audioAttributes.setLegacyStreamType(AudioManager.STREAM_MUSIC);
+            audioAttributes.setUsage(AudioAttributes.USAGE_MEDIA);
+            mediaPlayer.setAudioAttributes(audioAttributes.build());
+        }
+    }
+
+    @Override
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mediaPlayer) {
+                listener.onPrepared(MediaPlayerBackend.this);
+            }
+        });
+
+        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mediaPlayer) {
+                listener.onCompletion(MediaPlayerBackend.this);
+            }
+        });
+
+        mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+                listener.onError(MediaPlayerBackend.this, what, extra);
+                return true;
+            }
+        });
+
+        mediaPlayer.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+            @Override
+            public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+                listener.onInfo(MediaPlayerBackend.this, what, extra);
+                return false;
+            }
+        });
+
+        mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mediaPlayer) {
+                listener.onSeekComplete(MediaPlayerBackend.this);
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        mediaPlayer.setDataSource(path);
+    }
+
+    @Override
+    public void setDataSource(FileDescriptor fd, long offset, long length) throws IOException {
+        mediaPlayer.setDataSource(fd, offset, length);
+    }
+
+    @Override
+    public void setDataSource(CacheDownload download) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            throw new IOException("Reading a download as it is written needs API 23");
+        }
+        mediaPlayer.setDataSource(new CacheDataSource(download));
+    }
+
+    @Override
+    public void setDataSource(byte[] data) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            throw new IOException("In-memory sources need API 23");
+        }
+        mediaPlayer.setDataSource(new ByteArrayDataSource(data));
+    }
+
+    @Override
+    public void prepareAsync() {
+        applyAudioAttributes();
+        mediaPlayer.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        mediaPlayer.start();
+
+        //There is no audio rendering callback before O, the start call is the closest we can get
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O && listener != null) {
+            listener.onInfo(this, INFO_AUDIO_RENDERING_START, 0);
+        }
+    }
+
+    @Override
+    public void pause() {
+        mediaPlayer.pause();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            //Plain seekTo() only goes to the previous sync frame from O on
+            mediaPlayer.seekTo(positionMs, MediaPlayer.SEEK_CLOSEST);
+        } else {
+            mediaPlayer.seekTo(positionMs);
+        }
+    }
+
+    @Override
+    public void seekToClosestSync(int positionMs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mediaPlayer.seekTo(positionMs, MediaPlayer.SEEK_CLOSEST_SYNC);
+        } else {
+            mediaPlayer.seekTo(positionMs);
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mediaPlayer.isPlaying();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return mediaPlayer.getDuration();
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        mediaPlayer.setLooping(looping);
+    }
+
+    @Override
+    public void setNextPlayer(PlayerBackend next) {
+        mediaPlayer.setNextMediaPlayer(next != null ? ((MediaPlayerBackend) next).mediaPlayer : null);
+    }
+
+    @Override
+    public void reset() {
+        mediaPlayer.reset();
+    }
+
+    @Override
+    public void release() {
+        mediaPlayer.release();
+    }
+}
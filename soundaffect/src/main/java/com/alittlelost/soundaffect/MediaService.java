@@ -1,17 +1,21 @@
 package com.alittlelost.soundaffect;
 
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
+import android.content.res.Resources;
+import android.net.Uri;
 import android.os.Binder;
-import android.os.Build;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created by seanashmore on 27/12/2017.
  */
@@ -21,7 +25,37 @@ public class MediaService extends Service {
     public static final String ACTION_PAUSE = "ACTION_PAUSE";
     public static final String ACTION_PLAY = "ACTION_PLAY";
 
-    MediaManager mediaManager;
+    AudioCache audioCache;
+    Prefetcher prefetcher;
+    PlayerPool playerPool;
+
+    //Every pooled player comes from here, a SimulatedPlayerBackend.Factory runs the service without real players
+    PlayerBackend.Factory playerBackendFactory = new MediaPlayerBackend.Factory();
+    SoundPoolClips soundPoolClips;
+    PcmClips pcmClips;
+
+    //Created on first use, most apps never mix. Main thread only
+    private MixerEngine mixerEngine;
+    WaveformLoader waveformLoader;
+    MetadataIndex metadataIndex;
+
+    //Every player operation of every session runs on this one thread
+    PlayerCommandExecutor playerExecutor;
+    PlaybackMetrics playbackMetrics;
+    NotificationController notificationController;
+
+    //One session per SoundAffect (or other client), all sharing the pools and threads above
+    private final Map<String, PlaybackSession> sessions = new HashMap<>();
+
+    //Sessions holding a pooled player, least recently used first. Player thread only
+    private final LinkedHashSet<PlaybackSession> playerHolders = new LinkedHashSet<>();
+
+    //The session that played last, notification controls act on this one
+    private volatile PlaybackSession activeSession;
+    private volatile FocusPolicy focusPolicy = FocusPolicy.PAUSE_OTHERS;
+
+    //Source whose metadata the notification last asked for, so each one is only requested once
+    private volatile String requestedMetadataKey;
 
     private final IBinder mBinder = new LocalBinder();
 
@@ -31,107 +65,419 @@ public class MediaService extends Service {
         }
     }
 
+    //Called on the player thread
+    private final PlaybackSession.Host sessionHost = new PlaybackSession.Host() {
+        @Override
+        public void onSessionPlaying(PlaybackSession session) {
+            activeSession = session;
+            updateNotification();
+
+            if (focusPolicy == FocusPolicy.PAUSE_OTHERS) {
+                synchronized (sessions) {
+                    for (PlaybackSession other : sessions.values()) {
+                        if (other != session && other.isPlaying()) {
+                            other.pause();
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onSessionHoldingPlayer(PlaybackSession session) {
+            playerHolders.remove(session);
+            playerHolders.add(session);
+            suspendIdleSessions(session);
+        }
+
+        @Override
+        public void onSessionStateChanged(PlaybackSession session) {
+            if (session == activeSession) {
+                updateNotification();
+            }
+        }
+    };
+
+    private final MetadataIndex.OnMetadataLoadedListener notificationMetadataListener =
+            new MetadataIndex.OnMetadataLoadedListener() {
+                @Override
+                public void onMetadataLoaded(String sourceKey, TrackMetadata metadata) {
+                    updateNotification();
+                }
+            };
+
     @Override
     public void onCreate() {
         super.onCreate();
-        mediaManager = new MediaManager(this);
+        audioCache = new AudioCache(this);
+        prefetcher = new Prefetcher(audioCache);
+        playerPool = new PlayerPool(playerBackendFactory);
+        soundPoolClips = new SoundPoolClips(this);
+        pcmClips = new PcmClips(this);
+        waveformLoader = new WaveformLoader(this, audioCache);
+        metadataIndex = new MetadataIndex(this, audioCache);
+        playerExecutor = new PlayerCommandExecutor();
+        playbackMetrics = new PlaybackMetrics();
+        notificationController = new NotificationController(this, new NotificationController.Callback() {
+            @Override
+            public void onPlay() {
+                PlaybackSession session = activeSession;
+                if (session != null && !session.isPlaying()) {
+                    session.play();
+                }
+            }
+
+            @Override
+            public void onPause() {
+                PlaybackSession session = activeSession;
+                if (session != null && session.isPlaying()) {
+                    session.pause();
+                }
+            }
+        });
+
+        soundPoolClips.setOnClipLoadedListener(new SoundPoolClips.OnClipLoadedListener() {
+            @Override
+            public void onClipLoaded(int resourceId) {
+                refreshSessions();
+            }
+        });
+        pcmClips.setOnClipLoadedListener(new PcmClips.OnClipLoadedListener() {
+            @Override
+            public void onClipLoaded(int resourceId) {
+                refreshSessions();
+            }
+        });
+    }
+
+    private void refreshSessions() {
+        synchronized (sessions) {
+            for (PlaybackSession session : sessions.values()) {
+                session.refreshState();
+            }
+        }
     }
 
-    @Nullable
     @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (sessions) {
+            for (PlaybackSession session : sessions.values()) {
+                session.release();
+            }
+            sessions.clear();
+        }
+        activeSession = null;
+        notificationController.release();
+        if (mixerEngine != null) {
+            mixerEngine.release();
+            mixerEngine = null;
+        }
+
+        //Queued behind the session releases, then the thread winds down
+        playerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                playerHolders.clear();
+                soundPoolClips.release();
+                pcmClips.shutdown();
+                playerPool.releaseAll();
+            }
+        });
+        playerExecutor.shutdown();
+        prefetcher.cancelAll();
+        audioCache.shutdown();
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        Notification.Builder notificationBuilder;
-        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel mChannel = new NotificationChannel("101", "Media-Notifications", NotificationManager.IMPORTANCE_LOW);
-            notificationManager.createNotificationChannel(mChannel);
+        //Tiered: the more pressure, the more goes. Everything released is rebuilt on demand
+        boolean critical = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+        boolean low = critical || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+        releaseIdleResources(low, critical);
+    }
 
-            notificationBuilder =
-                    new Notification.Builder(this, mChannel.getId());
-        } else {
-            notificationBuilder =
-                    new Notification.Builder(this);
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        releaseIdleResources(true, true);
+    }
+
+    /**
+     * Always drops decoded waveforms and all but one idle pooled player.
+     * When low, also drops clips held in memory and decoded PCM clips that aren't playing, and suspends every
+     * session that isn't playing, handing back all idle players;
+     * a suspended session reloads its track and position the next time it is used.
+     * When critical, also stops prefetching.
+     */
+    private void releaseIdleResources(final boolean low, boolean critical) {
+        waveformLoader.clearMemoryCache();
+        if (low) {
+            audioCache.clearMemory();
+            pcmClips.clear();
         }
 
-        if (intent.getAction() != null) {
+        playerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (low) {
+                    //suspend() leaves playing sessions alone
+                    for (PlaybackSession session : new ArrayList<>(playerHolders)) {
+                        session.suspend();
+                        if (!session.holdsPlayer()) {
+                            playerHolders.remove(session);
+                        }
+                    }
+                }
+                playerPool.trimTo(low ? 0 : 1);
+            }
+        });
+
+        if (critical) {
+            prefetcher.cancelAll();
+        }
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    //Only for intents built by older clients, the notification and media session call the sessions directly
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        PlaybackSession session = activeSession;
+        if (intent != null && intent.getAction() != null && session != null) {
             if (intent.getAction().equals(ACTION_PAUSE)) {
-                if (mediaManager.isPlaying()) {
-                    mediaManager.pause();
+                if (session.isPlaying()) {
+                    session.pause();
                 }
             }
 
             if (intent.getAction().equals(ACTION_PLAY)) {
-                if (!mediaManager.isPlaying()) {
-                    mediaManager.play();
+                if (!session.isPlaying()) {
+                    session.play();
                 }
             }
         }
 
+        return START_NOT_STICKY;
+    }
 
-        Intent pauseIntent = new Intent(this, MediaService.class);
-        pauseIntent.setAction(ACTION_PAUSE);
-        PendingIntent pausePendingIntent = PendingIntent.getService(this, 101, pauseIntent, 0);
+    /**
+     * Any thread. Brings the notification in line with the active session: its track's title and artist
+     * once the metadata index has them (the file or resource name until then) and its play state.
+     */
+    private void updateNotification() {
+        PlaybackSession session = activeSession;
+        String sourceKey = session != null ? session.getCurrentSourceKey() : null;
+        if (sourceKey == null) {
+            notificationController.update(null, null, false);
+            return;
+        }
 
-        Intent playIntent = new Intent(this, MediaService.class);
-        playIntent.setAction(ACTION_PLAY);
-        PendingIntent playPendingIntent = PendingIntent.getService(this, 101, playIntent, 0);
+        TrackMetadata metadata = metadataIndex.getCached(sourceKey);
+        if (metadata == null && !sourceKey.equals(requestedMetadataKey)) {
+            requestedMetadataKey = sourceKey;
+            metadataIndex.load(sourceKey, notificationMetadataListener);
+        }
 
+        String title = metadata != null ? metadata.getTitle() : null;
+        notificationController.update(title != null ? title : getDisplayName(sourceKey),
+                metadata != null ? metadata.getArtist() : null, session.isPlaying());
+    }
 
-        notificationBuilder.setContentTitle("Title")
-                .setContentText("Message")
-                .setSmallIcon(R.drawable.ic_skip_previous_black_24dp)
-                .setTicker("Ticker text")
-                .addAction(R.drawable.ic_pause_circle_outline_black_24dp, "Pause", pausePendingIntent)
-                .addAction(R.drawable.ic_play_circle_outline_black_24dp, "Play", playPendingIntent);
+    private String getDisplayName(String sourceKey) {
+        if (sourceKey.startsWith("url:")) {
+            String name = Uri.parse(sourceKey.substring(4)).getLastPathSegment();
+            return name != null ? name : sourceKey.substring(4);
+        }
 
-        startForeground(101, notificationBuilder.build());
+        try {
+            return getResources().getResourceEntryName(Integer.parseInt(sourceKey.substring(4)));
+        } catch (Resources.NotFoundException e) {
+            return getString(R.string.app_name);
+        }
+    }
 
-        return START_NOT_STICKY;
+    /**
+     * @return the session with this id, created on first use
+     */
+    PlaybackSession getSession(String id) {
+        synchronized (sessions) {
+            PlaybackSession session = sessions.get(id);
+            if (session == null) {
+                session = new PlaybackSession(id, this, sessionHost, playerExecutor, audioCache, playerPool,
+                        soundPoolClips, pcmClips, playbackMetrics);
+                sessions.put(id, session);
+            }
+            return session;
+        }
+    }
+
+    void releaseSession(String id) {
+        final PlaybackSession session;
+        synchronized (sessions) {
+            session = sessions.remove(id);
+        }
+        if (session == null) {
+            return;
+        }
+
+        session.release();
+        if (activeSession == session) {
+            activeSession = null;
+            updateNotification();
+        }
+        playerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                playerHolders.remove(session);
+            }
+        });
+    }
+
+    void setFocusPolicy(FocusPolicy focusPolicy) {
+        this.focusPolicy = focusPolicy;
+    }
+
+    //Keeps the number of sessions holding players within the pool size by suspending the least recently used idle ones
+    private void suspendIdleSessions(PlaybackSession keep) {
+        Iterator<PlaybackSession> iterator = playerHolders.iterator();
+        while (playerHolders.size() > playerPool.getMaxPlayers() && iterator.hasNext()) {
+            PlaybackSession session = iterator.next();
+            if (!session.holdsPlayer()) {
+                iterator.remove();
+            } else if (session != keep && !session.isPlaying()) {
+                session.suspend();
+                iterator.remove();
+            }
+        }
+    }
+
+    //Loads the waveform of a source, the listener gets the source key to match it up
+    void loadWaveform(String sourceKey, int bucketCount, WaveformLoader.OnWaveformLoadedListener listener) {
+        if (sourceKey.startsWith("url:")) {
+            waveformLoader.loadUrl(sourceKey.substring(4), bucketCount, listener);
+        } else {
+            waveformLoader.loadResource(Integer.parseInt(sourceKey.substring(4)), bucketCount, listener);
+        }
+    }
+
+    //Duration and format of a source without preparing it, the listener gets the source key to match it up
+    void loadMetadata(String sourceKey, MetadataIndex.OnMetadataLoadedListener listener) {
+        metadataIndex.load(sourceKey, listener);
+    }
+
+    TrackMetadata getCachedMetadata(String sourceKey) {
+        return metadataIndex.getCached(sourceKey);
+    }
+
+    void setCacheSize(long maxBytes) {
+        audioCache.setMaxBytes(maxBytes);
+    }
+
+    void setCacheEvictionPolicy(CacheEvictionPolicy evictionPolicy) {
+        audioCache.setEvictionPolicy(evictionPolicy);
+    }
+
+    void clearCache() {
+        audioCache.clear();
+    }
+
+    void setStreamingProxyEnabled(boolean enabled) {
+        audioCache.setStreamingProxyEnabled(enabled);
+    }
+
+    void setStreamingProxyCacheSize(long maxBytes) {
+        audioCache.setStreamingProxyMaxBytes(maxBytes);
+    }
+
+    void setClipMemorySize(int maxBytes) {
+        audioCache.setMemoryMaxBytes(maxBytes);
+    }
+
+    ClipCacheStats getClipCacheStats() {
+        return audioCache.getMemoryStats();
     }
 
-    void loadUrl(String url) {
-        mediaManager.loadUrl(url);
+    void setMaxPooledPlayers(final int maxPlayers) {
+        //Shrinking releases players, which belongs on the player thread with everything else touching them
+        playerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                playerPool.setMaxPlayers(maxPlayers);
+            }
+        });
+    }
+
+    PlayerPoolStats getPlayerPoolStats() {
+        return playerPool.getStats();
+    }
+
+    PlaybackMetrics getPlaybackMetrics() {
+        return playbackMetrics;
+    }
+
+    void addMetricsListener(PlaybackMetricsListener listener) {
+        playbackMetrics.addListener(listener);
     }
 
-    void loadResource(int resourceId) {
-        mediaManager.loadResource(resourceId);
+    void removeMetricsListener(PlaybackMetricsListener listener) {
+        playbackMetrics.removeListener(listener);
     }
 
-    boolean isPlaying() {
-        return mediaManager.isPlaying();
+    void prefetch(String url) {
+        prefetcher.prefetch(url);
     }
 
-    boolean isPrepared() {
-        return mediaManager.isPrepared();
+    void prefetch(List<String> urls) {
+        prefetcher.prefetch(urls);
     }
 
-    void play() {
-        mediaManager.play();
+    void cancelPrefetch(String url) {
+        prefetcher.cancel(url);
     }
 
-    void pause() {
-        mediaManager.pause();
+    void cancelAllPrefetches() {
+        prefetcher.cancelAll();
     }
 
-    void reset() {
-        mediaManager.reset();
+    void setPrefetchBytes(long prefetchBytes) {
+        prefetcher.setPrefetchBytes(prefetchBytes);
     }
 
-    int getDuration() {
-        return mediaManager.getDuration();
+    void crossfadeTo(String url, int durationMs) {
+        getMixerEngine().crossfadeTo(url, durationMs);
     }
 
-    void setCurrentPosition(int currentPosition) {
-        mediaManager.setCurrentPosition(currentPosition);
+    void crossfadeTo(int resourceId, int durationMs) {
+        getMixerEngine().crossfadeTo(resourceId, durationMs);
     }
 
-    int getCurrentPosition() {
-        return mediaManager.getCurrentPosition();
+    void playOverlay(String url, float gain) {
+        getMixerEngine().playOverlay(url, gain);
+    }
+
+    void playOverlay(int resourceId, float gain) {
+        getMixerEngine().playOverlay(resourceId, gain);
+    }
+
+    void stopMixer(int fadeMs) {
+        if (mixerEngine != null) {
+            mixerEngine.stop(fadeMs);
+        }
+    }
+
+    private MixerEngine getMixerEngine() {
+        if (mixerEngine == null) {
+            mixerEngine = new MixerEngine(this, audioCache);
+        }
+        return mixerEngine;
     }
 }
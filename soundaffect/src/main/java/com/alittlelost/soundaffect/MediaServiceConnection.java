@@ -0,0 +1,108 @@
+package com.alittlelost.soundaffect;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One process-wide binding to MediaService, shared by every SoundAffect.
+ * The service is started and bound once, with the application context, and unbound when the last client leaves.
+ * Must only be used from the main thread.
+ */
+
+class MediaServiceConnection implements ServiceConnection {
+
+    interface Client {
+        void onServiceConnected(MediaService mediaService);
+
+        void onServiceDisconnected();
+    }
+
+    private static MediaServiceConnection instance;
+
+    private final Context context;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final List<Client> clients = new ArrayList<>();
+    private MediaService mediaService;
+    private boolean bound = false;
+
+    private MediaServiceConnection(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    static MediaServiceConnection getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaServiceConnection(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a client, binding the service if this is the first one.
+     * The client is always called back asynchronously, even if the service is already connected.
+     *
+     * @return false if the service could not be bound
+     */
+    boolean bind(final Client client) {
+        if (!clients.contains(client)) {
+            clients.add(client);
+        }
+
+        if (mediaService != null) {
+            mainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mediaService != null && clients.contains(client)) {
+                        client.onServiceConnected(mediaService);
+                    }
+                }
+            });
+            return true;
+        }
+
+        if (!bound) {
+            ComponentName componentName = context.startService(new Intent(context, MediaService.class));
+            if (componentName != null) {
+                bound = context.bindService(new Intent(context, MediaService.class), this, Context.BIND_AUTO_CREATE);
+            }
+        }
+
+        if (!bound) {
+            clients.remove(client);
+        }
+        return bound;
+    }
+
+    void unbind(Client client) {
+        clients.remove(client);
+
+        if (clients.isEmpty() && bound) {
+            context.unbindService(this);
+            bound = false;
+            mediaService = null;
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        mediaService = ((MediaService.LocalBinder) service).getService();
+        for (Client client : new ArrayList<>(clients)) {
+            client.onServiceConnected(mediaService);
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        mediaService = null;
+        for (Client client : new ArrayList<>(clients)) {
+            client.onServiceDisconnected();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duration, bitrate, sample rate, channel count, title and artist of every source seen so far, keyed by source key.
+ * Values are read once on a background pool with MediaMetadataRetriever and MediaExtractor, kept in memory
+ * and persisted to a single small index file, so a list of tracks can show durations without preparing players.
+ */
+
+class MetadataIndex {
+
+    interface OnMetadataLoadedListener {
+        //Called on the main thread
+        void onMetadataLoaded(String sourceKey, TrackMetadata metadata);
+    }
+
+    private static final String TAG = "MetadataIndex";
+    private static final String FILE_NAME = "soundaffect-metadata.index";
+    private static final int FILE_VERSION = 2;
+    private static final int THREADS = 2;
+
+    private final Context context;
+    private final AudioCache audioCache;
+    private final File indexFile;
+    private final ExecutorService executor;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+    //Guarded by this. Entries are never evicted, each one is only a few ints and two short strings
+    private final Map<String, TrackMetadata> entries = new HashMap<>();
+    private final Map<String, List<OnMetadataLoadedListener>> pending = new HashMap<>();
+    private final Set<String> failed = new HashSet<>();
+    private boolean writeScheduled = false;
+
+    //Guards reading the file, so lookups that start while it is being read wait for it instead of extracting
+    private final Object indexLock = new Object();
+    private boolean loadedFromDisk = false;
+
+    MetadataIndex(Context context, AudioCache audioCache) {
+        this.context = context;
+        this.audioCache = audioCache;
+        this.indexFile = new File(context.getCacheDir(), FILE_NAME);
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readIndex();
+            }
+        });
+    }
+
+    /**
+     * @return the metadata if it is already in memory, null otherwise
+     */
+    synchronized TrackMetadata getCached(String sourceKey) {
+        return entries.get(sourceKey);
+    }
+
+    /**
+     * Calls back with the metadata of a source, straight away if it is already known.
+     * Sources that couldn't be read are not retried until the process restarts, and their listeners are never called.
+     */
+    void load(final String sourceKey, OnMetadataLoadedListener listener) {
+        synchronized (this) {
+            TrackMetadata cached = entries.get(sourceKey);
+            if (cached != null) {
+                if (listener != null) {
+                    listener.onMetadataLoaded(sourceKey, cached);
+                }
+                return;
+            }
+            if (failed.contains(sourceKey)) {
+                return;
+            }
+
+            List<OnMetadataLoadedListener> listeners = pending.get(sourceKey);
+            if (listeners != null) {
+                if (listener != null) {
+                    listeners.add(listener);
+                }
+                return;
+            }
+
+            listeners = new ArrayList<>();
+            if (listener != null) {
+                listeners.add(listener);
+            }
+            pending.put(sourceKey, listeners);
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readIndex();
+
+                TrackMetadata metadata = getCached(sourceKey);
+                if (metadata == null) {
+                    metadata = extract(sourceKey);
+                }
+                deliver(sourceKey, metadata);
+            }
+        });
+    }
+
+    private void deliver(final String sourceKey, final TrackMetadata metadata) {
+        final List<OnMetadataLoadedListener> listeners;
+        synchronized (this) {
+            listeners = pending.remove(sourceKey);
+            if (metadata == null) {
+                failed.add(sourceKey);
+                return;
+            }
+            if (!entries.containsKey(sourceKey)) {
+                entries.put(sourceKey, metadata);
+                scheduleWrite();
+            }
+        }
+
+        if (listeners == null || listeners.isEmpty()) {
+            return;
+        }
+
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnMetadataLoadedListener listener : listeners) {
+                    listener.onMetadataLoaded(sourceKey, metadata);
+                }
+            }
+        });
+    }
+
+    private TrackMetadata extract(String sourceKey) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        MediaExtractor extractor = new MediaExtractor();
+        AssetFileDescriptor afd = null;
+        try {
+            if (sourceKey.startsWith("url:")) {
+                String url = sourceKey.substring(4);
+                File cachedFile = audioCache.get(url);
+                if (cachedFile != null) {
+                    retriever.setDataSource(cachedFile.getAbsolutePath());
+                    extractor.setDataSource(cachedFile.getAbsolutePath());
+                } else {
+                    //Only the header is fetched, not the whole track
+                    retriever.setDataSource(url, new HashMap<String, String>());
+                    extractor.setDataSource(url);
+                }
+            } else {
+                afd = context.getResources().openRawResourceFd(Integer.parseInt(sourceKey.substring(4)));
+                retriever.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+                extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            }
+
+            int durationMs = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            int bitrate = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+            String title = emptyToNull(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE));
+            String artist = emptyToNull(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST));
+            int sampleRate = 0;
+            int channelCount = 0;
+
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    sampleRate = format.containsKey(MediaFormat.KEY_SAMPLE_RATE)
+                            ? format.getInteger(MediaFormat.KEY_SAMPLE_RATE) : 0;
+                    channelCount = format.containsKey(MediaFormat.KEY_CHANNEL_COUNT)
+                            ? format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) : 0;
+                    break;
+                }
+            }
+
+            return durationMs > 0 ? new TrackMetadata(durationMs, bitrate, sampleRate, channelCount, title, artist)
+                    : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read metadata: " + e);
+            return null;
+        } catch (RuntimeException e) {
+            //Both readers report unsupported or unreachable content with runtime exceptions
+            Log.e(TAG, "Failed to read metadata: " + e);
+            return null;
+        } finally {
+            retriever.release();
+            extractor.release();
+            closeQuietly(afd);
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    //Called with the lock held, batches every entry added before the write runs into one rewrite of the file
+    private void scheduleWrite() {
+        if (writeScheduled) {
+            return;
+        }
+
+        writeScheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeIndex();
+            }
+        });
+    }
+
+    //Background threads only, the first call reads the file and later ones return once it has been read
+    private void readIndex() {
+        synchronized (indexLock) {
+            if (loadedFromDisk) {
+                return;
+            }
+            loadedFromDisk = true;
+
+            Map<String, TrackMetadata> read = readIndexFile();
+            synchronized (this) {
+                //Anything extracted while the file was being read is at least as fresh
+                for (Map.Entry<String, TrackMetadata> entry : read.entrySet()) {
+                    if (!entries.containsKey(entry.getKey())) {
+                        entries.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private Map<String, TrackMetadata> readIndexFile() {
+        Map<String, TrackMetadata> read = new HashMap<>();
+        if (!indexFile.exists()) {
+            return read;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != FILE_VERSION) {
+                return read;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String sourceKey = in.readUTF();
+                read.put(sourceKey, new TrackMetadata(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        emptyToNull(in.readUTF()), emptyToNull(in.readUTF())));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read metadata index: " + e);
+        } finally {
+            closeQuietly(in);
+        }
+        return read;
+    }
+
+    private void writeIndex() {
+        Map<String, TrackMetadata> snapshot;
+        synchronized (this) {
+            writeScheduled = false;
+            snapshot = new HashMap<>(entries);
+        }
+
+        //Written beside the index and renamed over it, so a crash mid-write never leaves a torn file
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, TrackMetadata> entry : snapshot.entrySet()) {
+                TrackMetadata metadata = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(metadata.getDurationMs());
+                out.writeInt(metadata.getBitrate());
+                out.writeInt(metadata.getSampleRate());
+                out.writeInt(metadata.getChannelCount());
+                //Missing tags are written empty
+                out.writeUTF(metadata.getTitle() != null ? metadata.getTitle() : "");
+                out.writeUTF(metadata.getArtist() != null ? metadata.getArtist() : "");
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(indexFile)) {
+                Log.e(TAG, "Failed to replace metadata index");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write metadata index: " + e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    void clear() {
+        synchronized (this) {
+            entries.clear();
+            failed.clear();
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (indexFile.exists() && !indexFile.delete()) {
+                    Log.e(TAG, "Failed to delete metadata index");
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.alittlelost.soundaffect;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sums up to MAX_CHANNELS MixerChannels into one interleaved 16 bit output buffer.
+ * Channels are added from any thread into fixed slots and dropped by the mixing thread when they finish.
+ * mix() runs on a real-time audio thread: no locks, and every buffer it uses is allocated up front.
+ */
+
+class Mixer {
+
+    static final int MAX_CHANNELS = 8;
+
+    private final int channelsPerFrame;
+    private final int maxFrames;
+    private final AtomicReferenceArray<MixerChannel> slots = new AtomicReferenceArray<>(MAX_CHANNELS);
+
+    //Mixing thread only
+    private final float[] mix;
+    private final short[] scratch;
+
+    Mixer(int channelsPerFrame, int maxFrames) {
+        this.channelsPerFrame = channelsPerFrame;
+        this.maxFrames = maxFrames;
+        mix = new float[maxFrames * channelsPerFrame];
+        scratch = new short[maxFrames * channelsPerFrame];
+    }
+
+    int getChannelsPerFrame() {
+        return channelsPerFrame;
+    }
+
+    int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * @return false if every slot is taken
+     */
+    boolean add(MixerChannel channel) {
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            if (slots.compareAndSet(i, null, channel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Cancels and drops every channel, from any thread
+    void clear() {
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            MixerChannel channel = slots.getAndSet(i, null);
+            if (channel != null) {
+                channel.cancel();
+            }
+        }
+    }
+
+    boolean isIdle() {
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            if (slots.get(i) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mixing thread only. Writes frames frames (at most getMaxFrames()) of every channel summed,
+     * clipped to 16 bits, silence where nothing is playing.
+     */
+    void mix(short[] out, int frames) {
+        int samples = frames * channelsPerFrame;
+        for (int i = 0; i < samples; i++) {
+            mix[i] = 0;
+        }
+
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            MixerChannel channel = slots.get(i);
+            if (channel != null && !channel.mixInto(mix, scratch, frames, channelsPerFrame)) {
+                slots.compareAndSet(i, channel, null);
+            }
+        }
+
+        for (int i = 0; i < samples; i++) {
+            int value = Math.round(mix[i]);
+            out[i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE : (value < Short.MIN_VALUE ? Short.MIN_VALUE : value));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * One source in a Mixer: the ring its producer decodes into, and a gain that ramps linearly per frame.
+ * Gain requests may come from any thread. Each one is packed into a single volatile long, so the
+ * mixing thread always sees a whole request and picks it up at its next buffer.
+ */
+
+class MixerChannel {
+
+    private static final long STOP_AFTER_RAMP = 0x80000000L;
+    private static final long NO_REQUEST = -1;
+
+    final PcmRingBuffer ring;
+
+    //Target gain bits, ramp length in frames and the stop flag, written by control threads
+    private volatile long request = NO_REQUEST;
+
+    //Written by the producer once everything it will ever write is in the ring
+    private volatile boolean inputEnded = false;
+
+    //Written by the mixing thread once the channel has nothing more to play, or by cancel()
+    private volatile boolean finished = false;
+
+    //Mixing thread only
+    private long appliedRequest = NO_REQUEST;
+    private float gain;
+    private float targetGain;
+    private float gainStep = 0;
+    private int rampFramesLeft = 0;
+    private boolean stopAfterRamp = false;
+
+    MixerChannel(int capacitySamples, float initialGain) {
+        ring = new PcmRingBuffer(capacitySamples);
+        gain = initialGain;
+        targetGain = initialGain;
+    }
+
+    /**
+     * Moves the gain to target over rampFrames frames, then stops the channel if stopAfterRamp.
+     * Replaces any ramp still in progress, starting from wherever that one had got to.
+     */
+    void rampTo(float target, int rampFrames, boolean stopAfterRamp) {
+        request = ((long) Float.floatToIntBits(target) << 32) | (Math.max(0, rampFrames) & 0x7fffffffL)
+                | (stopAfterRamp ? STOP_AFTER_RAMP : 0);
+    }
+
+    //Producer only, after its last write
+    void endInput() {
+        inputEnded = true;
+    }
+
+    //Ends the channel at once, from any thread
+    void cancel() {
+        finished = true;
+    }
+
+    //True once the mixer has dropped the channel, producers stop filling it
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Mixing thread only. Adds up to frames frames of this channel, at its gain, into mix.
+     * A producer that has fallen behind just leaves a gap, the channel stays in the mix.
+     *
+     * @param scratch at least frames * channelsPerFrame samples
+     * @return false once the channel has finished and can be dropped
+     */
+    boolean mixInto(float[] mix, short[] scratch, int frames, int channelsPerFrame) {
+        if (finished) {
+            return false;
+        }
+        applyRequest();
+
+        //Read before the ring, so every sample the producer wrote before ending is counted
+        boolean ended = inputEnded;
+        int read = ring.read(scratch, 0, frames * channelsPerFrame);
+        int readFrames = read / channelsPerFrame;
+
+        int sample = 0;
+        for (int frame = 0; frame < readFrames; frame++) {
+            if (rampFramesLeft > 0) {
+                rampFramesLeft--;
+                gain = rampFramesLeft == 0 ? targetGain : gain + gainStep;
+            }
+            for (int channel = 0; channel < channelsPerFrame; channel++, sample++) {
+                mix[sample] += scratch[sample] * gain;
+            }
+        }
+
+        //A fade out ends the channel even if its producer is behind
+        if ((stopAfterRamp && rampFramesLeft == 0) || (ended && ring.getAvailable() == 0)) {
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void applyRequest() {
+        long latest = request;
+        if (latest == appliedRequest) {
+            return;
+        }
+
+        appliedRequest = latest;
+        targetGain = Float.intBitsToFloat((int) (latest >>> 32));
+        rampFramesLeft = (int) (latest & 0x7fffffffL);
+        stopAfterRamp = (latest & STOP_AFTER_RAMP) != 0;
+        if (rampFramesLeft == 0) {
+            gain = targetGain;
+        } else {
+            gainStep = (targetGain - gain) / rampFramesLeft;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaExtractor;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays several sources at once through one AudioTrack: a music track that crossfades into the next one,
+ * with overlays such as effects on top. Each source decodes on its own thread into a MixerChannel's ring,
+ * and a single audio priority thread mixes them and writes the result, so no two native players ever
+ * compete for the output. The audio thread stops and releases the track once nothing has played for a while.
+ */
+
+class MixerEngine implements Runnable {
+
+    private static final String TAG = "MixerEngine";
+    private static final int CHANNELS_PER_FRAME = 2;
+
+    //How far each decoder may run ahead of the audio thread
+    private static final int RING_MS = 500;
+
+    //How long a decoder with a full ring sleeps before trying again
+    private static final long PRODUCER_WAIT_MS = 5;
+
+    //Silence for this long stops the audio thread and frees the track
+    private static final long IDLE_TIMEOUT_MS = 2000;
+
+    private final Context context;
+    private final AudioCache audioCache;
+    private final int sampleRate;
+    private final int bufferBytes;
+    private final Mixer mixer;
+    private final ExecutorService decoders;
+    private final Object lock = new Object();
+
+    //Guarded by lock
+    private MixerChannel music;
+    private final List<MixerChannel> channels = new ArrayList<>();
+    private volatile boolean running = false;
+    private Thread thread;
+
+    private interface SourceOpener {
+        void open(MediaExtractor extractor) throws IOException;
+    }
+
+    MixerEngine(Context context, AudioCache audioCache) {
+        this.context = context;
+        this.audioCache = audioCache;
+
+        //The device's own rate spares the platform a second resampling pass
+        sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        int frameBytes = CHANNELS_PER_FRAME * PcmClip.BYTES_PER_SAMPLE;
+        int minBufferBytes = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        bufferBytes = Math.max(minBufferBytes, frameBytes * 256) * 2;
+
+        //A quarter of the buffer per write keeps it topped up while gain changes are heard within one chunk
+        mixer = new Mixer(CHANNELS_PER_FRAME, bufferBytes / 4 / frameBytes);
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(Mixer.MAX_CHANNELS, Mixer.MAX_CHANNELS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        decoders = threadPoolExecutor;
+    }
+
+    //Fades the current music out and url in over durationMs, both at once
+    void crossfadeTo(String url, int durationMs) {
+        crossfadeTo(urlOpener(url), durationMs);
+    }
+
+    void crossfadeTo(int resourceId, int durationMs) {
+        crossfadeTo(resourceOpener(resourceId), durationMs);
+    }
+
+    //Plays url once on top of whatever else is playing
+    void playOverlay(String url, float gain) {
+        synchronized (lock) {
+            start(urlOpener(url), gain);
+        }
+    }
+
+    void playOverlay(int resourceId, float gain) {
+        synchronized (lock) {
+            start(resourceOpener(resourceId), gain);
+        }
+    }
+
+    //Fades out and ends the music and every overlay
+    void stop(int fadeMs) {
+        synchronized (lock) {
+            for (MixerChannel channel : channels) {
+                channel.rampTo(0, toFrames(fadeMs), true);
+            }
+            channels.clear();
+            music = null;
+        }
+    }
+
+    void release() {
+        synchronized (lock) {
+            mixer.clear();
+            channels.clear();
+            music = null;
+            running = false;
+        }
+        decoders.shutdown();
+    }
+
+    private void crossfadeTo(SourceOpener opener, int durationMs) {
+        synchronized (lock) {
+            int rampFrames = toFrames(durationMs);
+            if (music != null) {
+                music.rampTo(0, rampFrames, true);
+                channels.remove(music);
+            }
+
+            music = start(opener, 0);
+            if (music != null) {
+                music.rampTo(1, rampFrames, false);
+            }
+        }
+    }
+
+    //With the lock held
+    private MixerChannel start(final SourceOpener opener, float gain) {
+        //Channels that have played out no longer need stopping
+        Iterator<MixerChannel> iterator = channels.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+
+        final MixerChannel channel = new MixerChannel(toFrames(RING_MS) * CHANNELS_PER_FRAME, gain);
+        if (!mixer.add(channel)) {
+            Log.e(TAG, "All " + Mixer.MAX_CHANNELS + " mixer channels are playing");
+            return null;
+        }
+        channels.add(channel);
+
+        decoders.execute(new Runnable() {
+            @Override
+            public void run() {
+                decode(channel, opener);
+            }
+        });
+
+        running = true;
+        if (thread == null) {
+            thread = new Thread(this, "soundaffect-mixer");
+            thread.start();
+        }
+        return channel;
+    }
+
+    private int toFrames(int durationMs) {
+        return (int) ((long) durationMs * sampleRate / 1000);
+    }
+
+    private SourceOpener urlOpener(final String url) {
+        return new SourceOpener() {
+            @Override
+            public void open(MediaExtractor extractor) throws IOException {
+                File file = audioCache.get(url);
+                if (file != null) {
+                    extractor.setDataSource(file.getAbsolutePath());
+                } else {
+                    extractor.setDataSource(url);
+                }
+            }
+        };
+    }
+
+    private SourceOpener resourceOpener(final int resourceId) {
+        return new SourceOpener() {
+            @Override
+            public void open(MediaExtractor extractor) throws IOException {
+                AssetFileDescriptor afd = context.getResources().openRawResourceFd(resourceId);
+                try {
+                    extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+                } finally {
+                    afd.close();
+                }
+            }
+        };
+    }
+
+    //Decoder thread. Format conversion happens here so the audio thread only has to sum
+    private void decode(final MixerChannel channel, SourceOpener opener) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            opener.open(extractor);
+            PcmDecoder.decode(extractor, new PcmDecoder.Sink() {
+                private PcmConverter converter;
+                private int channelCount;
+                private short[] input = new short[0];
+                private short[] output = new short[0];
+
+                @Override
+                public boolean onFormat(int sourceRate, int sourceChannels) {
+                    if (sourceChannels < 1 || sourceChannels > 2) {
+                        Log.e(TAG, "Unsupported channel count " + sourceChannels);
+                        return false;
+                    }
+                    converter = new PcmConverter(sourceRate, sourceChannels, sampleRate, CHANNELS_PER_FRAME);
+                    channelCount = sourceChannels;
+                    return true;
+                }
+
+                @Override
+                public boolean onPcm(ByteBuffer pcm) {
+                    ShortBuffer samples = pcm.order(ByteOrder.nativeOrder()).asShortBuffer();
+                    int frames = samples.remaining() / channelCount;
+                    if (input.length < frames * channelCount) {
+                        input = new short[frames * channelCount];
+                    }
+                    if (output.length < converter.getMaxOutputSamples(frames)) {
+                        output = new short[converter.getMaxOutputSamples(frames)];
+                    }
+                    samples.get(input, 0, frames * channelCount);
+                    return writeFully(channel, output, converter.convert(input, frames, output));
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to decode mixer source: " + e);
+        } finally {
+            extractor.release();
+            channel.endInput();
+        }
+    }
+
+    //False once the channel has been stopped and nothing more is wanted
+    private static boolean writeFully(MixerChannel channel, short[] samples, int count) {
+        int offset = 0;
+        while (offset < count) {
+            if (channel.isFinished()) {
+                return false;
+            }
+
+            int written = channel.ring.write(samples, offset, count - offset);
+            offset += written;
+            if (written == 0) {
+                SystemClock.sleep(PRODUCER_WAIT_MS);
+            }
+        }
+        return !channel.isFinished();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        AudioTrack track = createTrack();
+        try {
+            if (track == null) {
+                //Nothing can play, let the decoders go
+                mixer.clear();
+                synchronized (lock) {
+                    running = false;
+                }
+                return;
+            }
+
+            short[] out = new short[mixer.getMaxFrames() * CHANNELS_PER_FRAME];
+            long idleSince = -1;
+            track.play();
+
+            while (running) {
+                mixer.mix(out, mixer.getMaxFrames());
+
+                //Blocks for at most one chunk's worth of playback
+                int written = track.write(out, 0, out.length);
+                if (written < 0) {
+                    Log.e(TAG, "AudioTrack write failed: " + written);
+                    mixer.clear();
+                    break;
+                }
+
+                if (!mixer.isIdle()) {
+                    idleSince = -1;
+                } else if (idleSince == -1) {
+                    idleSince = SystemClock.elapsedRealtime();
+                } else if (SystemClock.elapsedRealtime() - idleSince > IDLE_TIMEOUT_MS) {
+                    synchronized (lock) {
+                        //A channel added under the lock before this keeps the thread going
+                        if (mixer.isIdle()) {
+                            running = false;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (track != null) {
+                track.release();
+            }
+            synchronized (lock) {
+                thread = null;
+                //Something started while this thread was winding down
+                if (running) {
+                    thread = new Thread(this, "soundaffect-mixer");
+                    thread.start();
+                }
+            }
+        }
+    }
+
+    private AudioTrack createTrack() {
+        AudioTrack track;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                track = new AudioTrack(
+                        new AudioAttributes.Builder()
+                                .setUsage(AudioAttributes.USAGE_MEDIA)
+                                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                                .build(),
+                        new AudioFormat.Builder()
+                                .setSampleRate(sampleRate)
+                                .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .build(),
+                        bufferBytes, AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+            } else {
+                //noinspection deprecation
+                track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                        AudioFormat.ENCODING_PCM_16BIT, bufferBytes, AudioTrack.MODE_STREAM);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to create AudioTrack: " + e);
+            return null;
+        }
+
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "AudioTrack failed to initialize");
+            track.release();
+            return null;
+        }
+        return track;
+    }
+}
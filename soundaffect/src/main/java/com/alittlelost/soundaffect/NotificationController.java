@@ -0,0 +1,284 @@
+package com.alittlelost.soundaffect;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * The service's media notification and, from Lollipop on, the media session behind it.
+ * Channel, intents, builders and session are created once. State can be pushed from any thread
+ * as often as it changes, the notification is only rebuilt when what it shows differs and at most
+ * once per MIN_UPDATE_INTERVAL_MS. The service is in the foreground only while audio is playing,
+ * a paused track leaves a notification that can be swiped away.
+ * Controls from the notification, the session and media buttons are delivered straight to the Callback,
+ * never through startService.
+ */
+
+class NotificationController {
+
+    interface Callback {
+        //Called on the main thread
+        void onPlay();
+
+        void onPause();
+    }
+
+    private static final int NOTIFICATION_ID = 101;
+    private static final String CHANNEL_ID = "101";
+    private static final long MIN_UPDATE_INTERVAL_MS = 250;
+
+    private final Service service;
+    private final Callback callback;
+    private final NotificationManager notificationManager;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+    private final String playAction;
+    private final String pauseAction;
+
+    //One builder per play state, so toggling never has to swap actions on a shared one
+    private final Notification.Builder playingBuilder;
+    private final Notification.Builder pausedBuilder;
+
+    //Lollipop and up only, null before
+    private final MediaSession mediaSession;
+    private final PlaybackState.Builder playbackStateBuilder;
+
+    //Latest requested state, guarded by this
+    private String requestedTitle;
+    private String requestedText;
+    private boolean requestedPlaying = false;
+    private boolean updateScheduled = false;
+    private long lastUpdateUptime = 0;
+
+    //What is showing, main thread only. A null title means no notification
+    private String shownTitle;
+    private String shownText;
+    private boolean shownPlaying = false;
+    private boolean foreground = false;
+    private boolean released = false;
+
+    private final BroadcastReceiver actionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (playAction.equals(intent.getAction())) {
+                callback.onPlay();
+            } else if (pauseAction.equals(intent.getAction())) {
+                callback.onPause();
+            }
+        }
+    };
+
+    private final Runnable updateCommand = new Runnable() {
+        @Override
+        public void run() {
+            String title;
+            String text;
+            boolean playing;
+            synchronized (NotificationController.this) {
+                updateScheduled = false;
+                lastUpdateUptime = SystemClock.uptimeMillis();
+                title = requestedTitle;
+                text = requestedText;
+                playing = requestedPlaying;
+            }
+            apply(title, text, playing);
+        }
+    };
+
+    NotificationController(Service service, final Callback callback) {
+        this.service = service;
+        this.callback = callback;
+        this.notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        //Broadcasts to a receiver in this process. A registered receiver is exported, so only senders holding
+        //the signature permission the manifest declares get through, which the notification's own intents do
+        playAction = service.getPackageName() + ".soundaffect.PLAY";
+        pauseAction = service.getPackageName() + ".soundaffect.PAUSE";
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(playAction);
+        filter.addAction(pauseAction);
+        service.registerReceiver(actionReceiver, filter,
+                service.getPackageName() + ".soundaffect.permission.PLAYBACK_CONTROL", null);
+
+        PendingIntent playIntent = PendingIntent.getBroadcast(service, 0,
+                new Intent(playAction).setPackage(service.getPackageName()), 0);
+        PendingIntent pauseIntent = PendingIntent.getBroadcast(service, 0,
+                new Intent(pauseAction).setPackage(service.getPackageName()), 0);
+
+        //Tapping the notification brings the app back
+        Intent launchIntent = service.getPackageManager().getLaunchIntentForPackage(service.getPackageName());
+        PendingIntent contentIntent = launchIntent != null
+                ? PendingIntent.getActivity(service, 0, launchIntent, 0) : null;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationManager.createNotificationChannel(
+                    new NotificationChannel(CHANNEL_ID, "Media-Notifications", NotificationManager.IMPORTANCE_LOW));
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mediaSession = new MediaSession(service, "SoundAffect");
+            mediaSession.setCallback(new MediaSession.Callback() {
+                @Override
+                public void onPlay() {
+                    callback.onPlay();
+                }
+
+                @Override
+                public void onPause() {
+                    callback.onPause();
+                }
+            }, mainThreadHandler);
+            //Needed before O, the default from then on
+            //noinspection deprecation
+            mediaSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS | MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS);
+            playbackStateBuilder = new PlaybackState.Builder()
+                    .setActions(PlaybackState.ACTION_PLAY | PlaybackState.ACTION_PAUSE | PlaybackState.ACTION_PLAY_PAUSE);
+        } else {
+            mediaSession = null;
+            playbackStateBuilder = null;
+        }
+
+        playingBuilder = createBuilder(contentIntent, true, R.drawable.ic_pause_circle_outline_black_24dp, "Pause",
+                pauseIntent);
+        pausedBuilder = createBuilder(contentIntent, false, R.drawable.ic_play_circle_outline_black_24dp, "Play",
+                playIntent);
+    }
+
+    @SuppressWarnings("deprecation")
+    private Notification.Builder createBuilder(PendingIntent contentIntent, boolean playing, int actionIcon,
+                                               String actionTitle, PendingIntent actionIntent) {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(service, CHANNEL_ID) : new Notification.Builder(service);
+        builder.setSmallIcon(R.drawable.ic_play_circle_outline_black_24dp)
+                .setContentIntent(contentIntent)
+                .setOngoing(playing)
+                .setShowWhen(false)
+                .addAction(actionIcon, actionTitle, actionIntent);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            builder.setVisibility(Notification.VISIBILITY_PUBLIC)
+                    .setStyle(new Notification.MediaStyle()
+                            .setMediaSession(mediaSession.getSessionToken())
+                            .setShowActionsInCompactView(0));
+        }
+        return builder;
+    }
+
+    /**
+     * Any thread. Shows title and text with controls for the play state, or removes the notification
+     * if title is null. Calls in quick succession are coalesced, the latest state wins.
+     */
+    void update(String title, String text, boolean playing) {
+        synchronized (this) {
+            requestedTitle = title;
+            requestedText = text;
+            requestedPlaying = playing;
+            if (updateScheduled) {
+                return;
+            }
+
+            updateScheduled = true;
+            long delay = lastUpdateUptime + MIN_UPDATE_INTERVAL_MS - SystemClock.uptimeMillis();
+            mainThreadHandler.postDelayed(updateCommand, Math.max(0, delay));
+        }
+    }
+
+    //Main thread only
+    private void apply(String title, String text, boolean playing) {
+        if (released) {
+            return;
+        }
+
+        if (title == null) {
+            if (shownTitle != null) {
+                hide();
+            }
+            return;
+        }
+
+        boolean contentChanged = !title.equals(shownTitle) || !equal(text, shownText);
+        if (!contentChanged && playing == shownPlaying) {
+            return;
+        }
+
+        Notification.Builder builder = playing ? playingBuilder : pausedBuilder;
+        builder.setContentTitle(title).setContentText(text);
+
+        if (mediaSession != null) {
+            if (contentChanged) {
+                mediaSession.setMetadata(new MediaMetadata.Builder()
+                        .putString(MediaMetadata.METADATA_KEY_TITLE, title)
+                        .putString(MediaMetadata.METADATA_KEY_ARTIST, text)
+                        .build());
+            }
+            if (playing != shownPlaying || shownTitle == null) {
+                mediaSession.setPlaybackState(playbackStateBuilder
+                        .setState(playing ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED,
+                                PlaybackState.PLAYBACK_POSITION_UNKNOWN, playing ? 1 : 0)
+                        .build());
+            }
+            if (shownTitle == null) {
+                mediaSession.setActive(true);
+            }
+        }
+
+        Notification notification = builder.build();
+        if (playing && !foreground) {
+            service.startForeground(NOTIFICATION_ID, notification);
+            foreground = true;
+        } else if (playing) {
+            notificationManager.notify(NOTIFICATION_ID, notification);
+        } else {
+            if (foreground) {
+                service.stopForeground(false);
+                foreground = false;
+            }
+            notificationManager.notify(NOTIFICATION_ID, notification);
+        }
+
+        shownTitle = title;
+        shownText = text;
+        shownPlaying = playing;
+    }
+
+    private void hide() {
+        if (foreground) {
+            service.stopForeground(true);
+            foreground = false;
+        }
+        notificationManager.cancel(NOTIFICATION_ID);
+        if (mediaSession != null) {
+            mediaSession.setActive(false);
+        }
+        shownTitle = null;
+        shownText = null;
+        shownPlaying = false;
+    }
+
+    //Main thread only, the controller can't be used afterwards
+    void release() {
+        mainThreadHandler.removeCallbacks(updateCommand);
+        hide();
+        released = true;
+        service.unregisterReceiver(actionReceiver);
+        if (mediaSession != null) {
+            mediaSession.release();
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
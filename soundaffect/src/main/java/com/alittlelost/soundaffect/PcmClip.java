@@ -0,0 +1,117 @@
+package com.alittlelost.soundaffect;
+
+import android.media.MediaExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A track decoded once to interleaved 16 bit PCM, so it can be restarted and seeked to any frame
+ * without going near a codec again. Short clips are held in a direct buffer, longer ones stay in
+ * their file on disk and are memory mapped, leaving paging to the kernel.
+ */
+
+class PcmClip {
+
+    static final int BYTES_PER_SAMPLE = 2;
+
+    final int resourceId;
+    final int sampleRate;
+    final int channelCount;
+    final long frameCount;
+
+    //Never written after decoding and its position and limit never move, readers work on a duplicate()
+    final ByteBuffer data;
+
+    //Backing file of a mapped clip, null for one held in memory
+    final File file;
+
+    //Engines playing this clip right now, guarded by PcmClips
+    int users = 0;
+
+    private PcmClip(int resourceId, int sampleRate, int channelCount, ByteBuffer data, File file) {
+        this.resourceId = resourceId;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.frameCount = data.capacity() / (channelCount * BYTES_PER_SAMPLE);
+        this.data = data;
+        this.file = file;
+    }
+
+    int getDurationMs() {
+        return (int) (frameCount * 1000 / sampleRate);
+    }
+
+    long getSizeBytes() {
+        return data.capacity();
+    }
+
+    //Mapped clips only cost disk, memory ones count against the heap
+    boolean isMapped() {
+        return file != null;
+    }
+
+    /**
+     * Decodes the first audio track of extractor into file, then reads it into memory if it is at most
+     * memoryMaxBytes (deleting the file) or maps it otherwise. Must be called off the main thread.
+     *
+     * @param extractor an extractor with its data source already set, released by the caller
+     * @return the clip, or null if there is no decodable mono or stereo audio
+     */
+    static PcmClip decode(int resourceId, MediaExtractor extractor, File file, int memoryMaxBytes) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(0);
+            final FileChannel channel = output.getChannel();
+
+            //The last format reported is the one the samples are in
+            final int[] format = new int[2];
+            boolean decoded = PcmDecoder.decode(extractor, new PcmDecoder.Sink() {
+                @Override
+                public boolean onFormat(int sampleRate, int channelCount) {
+                    format[0] = sampleRate;
+                    format[1] = channelCount;
+                    return true;
+                }
+
+                @Override
+                public boolean onPcm(ByteBuffer pcm) throws IOException {
+                    while (pcm.hasRemaining()) {
+                        channel.write(pcm);
+                    }
+                    return true;
+                }
+            });
+
+            int sampleRate = format[0];
+            int channelCount = format[1];
+            if (!decoded || channelCount < 1 || channelCount > 2) {
+                file.delete();
+                return null;
+            }
+
+            //Whole frames only, a truncated last buffer would shift every channel after it
+            long size = channel.size() / (channelCount * BYTES_PER_SAMPLE) * (channelCount * BYTES_PER_SAMPLE);
+            if (size <= memoryMaxBytes) {
+                ByteBuffer data = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+                channel.position(0);
+                while (data.hasRemaining() && channel.read(data) != -1) {
+                    //Keep reading
+                }
+                data.clear();
+                file.delete();
+                return new PcmClip(resourceId, sampleRate, channelCount, data, null);
+            }
+
+            //The mapping outlives the channel, and the file if it is deleted while still mapped
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.nativeOrder());
+            return new PcmClip(resourceId, sampleRate, channelCount, data, file);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decoded PCM of resource clips played by PcmEngine, shared by every session. Each clip is decoded once
+ * in the background and kept for as long as the byte budget allows, least recently used clips that
+ * no engine is playing are dropped first.
+ */
+
+class PcmClips {
+
+    interface OnClipLoadedListener {
+        //Called on the decode thread
+        void onClipLoaded(int resourceId);
+    }
+
+    private static final String TAG = "PcmClips";
+    private static final String DIRECTORY_NAME = "soundaffect-pcm";
+
+    //Decoded clips up to this size are held in memory, longer ones are mapped from disk
+    static final int MEMORY_MAX_BYTES = 1024 * 1024;
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private final Context context;
+    private final File directory;
+    private final ExecutorService executor;
+
+    //Access ordered, so iteration starts at the least recently used clip
+    private final LinkedHashMap<Integer, PcmClip> clips = new LinkedHashMap<>(8, 0.75f, true);
+    private final SparseBooleanArray decoding = new SparseBooleanArray();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private OnClipLoadedListener onClipLoadedListener;
+
+    PcmClips(Context context) {
+        this.context = context;
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+
+        //Resource ids aren't stable across builds, so nothing decoded by an earlier process is reused
+        deleteFiles();
+    }
+
+    void setOnClipLoadedListener(OnClipLoadedListener onClipLoadedListener) {
+        this.onClipLoadedListener = onClipLoadedListener;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    //Starts decoding the clip unless it already is or has been, loading completes asynchronously
+    synchronized void load(final int resourceId) {
+        if (clips.containsKey(resourceId) || decoding.get(resourceId, false)) {
+            return;
+        }
+
+        decoding.put(resourceId, true);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PcmClip clip = decode(resourceId);
+                synchronized (PcmClips.this) {
+                    decoding.delete(resourceId);
+                    if (clip == null) {
+                        return;
+                    }
+                    clips.put(resourceId, clip);
+                    trim();
+                }
+
+                if (onClipLoadedListener != null) {
+                    onClipLoadedListener.onClipLoaded(resourceId);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the decoded clip, held until it is handed back with release(), or null if it isn't decoded yet
+     */
+    synchronized PcmClip acquire(int resourceId) {
+        PcmClip clip = clips.get(resourceId);
+        if (clip != null) {
+            clip.users++;
+        }
+        return clip;
+    }
+
+    synchronized void release(PcmClip clip) {
+        clip.users--;
+        trim();
+    }
+
+    //Drops every clip that isn't playing, they are decoded again on next use
+    synchronized void clear() {
+        Iterator<PcmClip> iterator = clips.values().iterator();
+        while (iterator.hasNext()) {
+            PcmClip clip = iterator.next();
+            if (clip.users == 0) {
+                iterator.remove();
+                deleteFile(clip);
+            }
+        }
+    }
+
+    //The service is going away
+    synchronized void shutdown() {
+        executor.shutdownNow();
+        clips.clear();
+        deleteFiles();
+    }
+
+    private void trim() {
+        long size = 0;
+        for (PcmClip clip : clips.values()) {
+            size += clip.getSizeBytes();
+        }
+
+        Iterator<Map.Entry<Integer, PcmClip>> iterator = clips.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            PcmClip clip = iterator.next().getValue();
+            if (clip.users == 0) {
+                iterator.remove();
+                size -= clip.getSizeBytes();
+                deleteFile(clip);
+            }
+        }
+    }
+
+    private PcmClip decode(int resourceId) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create PCM directory " + directory);
+            return null;
+        }
+
+        AssetFileDescriptor afd = null;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            afd = context.getResources().openRawResourceFd(resourceId);
+            extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            PcmClip clip = PcmClip.decode(resourceId, extractor, new File(directory, resourceId + ".pcm"),
+                    MEMORY_MAX_BYTES);
+            if (clip == null) {
+                Log.e(TAG, "No mono or stereo audio in resource " + resourceId);
+            }
+            return clip;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to decode resource " + resourceId + ": " + e);
+            return null;
+        } finally {
+            extractor.release();
+            SoundPoolClips.closeQuietly(afd);
+        }
+    }
+
+    //A mapped clip still being read keeps its pages after the file is gone
+    private static void deleteFile(PcmClip clip) {
+        if (clip.isMapped()) {
+            clip.file.delete();
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            file.delete();
+        }
+    }
+}
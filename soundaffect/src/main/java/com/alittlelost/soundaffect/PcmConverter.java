@@ -0,0 +1,81 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Brings decoded 16 bit PCM to the Mixer's rate and channel count on the producer's thread,
+ * so the mixing thread only ever sums. Rates are converted by linear interpolation, carried
+ * across calls so buffer boundaries don't click.
+ */
+
+class PcmConverter {
+
+    private final int inChannels;
+    private final int outChannels;
+    private final double step;
+
+    //Input frame the next output frame falls on, -1 up to 0 is between the last call's final frame and this one's first
+    private double position = 0;
+    private final int[] lastFrame;
+
+    //Mono or stereo in, mono or stereo out
+    PcmConverter(int inRate, int inChannels, int outRate, int outChannels) {
+        this.inChannels = inChannels;
+        this.outChannels = outChannels;
+        this.step = (double) inRate / outRate;
+        this.lastFrame = new int[inChannels];
+    }
+
+    //Output samples that converting inFrames input frames can produce at most
+    int getMaxOutputSamples(int inFrames) {
+        return ((int) Math.ceil(inFrames / step) + 2) * outChannels;
+    }
+
+    /**
+     * @param out at least getMaxOutputSamples(inFrames) long
+     * @return the number of samples written to out
+     */
+    int convert(short[] in, int inFrames, short[] out) {
+        if (inFrames <= 0) {
+            return 0;
+        }
+
+        int written = 0;
+        if (step == 1 && inChannels == outChannels) {
+            written = inFrames * inChannels;
+            System.arraycopy(in, 0, out, 0, written);
+        } else {
+            while (position <= inFrames - 1) {
+                int index = (int) Math.floor(position);
+                double fraction = position - index;
+                //Landing exactly on the last frame needs nothing after it
+                int next = fraction > 0 ? index + 1 : index;
+                for (int channel = 0; channel < outChannels; channel++) {
+                    //Stereo to mono averages, mono to stereo repeats
+                    int a;
+                    int b;
+                    if (inChannels == outChannels) {
+                        a = sample(in, index, channel);
+                        b = sample(in, next, channel);
+                    } else if (inChannels == 1) {
+                        a = sample(in, index, 0);
+                        b = sample(in, next, 0);
+                    } else {
+                        a = (sample(in, index, 0) + sample(in, index, 1)) / 2;
+                        b = (sample(in, next, 0) + sample(in, next, 1)) / 2;
+                    }
+                    out[written++] = (short) Math.round(a + (b - a) * fraction);
+                }
+                position += step;
+            }
+            position -= inFrames;
+        }
+
+        for (int channel = 0; channel < inChannels; channel++) {
+            lastFrame[channel] = in[(inFrames - 1) * inChannels + channel];
+        }
+        return written;
+    }
+
+    private int sample(short[] in, int frame, int channel) {
+        return frame < 0 ? lastFrame[channel] : in[frame * inChannels + channel];
+    }
+}
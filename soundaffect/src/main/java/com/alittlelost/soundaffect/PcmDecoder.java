@@ -0,0 +1,121 @@
+package com.alittlelost.soundaffect;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the first audio track of an extractor through a MediaCodec and hands each buffer of
+ * 16 bit PCM to a Sink, for callers that want the samples rather than playback.
+ */
+
+class PcmDecoder {
+
+    private static final long TIMEOUT_US = 10000;
+
+    interface Sink {
+        //Called before the first samples and again if the codec changes its output format, false stops decoding
+        boolean onFormat(int sampleRate, int channelCount);
+
+        //pcm is positioned on the decoded bytes and only valid during the call, false stops decoding
+        boolean onPcm(ByteBuffer pcm) throws IOException;
+    }
+
+    private PcmDecoder() {
+    }
+
+    /**
+     * Decodes on the calling thread, which must not be the main thread.
+     *
+     * @param extractor an extractor with its data source already set, released by the caller
+     * @return true if the track decoded to its end, false if there was no audio track or the sink stopped it
+     */
+    static boolean decode(MediaExtractor extractor, Sink sink) throws IOException {
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = extractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+
+        if (format == null) {
+            return false;
+        }
+
+        if (!sink.onFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT))) {
+            return false;
+        }
+
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        try {
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            //Deprecated in 21 but the only option on our min SDK
+            @SuppressWarnings("deprecation") ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            @SuppressWarnings("deprecation") ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+            boolean inputDone = false;
+            boolean outputDone = false;
+
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    boolean keepGoing = true;
+                    if (info.size > 0) {
+                        ByteBuffer buffer = outputBuffers[outputIndex];
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        keepGoing = sink.onPcm(buffer);
+                    }
+
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if (!keepGoing) {
+                        return false;
+                    }
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    //noinspection deprecation
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    if (!sink.onFormat(outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) {
+                //Never got started
+            }
+            codec.release();
+        }
+    }
+}
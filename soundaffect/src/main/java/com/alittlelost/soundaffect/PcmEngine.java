@@ -0,0 +1,137 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Engine for resource tracks that are restarted and seeked over and over, such as interactive content.
+ * The clip is decoded once into PcmClips and played from there through an AudioTrack, so a restart or seek
+ * costs a buffer flush rather than a new trip through the codec, and lands on the exact frame asked for.
+ */
+
+class PcmEngine implements PlaybackEngine {
+
+    private final PcmClips clips;
+    private final PcmOutput output;
+
+    private int currentResourceId = -1;
+
+    //Held from the first time it is seen decoded until the engine lets go of the track
+    private PcmClip clip;
+
+    //Requests made while the clip is still decoding, applied once it is ready
+    private boolean playWhenLoaded = false;
+    private int pendingPosition = 0;
+
+    PcmEngine(PcmClips clips, PcmOutput.Listener listener) {
+        this.clips = clips;
+        this.output = new PcmOutput(listener);
+    }
+
+    @Override
+    public void loadResource(int resourceId) {
+        release();
+        currentResourceId = resourceId;
+        clips.load(resourceId);
+        attachLoadedClip();
+    }
+
+    //Picks the clip up once it has decoded, true if it is ready to play
+    private boolean attachLoadedClip() {
+        if (clip != null) {
+            return true;
+        }
+        if (currentResourceId == -1) {
+            return false;
+        }
+
+        clip = clips.acquire(currentResourceId);
+        if (clip == null) {
+            return false;
+        }
+
+        output.setClip(clip);
+        if (pendingPosition != 0) {
+            output.seekTo(toFrames(pendingPosition));
+        }
+        if (playWhenLoaded) {
+            output.play();
+        }
+        pendingPosition = 0;
+        playWhenLoaded = false;
+        return true;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return attachLoadedClip();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return attachLoadedClip() ? output.isPlaying() : playWhenLoaded;
+    }
+
+    @Override
+    public void play() {
+        if (attachLoadedClip()) {
+            output.play();
+        } else if (currentResourceId != -1) {
+            playWhenLoaded = true;
+        }
+    }
+
+    @Override
+    public void pause() {
+        playWhenLoaded = false;
+        if (clip != null) {
+            output.pause();
+        }
+    }
+
+    @Override
+    public void reset() {
+        setCurrentPosition(0);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        if (!attachLoadedClip()) {
+            return pendingPosition;
+        }
+        return (int) (output.getPositionFrames() * 1000 / clip.sampleRate);
+    }
+
+    @Override
+    public void setCurrentPosition(int currentPosition) {
+        if (attachLoadedClip()) {
+            output.seekTo(toFrames(currentPosition));
+        } else {
+            pendingPosition = currentPosition;
+        }
+    }
+
+    @Override
+    public void scrubTo(int position) {
+        //Every seek is as cheap as it gets, no need for an approximate one
+        setCurrentPosition(position);
+    }
+
+    @Override
+    public int getDuration() {
+        return attachLoadedClip() ? clip.getDurationMs() : 0;
+    }
+
+    @Override
+    public void release() {
+        output.release();
+        if (clip != null) {
+            clips.release(clip);
+            clip = null;
+        }
+        currentResourceId = -1;
+        playWhenLoaded = false;
+        pendingPosition = 0;
+    }
+
+    private long toFrames(int positionMs) {
+        return (long) positionMs * clip.sampleRate / 1000;
+    }
+}
@@ -0,0 +1,347 @@
+package com.alittlelost.soundaffect;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams a PcmClip to an AudioTrack from its own audio priority thread.
+ * Only that thread touches the track: callers just change the requested state under the lock and wake it,
+ * so a seek never races a write. Seeks flush what the track has queued and land on the exact frame.
+ * Buffers are sized when the track is created, nothing is allocated while playing.
+ */
+
+class PcmOutput implements Runnable {
+
+    interface Listener {
+        //Called on the audio thread when the clip has played out to its end
+        void onCompletion();
+    }
+
+    private static final String TAG = "PcmOutput";
+
+    //How long the audio thread sleeps between checks while the last written frames drain
+    private static final long DRAIN_POLL_MS = 5;
+
+    private final Listener listener;
+    private final Object lock = new Object();
+
+    //Requested state, guarded by lock
+    private PcmClip clip;
+    private boolean clipChanged = false;
+    private boolean playing = false;
+    private long seekFrame = -1;
+    private boolean completed = false;
+    private boolean running = false;
+    private Thread thread;
+
+    //Clip frame at playback head position 0, moved by every flush. Guarded by lock
+    private long anchorFrame = 0;
+
+    //Audio thread only, the track is also read under the lock for positions
+    private AudioTrack track;
+    private PcmClip trackClip;
+    private ByteBuffer view;
+    private byte[] chunk;
+    private int chunkFrames;
+    private long writeFrame = 0;
+    private boolean trackPlaying = false;
+    private boolean draining = false;
+
+    PcmOutput(Listener listener) {
+        this.listener = listener;
+    }
+
+    //Plays clip from its start once play() is called, the previous clip is cut off
+    void setClip(PcmClip clip) {
+        synchronized (lock) {
+            this.clip = clip;
+            clipChanged = true;
+            playing = false;
+            seekFrame = 0;
+            completed = false;
+            anchorFrame = 0;
+            startThread();
+            lock.notifyAll();
+        }
+    }
+
+    void play() {
+        synchronized (lock) {
+            if (clip == null) {
+                return;
+            }
+
+            //Like MediaPlayer, starting a finished clip starts it over
+            if (completed) {
+                seekFrame = 0;
+                completed = false;
+            }
+            playing = true;
+            lock.notifyAll();
+        }
+    }
+
+    void pause() {
+        synchronized (lock) {
+            playing = false;
+            lock.notifyAll();
+        }
+    }
+
+    void seekTo(long frame) {
+        synchronized (lock) {
+            if (clip == null) {
+                return;
+            }
+
+            seekFrame = Math.max(0, Math.min(frame, clip.frameCount));
+            completed = false;
+            lock.notifyAll();
+        }
+    }
+
+    boolean isPlaying() {
+        synchronized (lock) {
+            return playing;
+        }
+    }
+
+    //The frame being heard now, or the one a pending seek will land on
+    long getPositionFrames() {
+        synchronized (lock) {
+            if (clip == null) {
+                return 0;
+            }
+            if (seekFrame != -1) {
+                return seekFrame;
+            }
+            if (completed) {
+                return clip.frameCount;
+            }
+            if (track == null || trackClip != clip) {
+                return anchorFrame;
+            }
+            return Math.min(clip.frameCount, anchorFrame + (track.getPlaybackHeadPosition() & 0xffffffffL));
+        }
+    }
+
+    //Stops playback and ends the audio thread, which releases the track on its way out
+    void release() {
+        synchronized (lock) {
+            clip = null;
+            clipChanged = true;
+            playing = false;
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    //With the lock held. A thread that is still winding down carries on, or starts its successor on the way out
+    private void startThread() {
+        running = true;
+        if (thread == null) {
+            thread = new Thread(this, "soundaffect-pcm");
+            thread.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        try {
+            while (true) {
+                int frames;
+                boolean finished = false;
+
+                synchronized (lock) {
+                    if (!running) {
+                        break;
+                    }
+
+                    applyRequestedState();
+
+                    if (track == null || !playing) {
+                        lock.wait();
+                        continue;
+                    }
+
+                    if (writeFrame >= trackClip.frameCount) {
+                        //Everything is queued, stop() lets the tail play out and the head tells us when it has
+                        if (!draining) {
+                            track.stop();
+                            draining = true;
+                        }
+
+                        if (anchorFrame + (track.getPlaybackHeadPosition() & 0xffffffffL) >= trackClip.frameCount) {
+                            playing = false;
+                            completed = true;
+                            trackPlaying = false;
+                            draining = false;
+                            finished = true;
+                        } else {
+                            lock.wait(DRAIN_POLL_MS);
+                            continue;
+                        }
+                    }
+
+                    frames = (int) Math.min(chunkFrames, trackClip.frameCount - writeFrame);
+                }
+
+                if (finished) {
+                    listener.onCompletion();
+                    continue;
+                }
+
+                //Blocks for at most one chunk's worth of playback, outside the lock so callers never wait on it
+                if (!write(frames)) {
+                    synchronized (lock) {
+                        playing = false;
+                    }
+                    continue;
+                }
+
+                synchronized (lock) {
+                    writeFrame += frames;
+                }
+            }
+        } catch (InterruptedException e) {
+            //Shutting down
+        } finally {
+            synchronized (lock) {
+                releaseTrack();
+                thread = null;
+                if (running) {
+                    startThread();
+                }
+            }
+        }
+    }
+
+    //Audio thread with the lock held, brings the track in line with what was asked for
+    private void applyRequestedState() {
+        if (clipChanged) {
+            clipChanged = false;
+            if (clip == null) {
+                releaseTrack();
+                return;
+            }
+            if (trackClip == null || track == null || trackClip.sampleRate != clip.sampleRate
+                    || trackClip.channelCount != clip.channelCount) {
+                releaseTrack();
+                createTrack(clip);
+            }
+            trackClip = clip;
+            view = clip.data.duplicate();
+        }
+
+        if (track == null) {
+            //No output to be had, don't report playback that isn't happening
+            playing = false;
+            return;
+        }
+
+        if (seekFrame != -1) {
+            //Flush only applies to a paused or stopped track, pausing covers both. The head goes back to 0
+            track.pause();
+            trackPlaying = false;
+            track.flush();
+            draining = false;
+            writeFrame = seekFrame;
+            anchorFrame = seekFrame;
+            seekFrame = -1;
+        }
+
+        if (playing && !trackPlaying) {
+            track.play();
+            trackPlaying = true;
+        } else if (!playing && trackPlaying) {
+            track.pause();
+            trackPlaying = false;
+        }
+    }
+
+    private boolean write(int frames) {
+        int frameBytes = trackClip.channelCount * PcmClip.BYTES_PER_SAMPLE;
+        int offset = (int) (writeFrame * frameBytes);
+        int size = frames * frameBytes;
+
+        int written;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            //Straight from the clip's direct or mapped buffer, no copy
+            view.limit(offset + size);
+            view.position(offset);
+            written = track.write(view, size, AudioTrack.WRITE_BLOCKING);
+        } else {
+            view.limit(offset + size);
+            view.position(offset);
+            view.get(chunk, 0, size);
+            written = track.write(chunk, 0, size);
+        }
+
+        if (written < 0) {
+            Log.e(TAG, "AudioTrack write failed: " + written);
+            return false;
+        }
+        return true;
+    }
+
+    private void createTrack(PcmClip clip) {
+        int channelMask = clip.channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int frameBytes = clip.channelCount * PcmClip.BYTES_PER_SAMPLE;
+        int minBufferBytes = AudioTrack.getMinBufferSize(clip.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferBytes = Math.max(minBufferBytes, frameBytes * 256) * 2;
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                track = new AudioTrack(
+                        new AudioAttributes.Builder()
+                                .setUsage(AudioAttributes.USAGE_MEDIA)
+                                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                                .build(),
+                        new AudioFormat.Builder()
+                                .setSampleRate(clip.sampleRate)
+                                .setChannelMask(channelMask)
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .build(),
+                        bufferBytes, AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+            } else {
+                //noinspection deprecation
+                track = new AudioTrack(AudioManager.STREAM_MUSIC, clip.sampleRate, channelMask,
+                        AudioFormat.ENCODING_PCM_16BIT, bufferBytes, AudioTrack.MODE_STREAM);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to create AudioTrack: " + e);
+            track = null;
+            return;
+        }
+
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "AudioTrack failed to initialize");
+            track.release();
+            track = null;
+            return;
+        }
+
+        //A quarter of the buffer per write keeps it topped up while bounding how long a pause or seek waits for the thread
+        chunkFrames = bufferBytes / 4 / frameBytes;
+        chunk = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? null : new byte[chunkFrames * frameBytes];
+    }
+
+    private void releaseTrack() {
+        if (track != null) {
+            track.release();
+            track = null;
+        }
+        trackClip = null;
+        trackPlaying = false;
+        draining = false;
+    }
+}
@@ -0,0 +1,81 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Lock-free ring of interleaved 16 bit samples between exactly one producer thread and one consumer thread.
+ * Each side only ever writes its own position and publishes it through a volatile, so neither side waits
+ * on the other and nothing is allocated after construction.
+ */
+
+class PcmRingBuffer {
+
+    private final short[] samples;
+    private final int mask;
+
+    //Total samples ever written and read, only the producer writes the first and only the consumer the second
+    private volatile long writePosition = 0;
+    private volatile long readPosition = 0;
+
+    //Rounded up to a power of two so positions wrap with a mask
+    PcmRingBuffer(int capacitySamples) {
+        int capacity = Integer.highestOneBit(Math.max(2, capacitySamples) - 1) << 1;
+        samples = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    int getCapacity() {
+        return samples.length;
+    }
+
+    //Producer only
+    int getFreeSpace() {
+        return samples.length - (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Producer only. Copies as many of count samples as fit.
+     *
+     * @return the number written, 0 if the ring is full
+     */
+    int write(short[] source, int offset, int count) {
+        long write = writePosition;
+        int written = Math.min(count, samples.length - (int) (write - readPosition));
+        if (written <= 0) {
+            return 0;
+        }
+
+        int start = (int) (write & mask);
+        int first = Math.min(written, samples.length - start);
+        System.arraycopy(source, offset, samples, start, first);
+        System.arraycopy(source, offset + first, samples, 0, written - first);
+
+        //Samples are in place before the consumer can see the new position
+        writePosition = write + written;
+        return written;
+    }
+
+    //Consumer only
+    int getAvailable() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Consumer only. Copies out up to count samples.
+     *
+     * @return the number read, 0 if the ring is empty
+     */
+    int read(short[] target, int offset, int count) {
+        long read = readPosition;
+        int available = Math.min(count, (int) (writePosition - read));
+        if (available <= 0) {
+            return 0;
+        }
+
+        int start = (int) (read & mask);
+        int first = Math.min(available, samples.length - start);
+        System.arraycopy(samples, start, target, offset, first);
+        System.arraycopy(samples, 0, target, offset + first, available - first);
+
+        readPosition = read + available;
+        return available;
+    }
+}
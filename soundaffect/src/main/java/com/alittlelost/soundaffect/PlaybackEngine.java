@@ -0,0 +1,33 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Common control surface for the ways MediaService can play a resource track.
+ * URLs only ever go to MediaManager, which PlaybackSession loads them into directly.
+ */
+
+interface PlaybackEngine {
+
+    void loadResource(int resourceId);
+
+    boolean isPrepared();
+
+    boolean isPlaying();
+
+    void play();
+
+    void pause();
+
+    void reset();
+
+    int getCurrentPosition();
+
+    void setCurrentPosition(int currentPosition);
+
+    //Fast, approximate seek while the position is being dragged, a setCurrentPosition() follows on release
+    void scrubTo(int position);
+
+    int getDuration();
+
+    //Stops playback and hands back anything held for the current track
+    void release();
+}
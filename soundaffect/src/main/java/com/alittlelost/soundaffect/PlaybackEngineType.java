@@ -0,0 +1,24 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Which engine plays a resource track.
+ */
+
+public enum PlaybackEngineType {
+    //SoundPool for short clips, MediaPlayer for everything else. A clip on SoundPool moves to MediaPlayer
+    //the first time it is seeked anywhere but its start
+    AUTO,
+    //Always use MediaPlayer, the default
+    MEDIA_PLAYER,
+    //Decode once into a SoundPool for minimal start latency and overlapping playback, resource tracks only.
+    //SoundPool can't seek, a clip only ever restarts from the top
+    SOUND_POOL,
+    //Decode once to PCM played through an AudioTrack, for instant restarts and sample accurate seeks of
+    //tracks of any length, resource tracks only
+    PCM;
+
+    static PlaybackEngineType fromAttribute(int value) {
+        PlaybackEngineType[] values = values();
+        return value >= 0 && value < values.length ? values[value] : MEDIA_PLAYER;
+    }
+}
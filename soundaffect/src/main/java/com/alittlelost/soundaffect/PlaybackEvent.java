@@ -0,0 +1,84 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * One timestamped step in a session's playback, reported to {@link PlaybackMetricsListener}s.
+ */
+
+public final class PlaybackEvent {
+
+    public enum Type {
+        //A track was asked for
+        LOAD_REQUESTED,
+        //The track can play, latency is since LOAD_REQUESTED and 0 when a pooled player already had it
+        PREPARED,
+        //Audio started, latency is since play was requested
+        FIRST_AUDIO,
+        //Playback stalled waiting for data
+        BUFFERING_START,
+        //Playback resumed after a stall, latency is the length of the stall
+        BUFFERING_END,
+        SEEK_ISSUED,
+        //Latency is since SEEK_ISSUED
+        SEEK_COMPLETED,
+        //The player failed, see getErrorWhat() and getErrorExtra()
+        ERROR
+    }
+
+    private final Type type;
+    private final String sessionId;
+    private final String sourceKey;
+    private final long uptimeMillis;
+    private final long latencyMillis;
+    private final int errorWhat;
+    private final int errorExtra;
+
+    PlaybackEvent(Type type, String sessionId, String sourceKey, long uptimeMillis, long latencyMillis,
+                  int errorWhat, int errorExtra) {
+        this.type = type;
+        this.sessionId = sessionId;
+        this.sourceKey = sourceKey;
+        this.uptimeMillis = uptimeMillis;
+        this.latencyMillis = latencyMillis;
+        this.errorWhat = errorWhat;
+        this.errorExtra = errorExtra;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    //"url:" or "res:" followed by the url or resource id, null if nothing was loaded
+    public String getSourceKey() {
+        return sourceKey;
+    }
+
+    //SystemClock.uptimeMillis() when the event happened
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    //-1 for events that don't complete a measured interval
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    //MediaPlayer error codes for ERROR events, 0 otherwise
+    public int getErrorWhat() {
+        return errorWhat;
+    }
+
+    public int getErrorExtra() {
+        return errorExtra;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackEvent{" + type + ", session=" + sessionId + ", source=" + sourceKey + ", at=" + uptimeMillis
+                + (latencyMillis >= 0 ? ", latency=" + latencyMillis : "")
+                + (type == Type.ERROR ? ", error=" + errorWhat + "/" + errorExtra : "") + "}";
+    }
+}
@@ -0,0 +1,98 @@
+package com.alittlelost.soundaffect;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Latency histograms across all sessions of the service, plus the listeners events are forwarded to.
+ * Events are recorded on the player thread, histograms can be queried from any thread.
+ */
+
+public final class PlaybackMetrics {
+
+    private final LatencyHistogram prepareLatency = new LatencyHistogram("prepare");
+    private final LatencyHistogram timeToFirstAudio = new LatencyHistogram("timeToFirstAudio");
+    private final LatencyHistogram seekLatency = new LatencyHistogram("seek");
+    private final LatencyHistogram stallDuration = new LatencyHistogram("stall");
+
+    private final List<PlaybackMetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+    PlaybackMetrics() {
+    }
+
+    //From load request until the track could play
+    public LatencyHistogram getPrepareLatency() {
+        return prepareLatency;
+    }
+
+    //From play request until audio started
+    public LatencyHistogram getTimeToFirstAudio() {
+        return timeToFirstAudio;
+    }
+
+    //From seek request until the player finished seeking
+    public LatencyHistogram getSeekLatency() {
+        return seekLatency;
+    }
+
+    //Length of each buffering stall, the count is the number of stalls
+    public LatencyHistogram getStallDuration() {
+        return stallDuration;
+    }
+
+    public void reset() {
+        prepareLatency.reset();
+        timeToFirstAudio.reset();
+        seekLatency.reset();
+        stallDuration.reset();
+    }
+
+    void addListener(PlaybackMetricsListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    void removeListener(PlaybackMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    void record(final PlaybackEvent event) {
+        LatencyHistogram histogram = histogramFor(event.getType());
+        if (histogram != null) {
+            histogram.record(event.getLatencyMillis());
+        }
+
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (PlaybackMetricsListener listener : listeners) {
+                    listener.onPlaybackEvent(event);
+                }
+            }
+        });
+    }
+
+    private LatencyHistogram histogramFor(PlaybackEvent.Type type) {
+        switch (type) {
+            case PREPARED:
+                return prepareLatency;
+            case FIRST_AUDIO:
+                return timeToFirstAudio;
+            case SEEK_COMPLETED:
+                return seekLatency;
+            case BUFFERING_END:
+                return stallDuration;
+            default:
+                return null;
+        }
+    }
+}
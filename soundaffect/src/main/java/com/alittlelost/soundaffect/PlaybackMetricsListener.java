@@ -0,0 +1,10 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Receives every playback event of every session, e.g. to forward them to an app's own telemetry.
+ */
+
+public interface PlaybackMetricsListener {
+    //Called on the main thread
+    void onPlaybackEvent(PlaybackEvent event);
+}
@@ -0,0 +1,106 @@
+package com.alittlelost.soundaffect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of track urls with a cursor, used by MediaService for playlist playback.
+ */
+
+class PlaybackQueue {
+
+    private final List<String> urls = new ArrayList<>();
+    private int currentIndex = -1;
+    private RepeatMode repeatMode = RepeatMode.OFF;
+
+    void add(String url) {
+        urls.add(url);
+        if (currentIndex == -1) {
+            currentIndex = 0;
+        }
+    }
+
+    void addAll(List<String> newUrls) {
+        for (String url : newUrls) {
+            add(url);
+        }
+    }
+
+    void clear() {
+        urls.clear();
+        currentIndex = -1;
+    }
+
+    boolean isEmpty() {
+        return urls.isEmpty();
+    }
+
+    int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    void setCurrentIndex(int index) {
+        if (index < 0 || index >= urls.size()) {
+            throw new IndexOutOfBoundsException("No track at " + index + ", queue has " + urls.size());
+        }
+        currentIndex = index;
+    }
+
+    String getCurrent() {
+        return currentIndex != -1 ? urls.get(currentIndex) : null;
+    }
+
+    RepeatMode getRepeatMode() {
+        return repeatMode;
+    }
+
+    void setRepeatMode(RepeatMode repeatMode) {
+        this.repeatMode = repeatMode;
+    }
+
+    /**
+     * @return the index that follows the current track when it finishes, or -1 if playback should stop
+     */
+    int getNextIndex() {
+        if (currentIndex == -1) {
+            return -1;
+        }
+
+        if (repeatMode == RepeatMode.ONE) {
+            return currentIndex;
+        }
+
+        if (currentIndex + 1 < urls.size()) {
+            return currentIndex + 1;
+        }
+
+        return repeatMode == RepeatMode.ALL ? 0 : -1;
+    }
+
+    /**
+     * @return the index before the current track, or -1 if there is none
+     */
+    int getPreviousIndex() {
+        if (currentIndex > 0) {
+            return currentIndex - 1;
+        }
+
+        return currentIndex == 0 && repeatMode == RepeatMode.ALL && urls.size() > 1 ? urls.size() - 1 : -1;
+    }
+
+    //Manual skips move on even when repeating a single track
+    int getSkipIndex() {
+        if (repeatMode != RepeatMode.ONE) {
+            return getNextIndex();
+        }
+
+        if (currentIndex + 1 < urls.size()) {
+            return currentIndex + 1;
+        }
+        return urls.isEmpty() ? -1 : 0;
+    }
+
+    String get(int index) {
+        return urls.get(index);
+    }
+}
@@ -0,0 +1,605 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Playback state for one SoundAffect (or any other client) inside the shared MediaService.
+ * Every session owns its track, queue and position, but players come from the service-wide pool:
+ * a session that is not playing can be suspended, handing its player back, and picks up
+ * where it left off the next time it is used.
+ *
+ * Control methods only queue a command on the player thread and return immediately. Getters read a snapshot
+ * published after every command and player event, so they never wait on a player either.
+ */
+
+class PlaybackSession {
+
+    interface Host {
+        //The session started playback, the host applies its focus policy to the other sessions
+        void onSessionPlaying(PlaybackSession session);
+
+        //The session took a player from the pool, the host may suspend idle sessions to stay in budget
+        void onSessionHoldingPlayer(PlaybackSession session);
+
+        //The session published a new snapshot
+        void onSessionStateChanged(PlaybackSession session);
+    }
+
+    interface OnStateChangedListener {
+        //Called on the main thread after a command or player event changed the snapshot
+        void onStateChanged(PlaybackSession session);
+    }
+
+    //Going back within this much of the start of a track skips to the previous track instead of rewinding
+    private static final int PREVIOUS_TRACK_THRESHOLD_MS = 3000;
+
+    private final String id;
+    private final Context context;
+    private final Host host;
+    private final PlayerCommandExecutor executor;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private OnStateChangedListener onStateChangedListener;
+
+    //Everything from here to the snapshot is only touched on the player thread
+    private final MediaManager mediaManager;
+    private final SoundPoolEngine soundPoolEngine;
+    private final PcmEngine pcmEngine;
+    private final PlaybackQueue queue = new PlaybackQueue();
+
+    //Whichever engine holds the track that was loaded last
+    private PlaybackEngine engine;
+    private PlaybackEngineType resourceEngineType = PlaybackEngineType.MEDIA_PLAYER;
+
+    //Source of the track loaded last, null when nothing is loaded
+    private String currentSourceKey;
+
+    //State kept while the player is handed back to the pool
+    private boolean suspended = false;
+    private int savedPosition = 0;
+    private int savedDuration = 0;
+
+    //Snapshot of the state above, written by the player thread and read from any thread
+    private volatile boolean snapshotPrepared = false;
+    private volatile boolean snapshotPlaying = false;
+    private volatile boolean snapshotHasQueue = false;
+    private volatile int snapshotDuration = 0;
+    private volatile int snapshotPosition = 0;
+    private volatile long snapshotUptime = 0;
+    private volatile String snapshotSourceKey;
+
+    //Latest requested seek, however many arrive while one is queued only the last is performed
+    private final Object seekLock = new Object();
+    private int requestedSeekPosition = -1;
+    private boolean requestedSeekPrecise = true;
+
+    //Every load supersedes the ones queued before it, and snapshots are held back until the newest has run
+    private final AtomicInteger loadGeneration = new AtomicInteger();
+    private int appliedLoadGeneration = 0;
+
+    private final AtomicBoolean notifyPending = new AtomicBoolean();
+
+    PlaybackSession(String id, Context context, Host host, PlayerCommandExecutor executor, AudioCache audioCache,
+                    PlayerPool playerPool, SoundPoolClips soundPoolClips, PcmClips pcmClips, PlaybackMetrics metrics) {
+        this.id = id;
+        this.context = context;
+        this.host = host;
+        this.executor = executor;
+        this.mediaManager = new MediaManager(context, audioCache, playerPool, metrics, id);
+        this.soundPoolEngine = new SoundPoolEngine(soundPoolClips);
+        this.pcmEngine = new PcmEngine(pcmClips, new PcmOutput.Listener() {
+            @Override
+            public void onCompletion() {
+                refreshState();
+            }
+        });
+        this.engine = mediaManager;
+
+        mediaManager.setOnTrackChangeListener(new MediaManager.OnTrackChangeListener() {
+            @Override
+            public void onTrackAdvanced() {
+                queue.setCurrentIndex(queue.getNextIndex());
+                currentSourceKey = WaveformLoader.sourceKeyForUrl(queue.getCurrent());
+                mediaManager.setNextUrl(getNextQueuedUrl());
+            }
+
+            @Override
+            public void onTrackCompleted() {
+                //Nothing was chained (the next track was not ready in time), fall back to a normal load
+                int nextIndex = queue.getNextIndex();
+                if (nextIndex != -1) {
+                    playQueued(nextIndex, true);
+                }
+            }
+        });
+
+        mediaManager.setOnStateChangeListener(new MediaManager.OnStateChangeListener() {
+            @Override
+            public void onPlayerStateChanged() {
+                publishState();
+            }
+        });
+    }
+
+    String getId() {
+        return id;
+    }
+
+    void setOnStateChangedListener(OnStateChangedListener onStateChangedListener) {
+        this.onStateChangedListener = onStateChangedListener;
+    }
+
+    private abstract class Command implements Runnable {
+        @Override
+        public void run() {
+            perform();
+            publishState();
+        }
+
+        abstract void perform();
+    }
+
+    //Clears the snapshot straight away so the caller never sees the previous track while the load is queued
+    private abstract class LoadCommand extends Command {
+        private final int generation;
+
+        LoadCommand(String sourceKey) {
+            //Bumped first so a snapshot of the previous track can't land on top of the cleared one
+            generation = loadGeneration.incrementAndGet();
+            synchronized (seekLock) {
+                requestedSeekPosition = -1;
+            }
+            snapshotSourceKey = sourceKey;
+            snapshotPrepared = false;
+            snapshotPlaying = false;
+            snapshotPosition = 0;
+            snapshotDuration = 0;
+        }
+
+        @Override
+        void perform() {
+            if (generation == loadGeneration.get()) {
+                load();
+            }
+            appliedLoadGeneration = generation;
+        }
+
+        abstract void load();
+    }
+
+    private final Runnable seekCommand = new Command() {
+        @Override
+        void perform() {
+            int position;
+            boolean precise;
+            synchronized (seekLock) {
+                position = requestedSeekPosition;
+                precise = requestedSeekPrecise;
+                requestedSeekPosition = -1;
+            }
+            if (position != -1) {
+                seek(position, precise);
+            }
+        }
+    };
+
+    private final Runnable publishCommand = new Runnable() {
+        @Override
+        public void run() {
+            publishState();
+        }
+    };
+
+    private final Runnable notifyCommand = new Runnable() {
+        @Override
+        public void run() {
+            notifyPending.set(false);
+            if (onStateChangedListener != null) {
+                onStateChangedListener.onStateChanged(PlaybackSession.this);
+            }
+        }
+    };
+
+    void loadUrl(final String url) {
+        executor.execute(new LoadCommand(WaveformLoader.sourceKeyForUrl(url)) {
+            @Override
+            void load() {
+                queue.clear();
+                suspended = false;
+                switchEngine(mediaManager);
+                mediaManager.setNextUrl(null);
+                mediaManager.loadUrl(url);
+                currentSourceKey = WaveformLoader.sourceKeyForUrl(url);
+                host.onSessionHoldingPlayer(PlaybackSession.this);
+            }
+        });
+    }
+
+    void loadResource(final int resourceId, final PlaybackEngineType engineType) {
+        executor.execute(new LoadCommand(WaveformLoader.sourceKeyForResource(resourceId)) {
+            @Override
+            void load() {
+                queue.clear();
+                mediaManager.setNextUrl(null);
+                loadResourceNow(resourceId, engineType);
+            }
+        });
+    }
+
+    private void loadResourceNow(int resourceId, PlaybackEngineType engineType) {
+        suspended = false;
+        resourceEngineType = engineType;
+
+        boolean useSoundPool = engineType == PlaybackEngineType.SOUND_POOL
+                || (engineType == PlaybackEngineType.AUTO && SoundPoolEngine.isShortClip(context, resourceId));
+
+        if (engineType == PlaybackEngineType.PCM) {
+            switchEngine(pcmEngine);
+        } else {
+            switchEngine(useSoundPool ? soundPoolEngine : mediaManager);
+        }
+        engine.loadResource(resourceId);
+        currentSourceKey = WaveformLoader.sourceKeyForResource(resourceId);
+
+        if (engine == mediaManager) {
+            host.onSessionHoldingPlayer(this);
+        }
+    }
+
+    private void switchEngine(PlaybackEngine newEngine) {
+        if (engine != newEngine) {
+            engine.release();
+            engine = newEngine;
+        }
+    }
+
+    String getCurrentSourceKey() {
+        return snapshotSourceKey;
+    }
+
+    void enqueue(String url) {
+        List<String> urls = new ArrayList<>(1);
+        urls.add(url);
+        enqueue(urls);
+    }
+
+    void enqueue(List<String> urls) {
+        final List<String> added = new ArrayList<>(urls);
+        snapshotHasQueue = snapshotHasQueue || !added.isEmpty();
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                if (added.isEmpty()) {
+                    return;
+                }
+
+                boolean wasEmpty = queue.isEmpty();
+                queue.addAll(added);
+                if (wasEmpty) {
+                    playQueued(0, false);
+                } else if (!suspended) {
+                    mediaManager.setNextUrl(getNextQueuedUrl());
+                }
+            }
+        });
+    }
+
+    void clearQueue() {
+        snapshotHasQueue = false;
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                queue.clear();
+                mediaManager.setNextUrl(null);
+            }
+        });
+    }
+
+    boolean hasQueue() {
+        return snapshotHasQueue;
+    }
+
+    void skipTo(final int index) {
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                playQueued(index, isPlayingNow());
+            }
+        });
+    }
+
+    void next() {
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                int index = queue.getSkipIndex();
+                if (index != -1) {
+                    playQueued(index, isPlayingNow());
+                }
+            }
+        });
+    }
+
+    //Rewinds the current track, or goes to the previous one if we are already near its start
+    void previous() {
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                int index = queue.getPreviousIndex();
+                if (index == -1 || getCurrentPositionNow() > PREVIOUS_TRACK_THRESHOLD_MS) {
+                    seek(0, true);
+                    return;
+                }
+
+                playQueued(index, isPlayingNow());
+            }
+        });
+    }
+
+    void setRepeatMode(final RepeatMode repeatMode) {
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                queue.setRepeatMode(repeatMode);
+                mediaManager.setLooping(repeatMode == RepeatMode.ONE);
+                if (!suspended) {
+                    mediaManager.setNextUrl(getNextQueuedUrl());
+                }
+            }
+        });
+    }
+
+    private void playQueued(int index, boolean play) {
+        queue.setCurrentIndex(index);
+        suspended = false;
+        switchEngine(mediaManager);
+        mediaManager.loadUrl(queue.getCurrent());
+        currentSourceKey = WaveformLoader.sourceKeyForUrl(queue.getCurrent());
+        mediaManager.setNextUrl(getNextQueuedUrl());
+        host.onSessionHoldingPlayer(this);
+
+        if (play) {
+            playNow();
+        }
+    }
+
+    //Looping a single track needs no chained player
+    private String getNextQueuedUrl() {
+        if (queue.getRepeatMode() == RepeatMode.ONE) {
+            return null;
+        }
+
+        int nextIndex = queue.getNextIndex();
+        return nextIndex != -1 ? queue.get(nextIndex) : null;
+    }
+
+    boolean isPrepared() {
+        return snapshotPrepared;
+    }
+
+    boolean isPlaying() {
+        return snapshotPlaying;
+    }
+
+    void play() {
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                //A play queued behind a newer load was meant for the track it replaces
+                if (appliedLoadGeneration == loadGeneration.get()) {
+                    playNow();
+                }
+            }
+        });
+    }
+
+    private void playNow() {
+        resumeIfSuspended();
+        engine.play();
+        host.onSessionPlaying(this);
+    }
+
+    void pause() {
+        executor.execute(new Command() {
+            @Override
+            void perform() {
+                if (!suspended) {
+                    engine.pause();
+                }
+            }
+        });
+    }
+
+    void reset() {
+        setCurrentPosition(0);
+    }
+
+    int getDuration() {
+        return snapshotDuration;
+    }
+
+    //Seeks are coalesced, a drag across the seek bar queues at most one at a time
+    void setCurrentPosition(int currentPosition) {
+        requestSeek(currentPosition, true);
+    }
+
+    //Sync frame seek for dragging, the precise setCurrentPosition() on release replaces any still queued
+    void scrubTo(int position) {
+        requestSeek(position, false);
+    }
+
+    private void requestSeek(int position, boolean precise) {
+        snapshotPosition = position;
+        snapshotUptime = SystemClock.uptimeMillis();
+
+        synchronized (seekLock) {
+            boolean queued = requestedSeekPosition != -1;
+            requestedSeekPosition = position;
+            requestedSeekPrecise = precise;
+            if (queued) {
+                return;
+            }
+        }
+        executor.execute(seekCommand);
+    }
+
+    private void seek(int position, boolean precise) {
+        if (!suspended && position != 0 && engine == soundPoolEngine
+                && resourceEngineType == PlaybackEngineType.AUTO) {
+            moveClipToMediaPlayer();
+        }
+
+        if (suspended) {
+            savedPosition = position;
+        } else if (precise) {
+            engine.setCurrentPosition(position);
+        } else {
+            engine.scrubTo(position);
+        }
+    }
+
+    //SoundPool only plays a clip from its start, a clip AUTO put there that is seeked elsewhere goes to MediaPlayer
+    private void moveClipToMediaPlayer() {
+        boolean playing = soundPoolEngine.isPlaying();
+        resourceEngineType = PlaybackEngineType.MEDIA_PLAYER;
+
+        switchEngine(mediaManager);
+        mediaManager.loadResource(Integer.parseInt(currentSourceKey.substring(4)));
+        host.onSessionHoldingPlayer(this);
+        if (playing) {
+            mediaManager.play();
+        }
+    }
+
+    //Extrapolated from the last snapshot while playing
+    int getCurrentPosition() {
+        int position = snapshotPosition;
+        if (snapshotPlaying) {
+            position += (int) (SystemClock.uptimeMillis() - snapshotUptime);
+        }
+
+        int duration = snapshotDuration;
+        return duration > 0 ? Math.min(position, duration) : position;
+    }
+
+    private boolean isPreparedNow() {
+        return suspended ? savedDuration > 0 : engine.isPrepared();
+    }
+
+    private boolean isPlayingNow() {
+        return !suspended && engine.isPlaying();
+    }
+
+    private int getDurationNow() {
+        return suspended ? savedDuration : engine.getDuration();
+    }
+
+    private int getCurrentPositionNow() {
+        return suspended ? savedPosition : engine.getCurrentPosition();
+    }
+
+    //Re-reads the player state, for events the session does not hear about itself
+    void refreshState() {
+        executor.execute(publishCommand);
+    }
+
+    //Player thread only, copies the live state into the snapshot and tells the listener
+    private void publishState() {
+        if (appliedLoadGeneration != loadGeneration.get()) {
+            //A newer load is still queued, the caller already sees it as loading
+            return;
+        }
+
+        snapshotPrepared = isPreparedNow();
+        snapshotPlaying = isPlayingNow();
+        snapshotDuration = getDurationNow();
+        snapshotSourceKey = currentSourceKey;
+        snapshotHasQueue = !queue.isEmpty();
+
+        synchronized (seekLock) {
+            //Leave the position alone while a newer seek is still on its way
+            if (requestedSeekPosition == -1) {
+                snapshotPosition = getCurrentPositionNow();
+                snapshotUptime = SystemClock.uptimeMillis();
+            }
+        }
+
+        //SoundPool never reports the end of a clip, look again when it should have finished
+        executor.cancel(publishCommand);
+        if (snapshotPlaying && engine == soundPoolEngine) {
+            executor.executeDelayed(publishCommand, Math.max(0, snapshotDuration - snapshotPosition));
+        }
+
+        if (notifyPending.compareAndSet(false, true)) {
+            mainThreadHandler.post(notifyCommand);
+        }
+        host.onSessionStateChanged(this);
+    }
+
+    //Player thread only, true if this session currently keeps a pooled MediaPlayer checked out
+    boolean holdsPlayer() {
+        return !suspended && engine == mediaManager && mediaManager.hasTrack();
+    }
+
+    /**
+     * Player thread only. Hands the player back to the pool, remembering position and duration.
+     * The pool keeps it prepared for as long as it can, so resuming is usually instant.
+     */
+    void suspend() {
+        if (!holdsPlayer() || isPlayingNow()) {
+            return;
+        }
+
+        savedPosition = mediaManager.getCurrentPosition();
+        savedDuration = mediaManager.getDuration();
+        mediaManager.release();
+        suspended = true;
+        publishState();
+    }
+
+    private void resumeIfSuspended() {
+        if (!suspended) {
+            return;
+        }
+
+        int position = savedPosition;
+        if (!queue.isEmpty()) {
+            playQueued(queue.getCurrentIndex(), false);
+        } else if (currentSourceKey != null && currentSourceKey.startsWith("url:")) {
+            String url = currentSourceKey.substring(4);
+            switchEngine(mediaManager);
+            mediaManager.loadUrl(url);
+            suspended = false;
+            host.onSessionHoldingPlayer(this);
+        } else if (currentSourceKey != null) {
+            loadResourceNow(Integer.parseInt(currentSourceKey.substring(4)), resourceEngineType);
+        }
+
+        suspended = false;
+        engine.setCurrentPosition(position);
+    }
+
+    //Drops everything, the session can't be used afterwards
+    void release() {
+        onStateChangedListener = null;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executor.cancel(publishCommand);
+                queue.clear();
+                mediaManager.release();
+                soundPoolEngine.release();
+                pcmEngine.release();
+                suspended = false;
+                currentSourceKey = null;
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package com.alittlelost.soundaffect;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * The player operations MediaManager and PlayerPool rely on. MediaPlayerBackend plays through
+ * android.media.MediaPlayer, SimulatedPlayerBackend fakes one on a virtual clock so the playback
+ * logic on top can be exercised and measured without a device.
+ */
+
+interface PlayerBackend {
+
+    //Same values as the MediaPlayer constants, so reported codes read the same whichever backend produced them
+    int ERROR_UNKNOWN = 1;
+    int INFO_AUDIO_RENDERING_START = 4;
+    int INFO_BUFFERING_START = 701;
+    int INFO_BUFFERING_END = 702;
+
+    interface Factory {
+        PlayerBackend create();
+    }
+
+    //Called on the thread the backend was created on
+    interface Listener {
+        void onPrepared(PlayerBackend player);
+
+        void onCompletion(PlayerBackend player);
+
+        void onError(PlayerBackend player, int what, int extra);
+
+        void onInfo(PlayerBackend player, int what, int extra);
+
+        void onSeekComplete(PlayerBackend player);
+    }
+
+    void setListener(Listener listener);
+
+    //A local file path or a URL to stream
+    void setDataSource(String path) throws IOException;
+
+    void setDataSource(FileDescriptor fd, long offset, long length) throws IOException;
+
+    //A download that may still be running, read as it arrives. Only used where AudioCache.canReadWhileDownloading()
+    void setDataSource(CacheDownload download) throws IOException;
+
+    //Encoded bytes already in memory, only used where ClipMemoryCache.isSupported()
+    void setDataSource(byte[] data) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    //Lands exactly on positionMs
+    void seekTo(int positionMs);
+
+    //Lands on the sync frame nearest positionMs, much cheaper. Same as seekTo() where the player can't choose
+    void seekToClosestSync(int positionMs);
+
+    boolean isPlaying();
+
+    int getCurrentPosition();
+
+    //-1 while unknown
+    int getDuration();
+
+    void setLooping(boolean looping);
+
+    //Starts next the moment this one completes, null to unchain
+    void setNextPlayer(PlayerBackend next);
+
+    //Back to idle so a new data source can be set
+    void reset();
+
+    void release();
+}
@@ -0,0 +1,49 @@
+package com.alittlelost.soundaffect;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * The single background thread every player operation runs on, in submission order.
+ * MediaPlayers are created on this thread too, so their callbacks arrive here as well
+ * and nothing touching a player ever runs on (or blocks) the UI thread.
+ */
+
+class PlayerCommandExecutor {
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    PlayerCommandExecutor() {
+        thread = new HandlerThread("soundaffect-player");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    void execute(Runnable command) {
+        handler.post(command);
+    }
+
+    void executeDelayed(Runnable command, long delayMillis) {
+        handler.postDelayed(command, delayMillis);
+    }
+
+    void cancel(Runnable command) {
+        handler.removeCallbacks(command);
+    }
+
+    boolean isPlayerThread() {
+        return Looper.myLooper() == thread.getLooper();
+    }
+
+    //For tests that run the queued commands themselves
+    Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    //Runs everything already submitted, then stops the thread
+    void shutdown() {
+        thread.quitSafely();
+    }
+}
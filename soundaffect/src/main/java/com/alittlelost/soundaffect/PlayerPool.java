@@ -0,0 +1,193 @@
+package com.alittlelost.soundaffect;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded pool of players keyed by source.
+ * The most recently used sources stay prepared so switching back to one of them is instant,
+ * the least recently used idle player is recycled with reset() when a new source needs a player,
+ * and players are only released when they are trimmed from the pool.
+ */
+
+class PlayerPool {
+
+    static final int DEFAULT_MAX_PLAYERS = 3;
+    private static final String TAG = "PlayerPool";
+
+    static class Entry {
+        final PlayerBackend player;
+        String key;
+        boolean prepared = false;
+        boolean inUse = false;
+
+        //Looked up by MediaManager when the player is prepared from a cached VBR file. Once it has sought through
+        //the index, the player still counts positions from its own bitrate estimate, the track position is
+        //positionCorrectionMs ahead of it
+        SeekIndex seekIndex;
+        int positionCorrectionMs = 0;
+
+        Entry(PlayerBackend player) {
+            this.player = player;
+        }
+
+        //True if this player already holds the source it was acquired for
+        boolean isLoaded() {
+            return key != null;
+        }
+    }
+
+    //Access ordered, so iteration starts at the least recently used source
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(8, 0.75f, true);
+    private final PlayerBackend.Factory backendFactory;
+    private int maxPlayers = DEFAULT_MAX_PLAYERS;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long playersCreated = 0;
+
+    PlayerPool(PlayerBackend.Factory backendFactory) {
+        this.backendFactory = backendFactory;
+    }
+
+    synchronized void setMaxPlayers(int maxPlayers) {
+        this.maxPlayers = Math.max(1, maxPlayers);
+        trimTo(this.maxPlayers);
+    }
+
+    synchronized int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    /**
+     * Hands out a player for key and marks it in use. On a hit the player is already loaded
+     * (and possibly prepared), otherwise it is idle and the caller must set its data source.
+     */
+    synchronized Entry acquire(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.inUse) {
+            hits++;
+            entry.inUse = true;
+            return entry;
+        }
+
+        misses++;
+        entry = recycleLeastRecentlyUsed();
+        if (entry == null) {
+            entry = createEntry();
+        }
+
+        entry.inUse = true;
+        return entry;
+    }
+
+    //Called once the caller has set the data source of a freshly acquired player
+    synchronized void register(Entry entry, String key) {
+        entry.key = key;
+        entry.prepared = false;
+        entry.seekIndex = null;
+        entry.positionCorrectionMs = 0;
+
+        //If the same source was already pooled but busy, the older player is released when it is recycled
+        entries.put(key, entry);
+    }
+
+    //Returns a player to the pool, it stays prepared until it is recycled for another source
+    synchronized void recycle(Entry entry) {
+        entry.inUse = false;
+        if (entry.key == null || entries.get(entry.key) != entry) {
+            entry.player.release();
+            return;
+        }
+
+        //Acquire goes over budget when every player is busy, catch up now one is free
+        trimTo(maxPlayers);
+    }
+
+    //Drops a player that hit an error, it can't be trusted to reset cleanly
+    synchronized void discard(Entry entry) {
+        if (entry.key != null && entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+        entry.player.release();
+    }
+
+    synchronized void markPrepared(Entry entry) {
+        entry.prepared = true;
+    }
+
+    //Releases idle players until at most maxPlayers remain
+    synchronized void trimTo(int maxPlayers) {
+        List<Entry> idle = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.inUse) {
+                idle.add(entry);
+            }
+        }
+
+        int excess = entries.size() - maxPlayers;
+        for (int i = 0; i < idle.size() && excess > 0; i++, excess--) {
+            Entry entry = idle.get(i);
+            entries.remove(entry.key);
+            evict(entry);
+        }
+    }
+
+    synchronized void releaseAll() {
+        for (Entry entry : entries.values()) {
+            entry.player.release();
+        }
+        entries.clear();
+    }
+
+    synchronized PlayerPoolStats getStats() {
+        return new PlayerPoolStats(hits, misses, evictions, playersCreated, entries.size());
+    }
+
+    private Entry recycleLeastRecentlyUsed() {
+        if (entries.size() < maxPlayers) {
+            return null;
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (!entry.inUse) {
+                iterator.remove();
+                evictions++;
+                try {
+                    entry.player.reset();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Failed to reset pooled player: " + e);
+                    entry.player.release();
+                    return null;
+                }
+                entry.key = null;
+                entry.prepared = false;
+                entry.seekIndex = null;
+                entry.positionCorrectionMs = 0;
+                return entry;
+            }
+        }
+
+        //Every pooled player is busy, go over budget rather than interrupting one
+        return null;
+    }
+
+    private Entry createEntry() {
+        playersCreated++;
+        return new Entry(backendFactory.create());
+    }
+
+    private void evict(Entry entry) {
+        evictions++;
+        entry.key = null;
+        entry.player.release();
+    }
+}
@@ -0,0 +1,56 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Snapshot of how well the player pool is doing at keeping recently used tracks prepared.
+ */
+
+public final class PlayerPoolStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long playersCreated;
+    private final int pooledPlayers;
+
+    PlayerPoolStats(long hits, long misses, long evictions, long playersCreated, int pooledPlayers) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.playersCreated = playersCreated;
+        this.pooledPlayers = pooledPlayers;
+    }
+
+    //Loads served by a player that already had the track prepared
+    public long getHits() {
+        return hits;
+    }
+
+    //Loads that had to set a data source and prepare from scratch
+    public long getMisses() {
+        return misses;
+    }
+
+    //Prepared tracks dropped to make room for another one
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getPlayersCreated() {
+        return playersCreated;
+    }
+
+    public int getPooledPlayers() {
+        return pooledPlayers;
+    }
+
+    public float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerPoolStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", playersCreated=" + playersCreated + ", pooledPlayers=" + pooledPlayers + "}";
+    }
+}
@@ -0,0 +1,86 @@
+package com.alittlelost.soundaffect;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms the audio cache with the start of upcoming tracks so a later loadUrl prepares from local bytes.
+ * Runs on its own small pool so prefetching never queues in front of a track that is actually being played.
+ */
+
+class Prefetcher {
+
+    static final long DEFAULT_PREFETCH_BYTES = 256 * 1024;
+    private static final int MAX_CONCURRENT_PREFETCHES = 2;
+
+    private final AudioCache audioCache;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, CacheDownload> prefetches = new HashMap<>();
+
+    private long prefetchBytes = DEFAULT_PREFETCH_BYTES;
+
+    Prefetcher(AudioCache audioCache) {
+        this.audioCache = audioCache;
+
+        executor = new ThreadPoolExecutor(MAX_CONCURRENT_PREFETCHES, MAX_CONCURRENT_PREFETCHES,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void setPrefetchBytes(long prefetchBytes) {
+        this.prefetchBytes = prefetchBytes;
+    }
+
+    synchronized void prefetch(String url) {
+        pruneFinished();
+
+        if (prefetches.containsKey(url)) {
+            return;
+        }
+
+        CacheDownload download = audioCache.prefetch(url, prefetchBytes, executor);
+        if (download != null) {
+            prefetches.put(url, download);
+        }
+    }
+
+    //Queued in list order, so the next item in a list is warmed first
+    synchronized void prefetch(List<String> urls) {
+        for (String url : urls) {
+            prefetch(url);
+        }
+    }
+
+    synchronized void cancel(String url) {
+        CacheDownload download = prefetches.remove(url);
+        cancelIfStillPrefetching(download);
+    }
+
+    synchronized void cancelAll() {
+        for (CacheDownload download : prefetches.values()) {
+            cancelIfStillPrefetching(download);
+        }
+        prefetches.clear();
+    }
+
+    //Playback may have taken over the download in the meantime, that must keep running
+    private void cancelIfStillPrefetching(CacheDownload download) {
+        if (download != null) {
+            download.cancelIfLimited();
+        }
+    }
+
+    private void pruneFinished() {
+        Iterator<CacheDownload> iterator = prefetches.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+    }
+}
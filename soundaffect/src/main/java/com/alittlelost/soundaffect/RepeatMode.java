@@ -0,0 +1,14 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * What the playback queue does when it runs off the end of a track.
+ */
+
+public enum RepeatMode {
+    //Stop after the last track
+    OFF,
+    //Loop the current track
+    ONE,
+    //Go back to the first track after the last one
+    ALL
+}
@@ -0,0 +1,117 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * The seek bar arithmetic SoundAffect runs every frame and on every touch move: millisecond position to
+ * sub-pixel x and back, and the whole-pixel bounds of the position indicator, its touch target and the
+ * current time label. Bounds are written as {left, top, right, bottom} into an array the caller owns,
+ * so nothing here allocates or needs android.graphics, which keeps it measurable on a plain JVM.
+ */
+
+class SeekBarGeometry {
+
+    private final int notchThickness;
+    private final int notchHeight;
+    private final int notchTouchThickness;
+    private final float dotRadius;
+
+    private int left;
+    private int top;
+    private int right;
+    private int bottom;
+
+    //Sub-pixel left edge of the position indicator
+    private float notchX;
+
+    SeekBarGeometry(int notchThickness, int notchHeight, int notchTouchThickness, float dotRadius) {
+        this.notchThickness = notchThickness;
+        this.notchHeight = notchHeight;
+        this.notchTouchThickness = notchTouchThickness;
+        this.dotRadius = dotRadius;
+    }
+
+    //Puts the indicator back at the start
+    void setSeekBar(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        notchX = left;
+    }
+
+    //Millisecond position <-> sub-pixel x along the seek bar, so long tracks don't snap to whole percents
+    float positionToX(int position, int duration) {
+        int width = right - left;
+        if (duration <= 0 || width <= 0) {
+            return left;
+        }
+
+        double fraction = Math.max(0, Math.min(1, (double) position / duration));
+        return (float) (left + fraction * width);
+    }
+
+    int xToPosition(float x, int duration) {
+        int width = right - left;
+        if (duration <= 0 || width <= 0) {
+            return 0;
+        }
+
+        double fraction = Math.max(0, Math.min(1, (double) (x - left) / width));
+        return (int) Math.round(fraction * duration);
+    }
+
+    float clampX(float x) {
+        return Math.max(left, Math.min(x, right));
+    }
+
+    void setNotchX(float x) {
+        notchX = x;
+    }
+
+    float getNotchX() {
+        return notchX;
+    }
+
+    //Whole pixels covered by the notch, from above the bar to below it
+    void getNotchBounds(int[] out) {
+        out[0] = (int) Math.floor(notchX);
+        out[1] = top - notchHeight;
+        out[2] = (int) Math.ceil(notchX + notchThickness);
+        out[3] = bottom + notchHeight;
+    }
+
+    void getNotchTouchBounds(int[] out) {
+        getNotchBounds(out);
+        out[0] -= notchTouchThickness / 2;
+        out[1] -= notchTouchThickness / 2;
+        out[2] += notchTouchThickness / 2;
+        out[3] += notchTouchThickness / 2;
+    }
+
+    //Everything the position indicator paints, whichever shape it is drawn as
+    void getIndicatorBounds(boolean dot, int[] out) {
+        getNotchBounds(out);
+        if (dot) {
+            int radius = (int) Math.ceil(dotRadius);
+            int centerX = (out[0] + out[2]) >> 1;
+            int centerY = (out[1] + out[3]) >> 1;
+            out[0] = centerX - radius;
+            out[1] = centerY - radius;
+            out[2] = centerX + radius + 1;
+            out[3] = centerY + radius + 1;
+        }
+
+        //Room for anti-aliased edges
+        out[0]--;
+        out[1]--;
+        out[2]++;
+        out[3]++;
+    }
+
+    //A label width wide at the start of the bar, textTop and textBottom relative to baseline as in FontMetricsInt
+    void getTimeLabelBounds(int width, int baseline, int textTop, int textBottom, int[] out) {
+        out[0] = left - 1;
+        out[1] = baseline + textTop - 1;
+        out[2] = left + width + 1;
+        out[3] = baseline + textBottom + 1;
+    }
+}
@@ -0,0 +1,383 @@
+package com.alittlelost.soundaffect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Time -> byte offset table for a cached MP3 file, one entry per frame boundary every ENTRY_INTERVAL_MS.
+ * Built by walking the frame headers once, so it is exact even for VBR files, where players without
+ * anything better guess offsets from the bitrate. Only built for VBR files that leave players guessing:
+ * constant bitrate files already seek exactly, players seek through the table of contents of a Xing
+ * or VBRI header instead, and they index the frames of ADTS AAC files themselves.
+ */
+
+class SeekIndex {
+
+    private static final int FILE_VERSION = 3;
+    private static final int FORMAT_UNKNOWN = 0;
+    private static final int FORMAT_MPEG = 1;
+    private static final int FORMAT_ADTS = 2;
+    private static final int TAG_NONE = 0;
+    private static final int TAG_WITHOUT_TOC = 1;
+    private static final int TAG_WITH_TOC = 2;
+    static final int ENTRY_INTERVAL_MS = 500;
+
+    //Bitrates in kbps by [MPEG1 ? 0 : 1][layer - 1][index]
+    private static final int[][][] MPEG_BITRATES = {
+            {
+                    {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+            },
+            {
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+            }
+    };
+
+    //Sample rates by [version bits][index], version bits 1 is reserved
+    private static final int[][] MPEG_SAMPLE_RATES = {
+            {11025, 12000, 8000},
+            {0, 0, 0},
+            {22050, 24000, 16000},
+            {44100, 48000, 32000}
+    };
+
+    private final int durationMs;
+    private final long fileLength;
+    private final int[] times;
+    private final long[] offsets;
+
+    private SeekIndex(int durationMs, long fileLength, int[] times, long[] offsets) {
+        this.durationMs = durationMs;
+        this.fileLength = fileLength;
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    int getDurationMs() {
+        return durationMs;
+    }
+
+    //Length of the indexed file, the byte count players spread their bitrate estimate over
+    long getFileLength() {
+        return fileLength;
+    }
+
+    //The last entry at or before positionMs
+    int findEntry(int positionMs) {
+        int index = Arrays.binarySearch(times, positionMs);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    int getTimeMs(int entry) {
+        return times[entry];
+    }
+
+    long getOffset(int entry) {
+        return offsets[entry];
+    }
+
+    /**
+     * @return the index of file, or null if it isn't MP3, is constant bitrate or has a table of contents
+     */
+    static SeekIndex build(File file) throws IOException {
+        Scanner scanner = new Scanner(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            return scanner.scan(file.length());
+        } finally {
+            scanner.close();
+        }
+    }
+
+    static SeekIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown seek index version");
+            }
+
+            int durationMs = in.readInt();
+            long fileLength = in.readLong();
+            int count = in.readInt();
+            int[] times = new int[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readInt();
+                offsets[i] = in.readLong();
+            }
+            return new SeekIndex(durationMs, fileLength, times, offsets);
+        } finally {
+            in.close();
+        }
+    }
+
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(durationMs);
+            out.writeLong(fileLength);
+            out.writeInt(times.length);
+            for (int i = 0; i < times.length; i++) {
+                out.writeInt(times[i]);
+                out.writeLong(offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    //Walks frame headers from the start of the file, sliding a byte at a time over anything that isn't one
+    private static class Scanner {
+
+        private static final int HEADER_SIZE = 7;
+
+        //Enough of the first frame to reach a Xing, Info or VBRI tag and the Xing flags after it
+        private static final int TAG_PEEK_SIZE = 44;
+
+        private final InputStream in;
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final byte[] firstFrame = new byte[TAG_PEEK_SIZE];
+        private long position = 0;
+
+        private int[] times = new int[64];
+        private long[] offsets = new long[64];
+        private int count = 0;
+
+        Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        SeekIndex scan(long fileLength) throws IOException {
+            skipId3();
+
+            int format = FORMAT_UNKNOWN;
+            int sampleRate = 0;
+            int firstFrameLength = -1;
+            boolean variable = false;
+            long samples = 0;
+            long nextEntrySamples = 0;
+
+            try {
+                while (true) {
+                    in.mark(HEADER_SIZE);
+                    readFully(header, 0, HEADER_SIZE);
+
+                    int frameFormat = isAdtsHeader(header) ? FORMAT_ADTS : (isMpegHeader(header) ? FORMAT_MPEG : FORMAT_UNKNOWN);
+                    //Players index ADTS frames themselves
+                    if (frameFormat == FORMAT_ADTS && format == FORMAT_UNKNOWN) {
+                        return null;
+                    }
+
+                    int frameSampleRate = 0;
+                    int frameLength = 0;
+                    int frameSamples = 0;
+                    if (frameFormat == FORMAT_MPEG) {
+                        frameSampleRate = mpegSampleRate(header);
+                        frameLength = mpegFrameLength(header, frameSampleRate);
+                        frameSamples = mpegSamplesPerFrame(header);
+                    }
+
+                    //Stray sync bits inside tags or a damaged frame, the real stream keeps its format and rate
+                    if (frameFormat == FORMAT_UNKNOWN || frameLength < HEADER_SIZE
+                            || (format != FORMAT_UNKNOWN && (frameFormat != format || frameSampleRate != sampleRate))) {
+                        in.reset();
+                        skipFully(1);
+                        continue;
+                    }
+
+                    int read = HEADER_SIZE;
+                    if (format == FORMAT_UNKNOWN) {
+                        //Encoders write a Xing, Info or VBRI tag in place of the first audio frame
+                        read = Math.min(frameLength, TAG_PEEK_SIZE);
+                        System.arraycopy(header, 0, firstFrame, 0, HEADER_SIZE);
+                        readFully(firstFrame, HEADER_SIZE, read - HEADER_SIZE);
+
+                        int tag = findTag(firstFrame, read);
+                        if (tag == TAG_WITH_TOC) {
+                            return null;
+                        }
+
+                        format = frameFormat;
+                        sampleRate = frameSampleRate;
+                        if (tag == TAG_WITHOUT_TOC) {
+                            //Silent and not counted by players, the track starts at the next frame
+                            position += read;
+                            skipFully(frameLength - read);
+                            continue;
+                        }
+                    }
+
+                    if (firstFrameLength == -1) {
+                        firstFrameLength = frameLength;
+                    } else if (frameLength != firstFrameLength && !isPaddingDifference(frameLength, firstFrameLength)) {
+                        variable = true;
+                    }
+
+                    if (samples >= nextEntrySamples) {
+                        addEntry((int) (samples * 1000 / sampleRate), position);
+                        nextEntrySamples += (long) sampleRate * ENTRY_INTERVAL_MS / 1000;
+                    }
+
+                    samples += frameSamples;
+                    position += read;
+                    skipFully(frameLength - read);
+                }
+            } catch (EOFException e) {
+                //Ran off the end, a cut short last frame doesn't matter
+            }
+
+            if (count == 0 || !variable) {
+                return null;
+            }
+
+            return new SeekIndex((int) (samples * 1000 / sampleRate), fileLength, Arrays.copyOf(times, count),
+                    Arrays.copyOf(offsets, count));
+        }
+
+        private void skipId3() throws IOException {
+            byte[] id3 = new byte[10];
+            in.mark(id3.length);
+            if (in.read(id3) != id3.length || id3[0] != 'I' || id3[1] != 'D' || id3[2] != '3') {
+                in.reset();
+                return;
+            }
+
+            //Syncsafe size, plus the footer if there is one
+            int size = ((id3[6] & 0x7f) << 21) | ((id3[7] & 0x7f) << 14) | ((id3[8] & 0x7f) << 7) | (id3[9] & 0x7f);
+            if ((id3[5] & 0x10) != 0) {
+                size += 10;
+            }
+            position = id3.length;
+            skipFully(size);
+        }
+
+        private void readFully(byte[] buffer, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                int read = in.read(buffer, offset, end - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+        }
+
+        private void skipFully(long count) throws IOException {
+            position += count;
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private void addEntry(int timeMs, long offset) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            times[count] = timeMs;
+            offsets[count] = offset;
+            count++;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    //A padded CBR frame is one byte (four for layer I) longer than an unpadded one
+    private static boolean isPaddingDifference(int a, int b) {
+        int difference = Math.abs(a - b);
+        return difference == 1 || difference == 4;
+    }
+
+    private static boolean isAdtsHeader(byte[] header) {
+        return (header[0] & 0xff) == 0xff && (header[1] & 0xf6) == 0xf0;
+    }
+
+    //A Xing or Info tag follows the side information, a VBRI tag always sits 32 bytes after the header
+    private static int findTag(byte[] frame, int length) {
+        boolean mpeg1 = ((frame[1] >> 3) & 0x03) == 3;
+        boolean mono = ((frame[3] >> 6) & 0x03) == 3;
+        int xing = 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+
+        if (hasTag(frame, length, xing, "Xing") || hasTag(frame, length, xing, "Info")) {
+            //Bit 2 of the flags after the tag says a table of contents follows
+            return xing + 8 <= length && (frame[xing + 7] & 0x04) != 0 ? TAG_WITH_TOC : TAG_WITHOUT_TOC;
+        }
+        if (hasTag(frame, length, 36, "VBRI")) {
+            return TAG_WITH_TOC;
+        }
+        return TAG_NONE;
+    }
+
+    private static boolean hasTag(byte[] frame, int length, int offset, String tag) {
+        if (offset + tag.length() > length) {
+            return false;
+        }
+
+        for (int i = 0; i < tag.length(); i++) {
+            if (frame[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isMpegHeader(byte[] header) {
+        return (header[0] & 0xff) == 0xff && (header[1] & 0xe0) == 0xe0
+                && ((header[1] >> 3) & 0x03) != 1
+                && ((header[1] >> 1) & 0x03) != 0
+                && ((header[2] >> 4) & 0x0f) != 0x0f && ((header[2] >> 4) & 0x0f) != 0
+                && ((header[2] >> 2) & 0x03) != 3;
+    }
+
+    private static int mpegSampleRate(byte[] header) {
+        return MPEG_SAMPLE_RATES[(header[1] >> 3) & 0x03][(header[2] >> 2) & 0x03];
+    }
+
+    private static int mpegSamplesPerFrame(byte[] header) {
+        int layer = 4 - ((header[1] >> 1) & 0x03);
+        boolean mpeg1 = ((header[1] >> 3) & 0x03) == 3;
+        if (layer == 1) {
+            return 384;
+        }
+        return layer == 3 && !mpeg1 ? 576 : 1152;
+    }
+
+    private static int mpegFrameLength(byte[] header, int sampleRate) {
+        int layer = 4 - ((header[1] >> 1) & 0x03);
+        boolean mpeg1 = ((header[1] >> 3) & 0x03) == 3;
+        int bitrate = MPEG_BITRATES[mpeg1 ? 0 : 1][layer - 1][(header[2] >> 4) & 0x0f] * 1000;
+        int padding = (header[2] >> 1) & 0x01;
+        if (sampleRate == 0) {
+            return -1;
+        }
+
+        if (layer == 1) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        return (layer == 3 && !mpeg1 ? 72 : 144) * bitrate / sampleRate + padding;
+    }
+}
@@ -0,0 +1,415 @@
+package com.alittlelost.soundaffect;
+
+import java.io.FileDescriptor;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A PlayerBackend with no audio behind it, driven by a VirtualClock. It models prepare and seek delays,
+ * periodic buffering stalls on streamed sources and position advancing in real time, so thousands
+ * of load/seek/play cycles can run deterministically on a plain JVM. Not thread safe, use it from the
+ * thread that advances the clock.
+ */
+
+class SimulatedPlayerBackend implements PlayerBackend {
+
+    /**
+     * Creates simulated players sharing one clock and one set of timings.
+     */
+    static class Factory implements PlayerBackend.Factory {
+
+        private final VirtualClock clock;
+        private final Map<String, Integer> durations = new HashMap<>();
+        private int defaultDurationMs = 180000;
+        private int prepareDelayMs = 50;
+        private int streamPrepareDelayMs = 400;
+        private int seekDelayMs = 20;
+        private int syncSeekDelayMs = 5;
+        private int syncFrameIntervalMs = 1000;
+        private int stallIntervalMs = 0;
+        private int stallDurationMs = 0;
+        private int failEveryNthPrepare = 0;
+        private int prepareCount = 0;
+        private int playersCreated = 0;
+
+        Factory(VirtualClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public PlayerBackend create() {
+            playersCreated++;
+            return new SimulatedPlayerBackend(this);
+        }
+
+        VirtualClock getClock() {
+            return clock;
+        }
+
+        int getPlayersCreated() {
+            return playersCreated;
+        }
+
+        void setDefaultDuration(int durationMs) {
+            this.defaultDurationMs = durationMs;
+        }
+
+        //Duration for one source, as passed to setDataSource or the url of a download
+        void setDuration(String source, int durationMs) {
+            durations.put(source, durationMs);
+        }
+
+        //Local files and descriptors
+        void setPrepareDelay(int prepareDelayMs) {
+            this.prepareDelayMs = prepareDelayMs;
+        }
+
+        //URLs and downloads
+        void setStreamPrepareDelay(int streamPrepareDelayMs) {
+            this.streamPrepareDelayMs = streamPrepareDelayMs;
+        }
+
+        void setSeekDelay(int seekDelayMs) {
+            this.seekDelayMs = seekDelayMs;
+        }
+
+        //Sync frame seeks land on a multiple of syncFrameIntervalMs and complete after syncSeekDelayMs
+        void setSyncSeek(int syncFrameIntervalMs, int syncSeekDelayMs) {
+            this.syncFrameIntervalMs = Math.max(1, syncFrameIntervalMs);
+            this.syncSeekDelayMs = syncSeekDelayMs;
+        }
+
+        //Streamed sources stall for stallDurationMs after every stallIntervalMs of playback, 0 for never
+        void setStalls(int stallIntervalMs, int stallDurationMs) {
+            this.stallIntervalMs = stallIntervalMs;
+            this.stallDurationMs = stallDurationMs;
+        }
+
+        //Every nth prepare fails with ERROR_UNKNOWN, 0 for never
+        void setFailEveryNthPrepare(int failEveryNthPrepare) {
+            this.failEveryNthPrepare = failEveryNthPrepare;
+        }
+
+        private boolean nextPrepareFails() {
+            prepareCount++;
+            return failEveryNthPrepare > 0 && prepareCount % failEveryNthPrepare == 0;
+        }
+
+        private int durationOf(String source) {
+            Integer duration = durations.get(source);
+            return duration != null ? duration : defaultDurationMs;
+        }
+    }
+
+    private enum State {
+        IDLE, INITIALIZED, PREPARING, PREPARED, STARTED, PAUSED, COMPLETED, ERROR, RELEASED
+    }
+
+    private final Factory factory;
+    private final VirtualClock clock;
+    private Listener listener;
+
+    private State state = State.IDLE;
+    private String source;
+    private boolean streamed = false;
+    private int durationMs = -1;
+    private boolean looping = false;
+    private SimulatedPlayerBackend nextPlayer;
+
+    //Position is basePosition plus the clock time played since baseUptime, frozen while stalled
+    private int basePosition = 0;
+    private long baseUptime = 0;
+    private boolean stalled = false;
+
+    //The one pending prepare, stall or completion event, and the pending seek completion
+    private Object pendingEvent;
+    private Object pendingSeek;
+
+    private SimulatedPlayerBackend(Factory factory) {
+        this.factory = factory;
+        this.clock = factory.clock;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) {
+        setSource(path, path.startsWith("http://") || path.startsWith("https://"));
+    }
+
+    @Override
+    public void setDataSource(FileDescriptor fd, long offset, long length) {
+        setSource("fd:" + offset + "+" + length, false);
+    }
+
+    @Override
+    public void setDataSource(CacheDownload download) {
+        setSource(download.getUrl(), true);
+    }
+
+    @Override
+    public void setDataSource(byte[] data) {
+        setSource("bytes:" + data.length, false);
+    }
+
+    private void setSource(String source, boolean streamed) {
+        requireState(State.IDLE);
+        this.source = source;
+        this.streamed = streamed;
+        state = State.INITIALIZED;
+    }
+
+    @Override
+    public void prepareAsync() {
+        requireState(State.INITIALIZED);
+        state = State.PREPARING;
+
+        final boolean fails = factory.nextPrepareFails();
+        pendingEvent = clock.schedule(streamed ? factory.streamPrepareDelayMs : factory.prepareDelayMs,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingEvent = null;
+                        if (fails) {
+                            fail();
+                            return;
+                        }
+
+                        state = State.PREPARED;
+                        durationMs = factory.durationOf(source);
+                        basePosition = 0;
+                        if (listener != null) {
+                            listener.onPrepared(SimulatedPlayerBackend.this);
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void start() {
+        if (state == State.STARTED) {
+            return;
+        }
+        if (state != State.PREPARED && state != State.PAUSED && state != State.COMPLETED) {
+            throw new IllegalStateException("start() in state " + state);
+        }
+
+        if (state == State.COMPLETED) {
+            basePosition = 0;
+        }
+        state = State.STARTED;
+        baseUptime = clock.now();
+        if (listener != null) {
+            listener.onInfo(this, INFO_AUDIO_RENDERING_START, 0);
+        }
+        scheduleNextEvent();
+    }
+
+    @Override
+    public void pause() {
+        if (state == State.PAUSED) {
+            return;
+        }
+        if (state != State.STARTED) {
+            throw new IllegalStateException("pause() in state " + state);
+        }
+
+        basePosition = getCurrentPosition();
+        state = State.PAUSED;
+        cancelPendingEvent();
+        endStall();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        seek(positionMs, factory.seekDelayMs);
+    }
+
+    @Override
+    public void seekToClosestSync(int positionMs) {
+        int interval = factory.syncFrameIntervalMs;
+        seek((positionMs + interval / 2) / interval * interval, factory.syncSeekDelayMs);
+    }
+
+    private void seek(int positionMs, int delayMs) {
+        if (state != State.PREPARED && state != State.STARTED && state != State.PAUSED
+                && state != State.COMPLETED) {
+            throw new IllegalStateException("seekTo() in state " + state);
+        }
+
+        cancelPendingEvent();
+        endStall();
+        basePosition = Math.max(0, Math.min(positionMs, durationMs));
+        baseUptime = clock.now();
+        if (state == State.COMPLETED) {
+            state = State.PAUSED;
+        }
+        if (state == State.STARTED) {
+            scheduleNextEvent();
+        }
+
+        clock.cancel(pendingSeek);
+        pendingSeek = clock.schedule(delayMs, new Runnable() {
+            @Override
+            public void run() {
+                pendingSeek = null;
+                if (listener != null) {
+                    listener.onSeekComplete(SimulatedPlayerBackend.this);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return state == State.STARTED;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        if (state != State.STARTED || stalled) {
+            return basePosition;
+        }
+        return (int) Math.min(durationMs, basePosition + clock.now() - baseUptime);
+    }
+
+    @Override
+    public int getDuration() {
+        return durationMs;
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    @Override
+    public void setNextPlayer(PlayerBackend next) {
+        nextPlayer = (SimulatedPlayerBackend) next;
+    }
+
+    @Override
+    public void reset() {
+        cancelPendingEvent();
+        clock.cancel(pendingSeek);
+        pendingSeek = null;
+        state = State.IDLE;
+        source = null;
+        durationMs = -1;
+        looping = false;
+        nextPlayer = null;
+        basePosition = 0;
+        stalled = false;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        state = State.RELEASED;
+        listener = null;
+    }
+
+    //Whichever comes first while playing: the next stall or the end of the track
+    private void scheduleNextEvent() {
+        cancelPendingEvent();
+        if (stalled) {
+            return;
+        }
+
+        //Stalls come at fixed points of the track, every stallIntervalMs
+        int position = getCurrentPosition();
+        int untilEnd = durationMs - position;
+        int interval = factory.stallIntervalMs;
+        int untilStall = streamed && interval > 0
+                ? (position / interval + 1) * interval - position : Integer.MAX_VALUE;
+
+        if (untilStall < untilEnd) {
+            pendingEvent = clock.schedule(untilStall, new Runnable() {
+                @Override
+                public void run() {
+                    pendingEvent = null;
+                    beginStall();
+                }
+            });
+        } else {
+            pendingEvent = clock.schedule(untilEnd, new Runnable() {
+                @Override
+                public void run() {
+                    pendingEvent = null;
+                    complete();
+                }
+            });
+        }
+    }
+
+    private void beginStall() {
+        basePosition = getCurrentPosition();
+        stalled = true;
+        if (listener != null) {
+            listener.onInfo(this, INFO_BUFFERING_START, 0);
+        }
+
+        pendingEvent = clock.schedule(factory.stallDurationMs, new Runnable() {
+            @Override
+            public void run() {
+                pendingEvent = null;
+                endStall();
+                if (state == State.STARTED) {
+                    scheduleNextEvent();
+                }
+            }
+        });
+    }
+
+    //A pause or seek ends a stall early, the way a player gives up buffering for the old position
+    private void endStall() {
+        if (!stalled) {
+            return;
+        }
+
+        stalled = false;
+        baseUptime = clock.now();
+        if (listener != null) {
+            listener.onInfo(this, INFO_BUFFERING_END, 0);
+        }
+    }
+
+    private void complete() {
+        if (looping) {
+            basePosition = 0;
+            baseUptime = clock.now();
+            scheduleNextEvent();
+            return;
+        }
+
+        basePosition = durationMs;
+        state = State.COMPLETED;
+        if (nextPlayer != null && nextPlayer.state == State.PREPARED) {
+            nextPlayer.start();
+        }
+        if (listener != null) {
+            listener.onCompletion(this);
+        }
+    }
+
+    private void fail() {
+        state = State.ERROR;
+        if (listener != null) {
+            listener.onError(this, ERROR_UNKNOWN, 0);
+        }
+    }
+
+    private void cancelPendingEvent() {
+        clock.cancel(pendingEvent);
+        pendingEvent = null;
+    }
+
+    private void requireState(State required) {
+        if (state != required) {
+            throw new IllegalStateException("Expected " + required + " but was " + state);
+        }
+    }
+}
@@ -1,31 +1,22 @@
 package com.alittlelost.soundaffect;
 
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffColorFilter;
+import android.graphics.Path;
 import android.graphics.Rect;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.IBinder;
-import android.os.Looper;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Toast;
 
-import java.util.Locale;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 /**
  * Created by seanashmore on 19/09/2017.
@@ -34,27 +25,48 @@ import java.util.concurrent.TimeUnit;
 public class SoundAffect extends View {
 
     private MediaService mediaService;
+    private PlaybackSession session;
     private boolean isBound = false;
     private OnBindAttemptCompleteCallback onBindAttemptCompleteCallback;
 
-    private ServiceConnection serviceConnection = new ServiceConnection() {
+    //Identifies this view's playback session in the shared service
+    private static int nextGeneratedSessionId = 0;
+    private String sessionId = "SoundAffect-" + (nextGeneratedSessionId++);
+    private boolean sessionIdGenerated = true;
+
+    //Track for a session first seen through rebind() before the service connected
+    private String pendingRebindUrl;
+
+    private MediaServiceConnection.Client serviceClient = new MediaServiceConnection.Client() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            mediaService = ((MediaService.LocalBinder) service).getService();
+        public void onServiceConnected(MediaService service) {
+            mediaService = service;
+            attachSession();
             Toast.makeText(getContext(), "Service connected", Toast.LENGTH_SHORT).show();
+            onSessionStateChanged();
+
             onBindAttemptCompleteCallback.onSuccess();
         }
 
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onServiceDisconnected() {
             mediaService = null;
+            session = null;
+            updateTicker();
             Toast.makeText(getContext(), "Service disconnected", Toast.LENGTH_SHORT).show();
         }
     };
 
     private static final String TAG = "SoundAffect";
-    private final String INDICATOR_DOT = "dot";
-    private final String INDICATOR_NOTCH = "notch";
+
+    //Resolved once from the positionIndicatorShape attribute so drawing never compares strings
+    private enum IndicatorShape {
+        NOTCH, DOT;
+
+        static IndicatorShape fromAttribute(@Nullable String value) {
+            return "dot".equalsIgnoreCase(value) ? DOT : NOTCH;
+        }
+    }
 
     private final int SEEK_AND_NOTCH_THICKNESS = 10;
     private final int SEEK_NOTCH_HEIGHT = 10;
@@ -62,18 +74,26 @@ public class SoundAffect extends View {
     private final int NOTCH_TOUCH_THICKNESS = 100;
     private final int SEEK_BAR_TOUCH_THICKNESS = 100;
     private final float SEEK_NOTCH_DOT_RADIUS = 15.0f;
+    private final int WAVEFORM_BUCKETS = 200;
+    private final int WAVEFORM_HALF_HEIGHT = 20;
+
+    private final SeekBarGeometry seekBarGeometry = new SeekBarGeometry(SEEK_AND_NOTCH_THICKNESS, SEEK_NOTCH_HEIGHT,
+            NOTCH_TOUCH_THICKNESS, SEEK_NOTCH_DOT_RADIUS);
+
+    //{left, top, right, bottom} from seekBarGeometry, copied into the rects below
+    private final int[] bounds = new int[4];
 
     private Context context;
 
-    //Handler & thread to update current track position
-    private HandlerThread currentPositionHandlerThread;
-    private Handler currentPositionHandler;
-    private Handler mainThreadHandler;
+    //Playback position is extrapolated from the last player timestamp and the monotonic clock
+    private int anchorPosition = 0;
+    private long anchorUptime = 0;
+    private boolean positionAdvancing = false;
 
     //Paint to draw UI elements and debugging
     private Paint textPaint, playButtonPaint, prevButtonPaint, seekPaint, notchPaint, debugPaint;
 
-    //Bitmaps for audio controls
+    //Bitmaps for audio controls, pre-tinted and shared with every other SoundAffect through ControlBitmapCache
     private Bitmap playButtonImage, pauseButtonImage, prevButtonImage;
     private Rect playPauseButtonRect, prevButtonRect;
     private Rect seekbarRect, seekbarTouchRect;
@@ -81,24 +101,132 @@ public class SoundAffect extends View {
 
     private boolean isSeeking, wasPlayingBeforeSeek = false;
 
+    //seekBarGeometry has the sub-pixel left edge of the position indicator, notchRect its whole-pixel bounds
+    private final RectF notchDrawRect = new RectF();
+
+    //Position under the finger while scrubbing, handed to the player at most once a frame
+    private int scrubPosition = -1;
+    private int issuedScrubPosition = -1;
+
+    private FrameTicker.Listener scrubListener = new FrameTicker.Listener() {
+        @Override
+        public void onFrame(long frameTimeNanos) {
+            if (session != null && scrubPosition != -1 && scrubPosition != issuedScrubPosition) {
+                session.scrubTo(scrubPosition);
+                issuedScrubPosition = scrubPosition;
+            }
+        }
+    };
+
+    //Seek bar, buttons and duration are replayed from here, only the indicator and current time are drawn per frame
+    private final StaticLayer staticLayer = new StaticLayer(new StaticLayer.Painter() {
+        @Override
+        public void paint(Canvas canvas) {
+            drawStaticLayer(canvas);
+        }
+    });
+    private boolean staticLayerPlaying = false;
+
+    //Session changes that arrived while detached, applied on the next attach instead
+    private boolean sessionStateStale = false;
+    private boolean staticLayerShowsDuration = false;
+
+    //Area redrawn on a frame: where the indicator was, where it is now and the current time label
+    private final Rect dirtyRect = new Rect();
+    private final Rect indicatorBounds = new Rect();
+    private final Paint.FontMetricsInt textMetrics = new Paint.FontMetricsInt();
+
     //App attrs
     private int trackResourceId, positionIndicatorColor, seekBarColor, playButtonColor, prevButtonColor = -1;
     private boolean showPrevButton = false;
     private boolean showCurrentTime = true;
     private boolean showDuration = true;
-    private String positionIndicatorShape = INDICATOR_NOTCH;
+    private boolean showWaveform = false;
+    private PlaybackEngineType playbackEngine = PlaybackEngineType.MEDIA_PLAYER;
+    private IndicatorShape positionIndicatorShape = IndicatorShape.NOTCH;
+
+    //Preallocated timestamp text, only rebuilt when the displayed second changes
+    private final TimeLabel currentTimeLabel = new TimeLabel();
+    private final TimeLabel durationLabel = new TimeLabel();
+
+    //Waveform of the current track, drawn as one path rebuilt only when the peaks or size change
+    private Waveform waveform;
+    private String waveformSourceKey;
+    private final Path waveformPath = new Path();
+    private boolean waveformPathValid = false;
 
-    private Runnable currentPositionRunnable = new Runnable() {
+    private WaveformLoader.OnWaveformLoadedListener waveformListener = new WaveformLoader.OnWaveformLoadedListener() {
         @Override
-        public void run() {
-            updateNotchRect(getPercentageComplete());
-            mainThreadHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    invalidate();
-                }
-            });
-            currentPositionHandler.postDelayed(this, 1000);
+        public void onWaveformLoaded(String sourceKey, Waveform loaded) {
+            if (!sourceKey.equals(waveformSourceKey)) {
+                return;
+            }
+
+            waveform = loaded;
+            buildWaveformPath();
+            invalidate();
+        }
+
+        @Override
+        public void onWaveformFailed(String sourceKey) {
+            //The flat bar stays, the next state change asks again in case the track has been cached since
+            if (sourceKey.equals(waveformSourceKey)) {
+                waveformSourceKey = null;
+            }
+        }
+    };
+
+    //Commands complete on the player thread, the session reports the outcome back here
+    private PlaybackSession.OnStateChangedListener stateListener = new PlaybackSession.OnStateChangedListener() {
+        @Override
+        public void onStateChanged(PlaybackSession changed) {
+            if (changed == session) {
+                onSessionStateChanged();
+            }
+        }
+    };
+
+    //Format of the current track from the service's metadata index, so its duration shows before the player is prepared
+    private TrackMetadata metadata;
+    private String metadataSourceKey;
+
+    private MetadataIndex.OnMetadataLoadedListener metadataListener = new MetadataIndex.OnMetadataLoadedListener() {
+        @Override
+        public void onMetadataLoaded(String sourceKey, TrackMetadata loaded) {
+            if (!sourceKey.equals(metadataSourceKey)) {
+                return;
+            }
+
+            metadata = loaded;
+            invalidate();
+        }
+    };
+
+    private FrameTicker.Listener frameListener = new FrameTicker.Listener() {
+        @Override
+        public void onFrame(long frameTimeNanos) {
+            if (session == null) {
+                updateTicker();
+                return;
+            }
+
+            if (!session.isPlaying()) {
+                //Playback finished or was paused elsewhere, settle on the player's final position
+                syncPosition();
+                updateTicker();
+            } else if (getDuration() > 0 && getDisplayPosition() >= getDuration()) {
+                //Reached the end while still playing, a queued track may have taken over.
+                //An unknown duration isn't an end, it would resync every frame until the player prepares
+                syncPosition();
+                requestTrackDetails();
+            }
+
+            getIndicatorBounds(dirtyRect);
+            updateNotchPosition(getDisplayPosition());
+            getIndicatorBounds(indicatorBounds);
+            dirtyRect.union(indicatorBounds);
+            unionCurrentTimeBounds(dirtyRect);
+            invalidate(dirtyRect);
         }
     };
 
@@ -119,10 +247,6 @@ public class SoundAffect extends View {
         }
 
         this.context = context;
-
-        if (trackResourceId != -1) {
-            loadResource(trackResourceId);
-        }
     }
 
     public interface OnBindAttemptCompleteCallback {
@@ -131,31 +255,120 @@ public class SoundAffect extends View {
         void onFailure();
     }
 
+    /**
+     * Connects this view to the shared MediaService. All SoundAffect instances share one binding,
+     * each gets its own playback session inside the service.
+     */
     public void bindService(OnBindAttemptCompleteCallback callback) {
-        ComponentName componentName = getContext().startService(new Intent(getContext(), MediaService.class));
+        this.onBindAttemptCompleteCallback = callback;
 
-        if (componentName != null) {
+        isBound = MediaServiceConnection.getInstance(getContext()).bind(serviceClient);
 
-            this.onBindAttemptCompleteCallback = callback;
-
-            isBound = getContext().bindService(new Intent(getContext(), MediaService.class),
-                    serviceConnection,
-                    Context.BIND_AUTO_CREATE);
-
-
-            if (!isBound) {
-                callback.onFailure();
-            }
+        if (!isBound) {
+            callback.onFailure();
         }
     }
 
     public void unbindService() {
         if (isBound) {
-            getContext().unbindService(serviceConnection);
+            //Sessions named by the app outlive the view, generated ones die with it
+            if (sessionIdGenerated && mediaService != null) {
+                mediaService.releaseSession(sessionId);
+            }
+
+            if (session != null) {
+                session.setOnStateChangedListener(null);
+            }
+            MediaServiceConnection.getInstance(getContext()).unbind(serviceClient);
             isBound = false;
+            mediaService = null;
+            session = null;
+            updateTicker();
         }
     }
 
+    /**
+     * Gives this view a stable session id, so its playback state survives the view being recreated.
+     * Must be called before {@link #bindService(OnBindAttemptCompleteCallback)}.
+     */
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+        this.sessionIdGenerated = false;
+    }
+
+    /**
+     * Points this view at another session, for views recycled by a list. Keeps the service binding
+     * and control bitmaps and shows the new session's track, position and play state straight away.
+     * A session seen for the first time starts out with url loaded, pass null to leave it empty.
+     * Sessions stay in the service when the view moves on, so scrolling back to an item restores where it was.
+     */
+    public void rebind(String sessionId, @Nullable String url) {
+        if (sessionId.equals(this.sessionId) && session != null) {
+            return;
+        }
+
+        //A generated session belongs to this view alone, nothing can come back to it
+        if (sessionIdGenerated && mediaService != null) {
+            mediaService.releaseSession(this.sessionId);
+        }
+        if (session != null) {
+            session.setOnStateChangedListener(null);
+        }
+
+        this.sessionId = sessionId;
+        this.sessionIdGenerated = false;
+        pendingRebindUrl = url;
+        clearTrackDetails();
+
+        if (mediaService == null) {
+            //Picked up when the service connects
+            session = null;
+            return;
+        }
+
+        attachSession();
+        onSessionStateChanged();
+    }
+
+    public void rebind(String sessionId) {
+        rebind(sessionId, null);
+    }
+
+    //Looks the session up (one map lookup) and loads its first track if it has none yet
+    private void attachSession() {
+        session = mediaService.getSession(sessionId);
+        session.setOnStateChangedListener(stateListener);
+
+        if (session.getCurrentSourceKey() == null) {
+            if (pendingRebindUrl != null) {
+                loadUrl(pendingRebindUrl);
+            } else if (trackResourceId != -1) {
+                loadResource(trackResourceId);
+            }
+        }
+        pendingRebindUrl = null;
+    }
+
+    //Forgets what was shown for the previous session, the new one's details come from the service's caches
+    private void clearTrackDetails() {
+        isSeeking = false;
+        waveform = null;
+        waveformSourceKey = null;
+        waveformPathValid = false;
+        metadata = null;
+        metadataSourceKey = null;
+        anchorPosition = 0;
+        positionAdvancing = false;
+        staticLayer.invalidate();
+    }
+
+    /**
+     * Sets whether starting playback in one SoundAffect pauses the others.
+     */
+    public void setFocusPolicy(FocusPolicy focusPolicy) {
+        mediaService.setFocusPolicy(focusPolicy);
+    }
+
     private void populateAttributes(Context context, AttributeSet attrs) {
         TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.SoundAffect);
         if (a != null) {
@@ -164,11 +377,15 @@ public class SoundAffect extends View {
                 showPrevButton = a.getBoolean(R.styleable.SoundAffect_showPrevButton, false);
                 showCurrentTime = a.getBoolean(R.styleable.SoundAffect_showCurrentTime, true);
                 showDuration = a.getBoolean(R.styleable.SoundAffect_showDuration, true);
-                positionIndicatorShape = a.getString(R.styleable.SoundAffect_positionIndicatorShape);
+                showWaveform = a.getBoolean(R.styleable.SoundAffect_showWaveform, false);
+                positionIndicatorShape = IndicatorShape.fromAttribute(
+                        a.getString(R.styleable.SoundAffect_positionIndicatorShape));
                 positionIndicatorColor = a.getColor(R.styleable.SoundAffect_positionIndicatorColor, -1);
                 seekBarColor = a.getColor(R.styleable.SoundAffect_seekBarColor, -1);
                 playButtonColor = a.getColor(R.styleable.SoundAffect_playButtonColor, -1);
                 prevButtonColor = a.getColor(R.styleable.SoundAffect_prevButtonColor, -1);
+                playbackEngine = PlaybackEngineType.fromAttribute(
+                        a.getInt(R.styleable.SoundAffect_playbackEngine, PlaybackEngineType.MEDIA_PLAYER.ordinal()));
             } finally {
                 a.recycle();
             }
@@ -179,18 +396,11 @@ public class SoundAffect extends View {
         textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         textPaint.setColor(Color.BLACK);
         textPaint.setTextSize(40.0f);
+        textPaint.getFontMetricsInt(textMetrics);
 
         playButtonPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         prevButtonPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
-        if (playButtonColor != -1) {
-            playButtonPaint.setColorFilter(new PorterDuffColorFilter(playButtonColor, PorterDuff.Mode.SRC_IN));
-        }
-
-        if (prevButtonColor != -1) {
-            prevButtonPaint.setColorFilter(new PorterDuffColorFilter(prevButtonColor, PorterDuff.Mode.SRC_IN));
-        }
-
         seekPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         seekPaint.setColor(seekBarColor != -1 ? seekBarColor : Color.BLACK);
         seekPaint.setStyle(Paint.Style.FILL);
@@ -205,22 +415,44 @@ public class SoundAffect extends View {
     }
 
     private void setupUIElements() {
-        playButtonImage = BitmapFactory.decodeResource(getResources(), R.drawable.ic_play_circle_outline_black_24dp);
-        pauseButtonImage = BitmapFactory.decodeResource(getResources(), R.drawable.ic_pause_circle_outline_black_24dp);
-        prevButtonImage = BitmapFactory.decodeResource(getResources(), R.drawable.ic_skip_previous_black_24dp);
+        acquireButtonImages();
 
         if (isInEditMode()) {
             return;
         }
 
-        //Runnables + touch detection
-        currentPositionHandlerThread = new HandlerThread("current_position");
-        currentPositionHandlerThread.start();
-        currentPositionHandler = new Handler(currentPositionHandlerThread.getLooper());
-        mainThreadHandler = new Handler(Looper.getMainLooper());
+        //Touch detection
         tapRect = new Rect(0, 0, 5, 5);
     }
 
+    private void acquireButtonImages() {
+        if (playButtonImage != null) {
+            return;
+        }
+
+        ControlBitmapCache bitmapCache = ControlBitmapCache.getInstance(getContext());
+        int playTint = playButtonColor != -1 ? playButtonColor : ControlBitmapCache.NO_TINT;
+        int prevTint = prevButtonColor != -1 ? prevButtonColor : ControlBitmapCache.NO_TINT;
+        playButtonImage = bitmapCache.acquire(getResources(), R.drawable.ic_play_circle_outline_black_24dp, playTint);
+        pauseButtonImage = bitmapCache.acquire(getResources(), R.drawable.ic_pause_circle_outline_black_24dp, playTint);
+        prevButtonImage = bitmapCache.acquire(getResources(), R.drawable.ic_skip_previous_black_24dp, prevTint);
+    }
+
+    //Detached views hand their bitmaps back so the cache can drop them under memory pressure
+    private void releaseButtonImages() {
+        if (playButtonImage == null) {
+            return;
+        }
+
+        ControlBitmapCache bitmapCache = ControlBitmapCache.getInstance(getContext());
+        bitmapCache.release(playButtonImage);
+        bitmapCache.release(pauseButtonImage);
+        bitmapCache.release(prevButtonImage);
+        playButtonImage = null;
+        pauseButtonImage = null;
+        prevButtonImage = null;
+    }
+
     private void setupDrawingPositions() {
         int seekLeft = getPaddingLeft();
         int seekTop = getHeightWithPadding() / 3;
@@ -232,14 +464,11 @@ public class SoundAffect extends View {
         seekbarRect = new Rect(seekLeft, seekTop, seekRight, seekBottom);
         seekbarTouchRect = new Rect(seekLeft, seekTop - SEEK_BAR_TOUCH_THICKNESS / 2,
                 seekRight, seekBottom + SEEK_BAR_TOUCH_THICKNESS / 2);
+        seekBarGeometry.setSeekBar(seekLeft, seekTop, seekRight, seekBottom);
 
-
-        int notchLeft = seekLeft;
-        int notchTop = seekTop - SEEK_NOTCH_HEIGHT;
-        int notchRight = notchLeft + SEEK_AND_NOTCH_THICKNESS;
-        int notchBottom = seekTop + SEEK_NOTCH_HEIGHT + seekbarRect.height();
-        notchRect = new Rect(notchLeft, notchTop, notchRight, notchBottom);
-        updateNotchTouchRect(notchRect);
+        notchRect = new Rect();
+        notchTouchRect = new Rect();
+        setNotchX(seekLeft);
 
         playPauseButtonRect = new Rect(centerLeft, centerTop,
                 centerLeft + playButtonImage.getWidth(),
@@ -260,63 +489,296 @@ public class SoundAffect extends View {
         return getHeight() + getPaddingTop() - getPaddingBottom();
     }
 
-    private void updateNotchTouchRect(Rect notchRect) {
-        if (notchTouchRect == null) {
-            notchTouchRect = new Rect();
-        }
+    //Follows the finger while scrubbing, the player catches up on the next frame
+    private void scrubTo(float x) {
+        x = seekBarGeometry.clampX(x);
+
+        getIndicatorBounds(dirtyRect);
+        scrubPosition = seekBarGeometry.xToPosition(x, getDuration());
+        anchorPosition = scrubPosition;
+        anchorUptime = SystemClock.uptimeMillis();
+        positionAdvancing = false;
+        setNotchX(x);
+        getIndicatorBounds(indicatorBounds);
+        dirtyRect.union(indicatorBounds);
+        unionCurrentTimeBounds(dirtyRect);
+        invalidate(dirtyRect);
+    }
 
-        notchTouchRect.left = notchRect.left - NOTCH_TOUCH_THICKNESS / 2;
-        notchTouchRect.right = notchRect.right + NOTCH_TOUCH_THICKNESS / 2;
-        notchTouchRect.top = notchRect.top - NOTCH_TOUCH_THICKNESS / 2;
-        notchTouchRect.bottom = notchRect.bottom + NOTCH_TOUCH_THICKNESS / 2;
-        Log.i(TAG, "Update touch rect: " + notchTouchRect);
+    //Everything the position indicator paints, whichever shape it is drawn as
+    private void getIndicatorBounds(Rect out) {
+        seekBarGeometry.getIndicatorBounds(positionIndicatorShape == IndicatorShape.DOT, bounds);
+        out.set(bounds[0], bounds[1], bounds[2], bounds[3]);
     }
 
-    private void moveNotchRect(float left) {
-        if (left < seekbarRect.left || left > seekbarRect.right) {
+    //Covers both the label's previous text and the text for the current position
+    private void unionCurrentTimeBounds(Rect out) {
+        if (!showCurrentTime) {
             return;
         }
 
-        notchRect.left = Math.round(left);
-        notchRect.right = notchRect.left + SEEK_AND_NOTCH_THICKNESS;
-        updateNotchTouchRect(notchRect);
-        updateCurrentPosition();
+        float previousWidth = currentTimeLabel.getWidth();
+        currentTimeLabel.setMillis(getCurrentTime(), textPaint);
+        int width = (int) Math.ceil(Math.max(previousWidth, currentTimeLabel.getWidth()));
+        seekBarGeometry.getTimeLabelBounds(width, seekbarRect.top - TIMESTAMP_MARGIN_BOTTOM, textMetrics.top,
+                textMetrics.bottom, bounds);
+        out.union(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    private void updateNotchPosition(int position) {
+        setNotchX(seekBarGeometry.positionToX(position, getDuration()));
+    }
+
+    private void setNotchX(float x) {
+        seekBarGeometry.setNotchX(x);
+        seekBarGeometry.getNotchBounds(bounds);
+        notchRect.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+        seekBarGeometry.getNotchTouchBounds(bounds);
+        notchTouchRect.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    public void loadUrl(String url) {
+        session.loadUrl(url);
+        requestTrackDetails();
+    }
+
+    private void loadResource(int resourceId) {
+        session.loadResource(resourceId, playbackEngine);
+        requestTrackDetails();
+    }
+
+    /**
+     * Draws the seek bar as the track's waveform instead of a flat bar.
+     */
+    public void setShowWaveform(boolean showWaveform) {
+        this.showWaveform = showWaveform;
+        requestWaveform();
+        staticLayer.invalidate();
         invalidate();
     }
 
-    private void updateNotchRect(int percent) {
-        int notchLeft, notchTop, notchRight, notchBottom;
+    //Looks up what is known about the current source: its waveform if shown and its metadata
+    private void requestTrackDetails() {
+        requestWaveform();
+        requestMetadata();
+    }
 
-        if (percent == 0) {
-            notchLeft = seekbarRect.left;
-        } else if (percent < 100) {
-            notchLeft = seekbarRect.width() / 100 * percent + seekbarRect.left;
-        } else {
-            notchLeft = seekbarRect.right;
+    private void requestMetadata() {
+        if (session == null) {
+            return;
         }
 
-        notchTop = seekbarRect.top - SEEK_NOTCH_HEIGHT;
-        notchRight = notchLeft + SEEK_AND_NOTCH_THICKNESS;
-        notchBottom = seekbarRect.top + SEEK_NOTCH_HEIGHT + seekbarRect.height();
+        String sourceKey = session.getCurrentSourceKey();
+        if (sourceKey == null || sourceKey.equals(metadataSourceKey)) {
+            return;
+        }
 
-        notchRect.left = notchLeft;
-        notchRect.top = notchTop;
-        notchRect.right = notchRight;
-        notchRect.bottom = notchBottom;
+        metadataSourceKey = sourceKey;
+        metadata = null;
+        mediaService.loadMetadata(sourceKey, metadataListener);
+    }
 
-        updateNotchTouchRect(notchRect);
+    /**
+     * @return duration, bitrate, sample rate and channel count of the current track, null until they have been read
+     */
+    public TrackMetadata getTrackMetadata() {
+        return metadata;
     }
 
-    public void loadUrl(String url) {
-        mediaService.loadUrl(url);
+    private void requestWaveform() {
+        if (!showWaveform || session == null) {
+            return;
+        }
+
+        String sourceKey = session.getCurrentSourceKey();
+        if (sourceKey == null || sourceKey.equals(waveformSourceKey)) {
+            return;
+        }
+
+        waveformSourceKey = sourceKey;
+        waveform = null;
+        waveformPathValid = false;
+        mediaService.loadWaveform(sourceKey, WAVEFORM_BUCKETS, waveformListener);
     }
 
-    private void loadResource(int resourceId) {
-        mediaService.loadResource(resourceId);
+    //Filled outline of the peaks: max edge left to right, then min edge back again
+    private void buildWaveformPath() {
+        waveformPath.reset();
+        waveformPathValid = false;
+        staticLayer.invalidate();
+
+        if (waveform == null || seekbarRect == null || seekbarRect.width() <= 0) {
+            return;
+        }
+
+        byte[] minPeaks = waveform.getMinPeaks();
+        byte[] maxPeaks = waveform.getMaxPeaks();
+        int buckets = waveform.getBucketCount();
+        float bucketWidth = (float) seekbarRect.width() / buckets;
+        float centerY = seekbarRect.exactCenterY();
+        float scale = WAVEFORM_HALF_HEIGHT / 128.0f;
+
+        waveformPath.moveTo(seekbarRect.left, centerY);
+        for (int i = 0; i < buckets; i++) {
+            //Keep at least the bar's thickness so silence still reads as a seek bar
+            float top = Math.min(centerY - maxPeaks[i] * scale, centerY - SEEK_AND_NOTCH_THICKNESS / 2);
+            waveformPath.lineTo(seekbarRect.left + i * bucketWidth, top);
+            waveformPath.lineTo(seekbarRect.left + (i + 1) * bucketWidth, top);
+        }
+        for (int i = buckets - 1; i >= 0; i--) {
+            float bottom = Math.max(centerY - minPeaks[i] * scale, centerY + SEEK_AND_NOTCH_THICKNESS / 2);
+            waveformPath.lineTo(seekbarRect.left + (i + 1) * bucketWidth, bottom);
+            waveformPath.lineTo(seekbarRect.left + i * bucketWidth, bottom);
+        }
+        waveformPath.close();
+        waveformPathValid = true;
+    }
+
+    /**
+     * Chooses the engine used for resource tracks loaded from now on, MediaPlayer unless set.
+     */
+    public void setPlaybackEngine(PlaybackEngineType playbackEngine) {
+        this.playbackEngine = playbackEngine;
+    }
+
+    /**
+     * Sets the byte budget of the on-disk cache used for audio loaded from URLs.
+     */
+    public void setCacheSize(long maxBytes) {
+        mediaService.setCacheSize(maxBytes);
+    }
+
+    /**
+     * Sets which cached tracks are removed first once the cache goes over its byte budget.
+     */
+    public void setCacheEvictionPolicy(CacheEvictionPolicy evictionPolicy) {
+        mediaService.setCacheEvictionPolicy(evictionPolicy);
+    }
+
+    public void clearCache() {
+        mediaService.clearCache();
+    }
+
+    /**
+     * Streams tracks that aren't cached yet through a local proxy that serves the player's range requests
+     * from stored chunks and fetches only missing ones, resuming after dropped connections.
+     * Worth enabling on unreliable networks, tracks loaded from now on use it.
+     * Below API 23 uncached tracks always stream through the proxy, which is how they get cached there.
+     */
+    public void setUseStreamingProxy(boolean useStreamingProxy) {
+        mediaService.setStreamingProxyEnabled(useStreamingProxy);
+    }
+
+    /**
+     * Sets the byte budget of the chunks stored by the streaming proxy, separate from {@link #setCacheSize(long)}.
+     */
+    public void setStreamingProxyCacheSize(long maxBytes) {
+        mediaService.setStreamingProxyCacheSize(maxBytes);
+    }
+
+    /**
+     * Sets the byte budget for short clips kept in memory on top of the disk cache, so replaying them
+     * never touches the disk. Only used from Android M on, which can play straight from memory.
+     */
+    public void setClipMemorySize(int maxBytes) {
+        mediaService.setClipMemorySize(maxBytes);
+    }
+
+    public ClipCacheStats getClipCacheStats() {
+        return mediaService.getClipCacheStats();
+    }
+
+    /**
+     * Sets how many players (and so how many recently used tracks) are kept prepared for instant switching.
+     */
+    public void setMaxPooledPlayers(int maxPlayers) {
+        mediaService.setMaxPooledPlayers(maxPlayers);
+    }
+
+    public PlayerPoolStats getPlayerPoolStats() {
+        return mediaService.getPlayerPoolStats();
+    }
+
+    /**
+     * Prepare, time to first audio, seek and stall latencies of every session in the service.
+     */
+    public PlaybackMetrics getPlaybackMetrics() {
+        return mediaService.getPlaybackMetrics();
+    }
+
+    /**
+     * Receives a timestamped event for every load, prepare, first audio, stall, seek and error of every session.
+     */
+    public void addPlaybackMetricsListener(PlaybackMetricsListener listener) {
+        mediaService.addMetricsListener(listener);
+    }
+
+    public void removePlaybackMetricsListener(PlaybackMetricsListener listener) {
+        mediaService.removeMetricsListener(listener);
+    }
+
+    /**
+     * Downloads the start of a track in the background so a later {@link #loadUrl(String)}
+     * for it can prepare from local bytes.
+     */
+    public void prefetch(String url) {
+        mediaService.prefetch(url);
+    }
+
+    /**
+     * Prefetches several upcoming tracks, in list order.
+     */
+    public void prefetch(List<String> urls) {
+        mediaService.prefetch(urls);
+    }
+
+    public void cancelPrefetch(String url) {
+        mediaService.cancelPrefetch(url);
+    }
+
+    public void cancelAllPrefetches() {
+        mediaService.cancelAllPrefetches();
+    }
+
+    /**
+     * Sets how many bytes from the start of each track {@link #prefetch(String)} downloads.
+     */
+    public void setPrefetchBytes(long prefetchBytes) {
+        mediaService.setPrefetchBytes(prefetchBytes);
+    }
+
+    /**
+     * Fades the mixer's current music out and url in over durationMs. The mixer plays through its own
+     * output alongside this view's track, so several sources can sound at once without extra players.
+     */
+    public void crossfadeTo(String url, int durationMs) {
+        mediaService.crossfadeTo(url, durationMs);
+    }
+
+    public void crossfadeTo(int resourceId, int durationMs) {
+        mediaService.crossfadeTo(resourceId, durationMs);
+    }
+
+    /**
+     * Plays url once through the mixer on top of its music, at gain (1 is unchanged).
+     */
+    public void playOverlay(String url, float gain) {
+        mediaService.playOverlay(url, gain);
+    }
+
+    public void playOverlay(int resourceId, float gain) {
+        mediaService.playOverlay(resourceId, gain);
+    }
+
+    /**
+     * Fades out and ends everything the mixer is playing.
+     */
+    public void stopMixer(int fadeMs) {
+        mediaService.stopMixer(fadeMs);
     }
 
     public void togglePlayPause() {
-        if (mediaService.isPlaying()) {
+        if (session.isPlaying()) {
             pause();
         } else {
             play();
@@ -324,36 +786,159 @@ public class SoundAffect extends View {
         invalidate();
     }
 
+    //Starts as soon as the track is prepared if it isn't yet
     public void play() {
-        if (mediaService.isPrepared()) {
-            mediaService.play();
-            currentPositionHandler.post(currentPositionRunnable);
-        }
+        session.play();
     }
 
     public void pause() {
-        if (mediaService.isPlaying()) {
-            mediaService.pause();
-            currentPositionHandler.removeCallbacks(currentPositionRunnable);
-        }
+        session.pause();
     }
 
     public void reset() {
-        if (mediaService.isPlaying()) {
-            pause();
-            mediaService.reset();
-            play();
+        session.reset();
+        syncPosition();
+        updateNotchPosition(getDisplayPosition());
+        invalidate();
+    }
+
+    //Re-reads the player position and restarts extrapolation from it
+    private void syncPosition() {
+        if (session == null) {
+            positionAdvancing = false;
+            return;
+        }
+
+        anchorPosition = session.getCurrentPosition();
+        anchorUptime = SystemClock.uptimeMillis();
+        positionAdvancing = session.isPlaying();
+    }
+
+    private int getDisplayPosition() {
+        if (!positionAdvancing) {
+            return anchorPosition;
+        }
+
+        long position = anchorPosition + (SystemClock.uptimeMillis() - anchorUptime);
+        int duration = getDuration();
+        return duration > 0 ? (int) Math.min(position, duration) : (int) position;
+    }
+
+    //Only redraw every frame while playing and actually on screen
+    private void updateTicker() {
+        if (isInEditMode()) {
+            return;
+        }
+
+        boolean shouldTick = session != null && session.isPlaying()
+                && getWindowVisibility() == VISIBLE && isShown();
+
+        FrameTicker ticker = FrameTicker.getInstance();
+        if (shouldTick) {
+            ticker.addListener(frameListener);
         } else {
-            mediaService.reset();
-            updateNotchRect(getPercentageComplete());
-            invalidate();
+            ticker.removeListener(frameListener);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        acquireButtonImages();
+        if (sessionStateStale && session != null) {
+            onSessionStateChanged();
+        }
+        updateTicker();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (isSeeking) {
+            finishScrubbing();
         }
+        releaseButtonImages();
+        staticLayer.release();
+        updateTicker();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateTicker();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateTicker();
+    }
+
+    /**
+     * Goes to the previous queued track, or rewinds the current one if it has been playing
+     * for a few seconds or nothing is queued.
+     */
+    public void previous() {
+        if (!session.hasQueue()) {
+            reset();
+            return;
+        }
+
+        session.previous();
+    }
+
+    public void next() {
+        session.next();
+    }
+
+    /**
+     * Adds a track to the end of the queue. Queued tracks are prepared ahead of time and
+     * played back to back without gaps.
+     */
+    public void enqueue(String url) {
+        session.enqueue(url);
+    }
+
+    public void enqueue(List<String> urls) {
+        session.enqueue(urls);
+    }
+
+    public void skipTo(int index) {
+        session.skipTo(index);
+    }
+
+    public void clearQueue() {
+        session.clearQueue();
+    }
+
+    public void setRepeatMode(RepeatMode repeatMode) {
+        session.setRepeatMode(repeatMode);
+    }
+
+    private void onSessionStateChanged() {
+        //Nothing to show off screen, catch up once attached again
+        if (!isAttachedToWindow()) {
+            sessionStateStale = true;
+            return;
+        }
+
+        sessionStateStale = false;
+        requestTrackDetails();
+        //Leave the notch and time where the finger is until the drag ends
+        if (!isSeeking) {
+            syncPosition();
+            updateNotchPosition(getDisplayPosition());
+        }
+        updateTicker();
+        invalidate();
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
         setupDrawingPositions();
+        buildWaveformPath();
+        staticLayer.invalidate();
     }
 
     @Override
@@ -400,25 +985,51 @@ public class SoundAffect extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        if (!isBound || mediaService == null) {
+        if (!isBound || session == null) {
             return;
         }
 
-        drawTimestamps(canvas);
+        updateStaticLayerState();
+        staticLayer.draw(canvas, getWidth(), getHeight());
+        drawCurrentTime(canvas);
+        drawPositionIndicator(canvas);
+        //drawDebug(canvas);
+    }
+
+    //Repaints the static layer when the play/pause icon or the duration text it shows is out of date
+    private void updateStaticLayerState() {
+        boolean playing = !isInEditMode() && session.isPlaying();
+        if (playing != staticLayerPlaying) {
+            staticLayerPlaying = playing;
+            staticLayer.invalidate();
+        }
+
+        int duration = showDuration ? getDuration() : 0;
+        boolean showsDuration = duration > 0;
+        if (showsDuration != staticLayerShowsDuration) {
+            staticLayerShowsDuration = showsDuration;
+            staticLayer.invalidate();
+        }
+        if (showsDuration && durationLabel.setMillis(duration, textPaint)) {
+            staticLayer.invalidate();
+        }
+    }
+
+    private void drawStaticLayer(Canvas canvas) {
+        if (staticLayerShowsDuration) {
+            durationLabel.draw(canvas, seekbarRect.right - durationLabel.getWidth(),
+                    seekbarRect.top - TIMESTAMP_MARGIN_BOTTOM, textPaint);
+        }
+
         drawSeekBar(canvas);
         drawControls(canvas);
-        //drawDebug(canvas);
     }
 
     private void drawControls(Canvas canvas) {
-        if (isInEditMode()) {
-            canvas.drawBitmap(playButtonImage, playPauseButtonRect.left, playPauseButtonRect.top, playButtonPaint);
+        if (staticLayerPlaying) {
+            canvas.drawBitmap(pauseButtonImage, playPauseButtonRect.left, playPauseButtonRect.top, playButtonPaint);
         } else {
-            if (mediaService.isPlaying()) {
-                canvas.drawBitmap(pauseButtonImage, playPauseButtonRect.left, playPauseButtonRect.top, playButtonPaint);
-            } else {
-                canvas.drawBitmap(playButtonImage, playPauseButtonRect.left, playPauseButtonRect.top, playButtonPaint);
-            }
+            canvas.drawBitmap(playButtonImage, playPauseButtonRect.left, playPauseButtonRect.top, playButtonPaint);
         }
 
         if (showPrevButton) {
@@ -427,25 +1038,28 @@ public class SoundAffect extends View {
     }
 
     private void drawSeekBar(Canvas canvas) {
-        canvas.drawRect(seekbarRect, seekPaint);
-
-        if (positionIndicatorShape != null && positionIndicatorShape.equals(INDICATOR_DOT)) {
-            canvas.drawCircle(notchRect.left + notchRect.width() / 2,
-                    notchRect.top + notchRect.height() / 2, SEEK_NOTCH_DOT_RADIUS, notchPaint);
+        if (showWaveform && waveformPathValid) {
+            canvas.drawPath(waveformPath, seekPaint);
         } else {
-            canvas.drawRect(notchRect, notchPaint);
+            canvas.drawRect(seekbarRect, seekPaint);
         }
     }
 
-    private void drawTimestamps(Canvas canvas) {
-        if (showDuration && mediaService.isPrepared()) {
-            canvas.drawText(getFormattedDuration(), seekbarRect.right - textPaint.measureText(getFormattedDuration()),
-                    seekbarRect.top - TIMESTAMP_MARGIN_BOTTOM,
-                    textPaint);
+    private void drawPositionIndicator(Canvas canvas) {
+        float notchX = seekBarGeometry.getNotchX();
+        if (positionIndicatorShape == IndicatorShape.DOT) {
+            canvas.drawCircle(notchX + SEEK_AND_NOTCH_THICKNESS / 2.0f, notchRect.exactCenterY(),
+                    SEEK_NOTCH_DOT_RADIUS, notchPaint);
+        } else {
+            notchDrawRect.set(notchX, notchRect.top, notchX + SEEK_AND_NOTCH_THICKNESS, notchRect.bottom);
+            canvas.drawRect(notchDrawRect, notchPaint);
         }
+    }
 
+    private void drawCurrentTime(Canvas canvas) {
         if (showCurrentTime) {
-            canvas.drawText(getCurrentTime(), seekbarRect.left,
+            currentTimeLabel.setMillis(getCurrentTime(), textPaint);
+            currentTimeLabel.draw(canvas, seekbarRect.left,
                     seekbarRect.top - TIMESTAMP_MARGIN_BOTTOM, textPaint);
         }
     }
@@ -475,40 +1089,25 @@ public class SoundAffect extends View {
             if (showPrevButton) {
                 if (prevButtonRect.contains(tapRect)) {
                     Toast.makeText(context, "Touched prev button", Toast.LENGTH_SHORT).show();
-                    reset();
+                    previous();
                     return true;
                 }
             }
 
             if (notchTouchRect.contains(tapRect)) {
-                wasPlayingBeforeSeek = mediaService.isPlaying();
-
-                isSeeking = true;
-
-                if (mediaService.isPlaying()) {
-                    pause();
-                }
+                startScrubbing();
             }
         }
 
-        if (event.getAction() == MotionEvent.ACTION_UP) {
+        if (event.getAction() == MotionEvent.ACTION_UP || event.getAction() == MotionEvent.ACTION_CANCEL) {
             if (isSeeking) {
-                isSeeking = false;
-
-                updateCurrentPosition();
-
-                if (wasPlayingBeforeSeek) {
-                    play();
-                } else {
-                    Log.i(TAG, "Not playing beforehand");
-                }
+                finishScrubbing();
             }
         }
 
         if (event.getAction() == MotionEvent.ACTION_MOVE) {
             if (isSeeking) {
-                Log.i(TAG, "Move: " + event.getX() + ":" + event.getY());
-                moveNotchRect(event.getX());
+                scrubTo(event.getX());
             }
             return true;
         }
@@ -516,53 +1115,61 @@ public class SoundAffect extends View {
         return true;
     }
 
-    //Work out current track position based on the current position of the 'notch'
-    //relative to the seekBarRect
-    private void updateCurrentPosition() {
-        if (mediaService.isPrepared()) {
-            float currentNotchPos = notchRect.left;
-            float seekEnd = seekbarRect.right;
-            float percentage = (currentNotchPos / seekEnd) * 100.0f;
-            float duration = mediaService.getDuration();
-            float newPos = (duration / 100.0f) * percentage;
+    //While dragging the player gets cheap sync frame seeks, throttled to the frame rate
+    private void startScrubbing() {
+        wasPlayingBeforeSeek = session.isPlaying();
+        isSeeking = true;
+        scrubPosition = getDisplayPosition();
+        issuedScrubPosition = scrubPosition;
 
-            //Update the mediaPlayer and start playback from that point
-            //mediaManager.setCurrentPosition(Math.round(newPos));
-            mediaService.setCurrentPosition(Math.round(newPos));
-        } else {
-            Log.i(TAG, "Not prepared!!");
+        if (wasPlayingBeforeSeek) {
+            pause();
         }
+        FrameTicker.getInstance().addListener(scrubListener);
     }
 
-    private String getFormattedDuration() {
-        if (isInEditMode()) {
-            return "01:00";
+    //One precise seek to where the finger let go, replacing any sync frame seek still queued
+    private void finishScrubbing() {
+        FrameTicker.getInstance().removeListener(scrubListener);
+        isSeeking = false;
+
+        if (session != null && scrubPosition != -1) {
+            session.setCurrentPosition(scrubPosition);
+            anchorPosition = scrubPosition;
+            anchorUptime = SystemClock.uptimeMillis();
         }
+        scrubPosition = -1;
+        issuedScrubPosition = -1;
 
-        int duration = mediaService.getDuration();
-        return String.format(Locale.getDefault(), "%02d:%02d",
-                TimeUnit.MILLISECONDS.toMinutes(duration),
-                TimeUnit.MILLISECONDS.toSeconds(duration) -
-                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(duration)));
+        if (session != null && wasPlayingBeforeSeek) {
+            play();
+        }
     }
 
-    private String getCurrentTime() {
+    private int getDuration() {
         if (isInEditMode()) {
-            return "00:00";
+            return 60000;
+        }
+
+        //The player knows best once it reports a duration, until then the metadata index usually already has it
+        int duration = session != null ? session.getDuration() : 0;
+        if (duration > 0) {
+            return duration;
         }
 
-        int currentPosition = mediaService.getCurrentPosition();
-        return String.format(Locale.getDefault(), "%02d:%02d",
-                TimeUnit.MILLISECONDS.toMinutes(currentPosition),
-                TimeUnit.MILLISECONDS.toSeconds(currentPosition) -
-                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(currentPosition)));
+        //Only for the track the session holds now, a recycled view can still have the previous track's metadata
+        if (metadata != null && (session == null || metadataSourceKey.equals(session.getCurrentSourceKey()))) {
+            return metadata.getDurationMs();
+        }
+        return 0;
     }
 
-    private int getPercentageComplete() {
-        float current = mediaService.getCurrentPosition();
-        float duration = mediaService.getDuration();
-        float percentage = (current / duration) * 100.0f;
-        //Log.i(TAG, "Percentage: " + percentage + " Returning: " + Math.round(percentage));
-        return Math.round(percentage);
+    private int getCurrentTime() {
+        if (isInEditMode()) {
+            return 0;
+        }
+
+        return getDisplayPosition();
     }
+
 }
@@ -0,0 +1,163 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.MediaMetadataRetriever;
+import android.media.SoundPool;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.io.IOException;
+
+/**
+ * The single SoundPool shared by every session. Each resource clip is decoded into it once
+ * and stays decoded until the pool is released.
+ */
+
+class SoundPoolClips {
+
+    interface OnClipLoadedListener {
+        //Called on the thread that created the pool
+        void onClipLoaded(int resourceId);
+    }
+
+    private static final String TAG = "SoundPoolClips";
+    static final int MAX_STREAMS = 8;
+
+    private final Context context;
+    private final SoundPool soundPool;
+
+    //Resource id -> sound id
+    private final SparseIntArray soundIds = new SparseIntArray();
+    private final SparseIntArray durations = new SparseIntArray();
+    private final SparseBooleanArray loaded = new SparseBooleanArray();
+    private OnClipLoadedListener onClipLoadedListener;
+
+    SoundPoolClips(Context context) {
+        this.context = context;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            AudioAttributes audioAttributes = new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .build();
+            soundPool = new SoundPool.Builder()
+                    .setMaxStreams(MAX_STREAMS)
+                    .setAudioAttributes(audioAttributes)
+                    .build();
+        } else {
+            //noinspection deprecation
+            soundPool = new SoundPool(MAX_STREAMS, AudioManager.STREAM_MUSIC, 0);
+        }
+
+        soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                if (status != 0) {
+                    Log.e(TAG, "Failed to decode sample " + sampleId + ", status " + status);
+                    return;
+                }
+
+                int resourceId = markLoaded(sampleId);
+                if (resourceId != -1 && onClipLoadedListener != null) {
+                    onClipLoadedListener.onClipLoaded(resourceId);
+                }
+            }
+        });
+    }
+
+    void setOnClipLoadedListener(OnClipLoadedListener onClipLoadedListener) {
+        this.onClipLoadedListener = onClipLoadedListener;
+    }
+
+    //Load callbacks arrive on the creating thread while sessions load from the player thread
+    private synchronized int markLoaded(int sampleId) {
+        int index = soundIds.indexOfValue(sampleId);
+        if (index < 0) {
+            return -1;
+        }
+
+        loaded.put(soundIds.keyAt(index), true);
+        return soundIds.keyAt(index);
+    }
+
+    //Starts decoding the clip unless it already is, loading completes asynchronously
+    void load(int resourceId) {
+        synchronized (this) {
+            if (soundIds.indexOfKey(resourceId) >= 0) {
+                return;
+            }
+        }
+
+        //Read outside the lock so load callbacks never wait on the retriever
+        int duration = 0;
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getResources().openRawResourceFd(resourceId);
+            duration = readDuration(afd);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read clip duration: " + e);
+        } finally {
+            closeQuietly(afd);
+        }
+
+        synchronized (this) {
+            durations.put(resourceId, duration);
+            soundIds.put(resourceId, soundPool.load(context, resourceId, 1));
+        }
+    }
+
+    synchronized boolean isLoaded(int resourceId) {
+        return loaded.get(resourceId, false);
+    }
+
+    synchronized int getDuration(int resourceId) {
+        return durations.get(resourceId, 0);
+    }
+
+    synchronized int play(int resourceId) {
+        return soundPool.play(soundIds.get(resourceId), 1.0f, 1.0f, 1, 0, 1.0f);
+    }
+
+    void pause(int streamId) {
+        soundPool.pause(streamId);
+    }
+
+    void resume(int streamId) {
+        soundPool.resume(streamId);
+    }
+
+    void stop(int streamId) {
+        soundPool.stop(streamId);
+    }
+
+    void release() {
+        soundPool.release();
+    }
+
+    static int readDuration(AssetFileDescriptor afd) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return duration != null ? Integer.parseInt(duration) : Integer.MAX_VALUE;
+        } catch (RuntimeException e) {
+            return Integer.MAX_VALUE;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    static void closeQuietly(AssetFileDescriptor afd) {
+        if (afd != null) {
+            try {
+                afd.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
+
+/**
+ * Low latency engine for short resource clips such as UI sound effects.
+ * Each clip is decoded once into the shared SoundPool and replays start immediately; calling play()
+ * while a clip is still sounding starts another overlapping instance rather than restarting it.
+ * SoundPool can't report position or seek, so position is tracked from the most recent start.
+ */
+
+class SoundPoolEngine implements PlaybackEngine {
+
+    //Instances of one clip this engine may overlap before it steals its oldest stream
+    private static final int MAX_STREAMS = 4;
+
+    //Clips at or under both limits are played through SoundPool in AUTO mode
+    private static final long AUTO_MAX_BYTES = 100 * 1024;
+    private static final int AUTO_MAX_DURATION_MS = 5000;
+
+    private final SoundPoolClips clips;
+
+    private final int[] streamIds = new int[MAX_STREAMS];
+    private int nextStreamSlot = 0;
+
+    private int currentResourceId = -1;
+    private long startUptime = 0;
+    private int pausedPosition = 0;
+    private boolean playing = false;
+
+    SoundPoolEngine(SoundPoolClips clips) {
+        this.clips = clips;
+    }
+
+    /**
+     * @return true if the resource is short enough to be worth decoding into a SoundPool
+     */
+    static boolean isShortClip(Context context, int resourceId) {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getResources().openRawResourceFd(resourceId);
+            if (afd == null || afd.getLength() > AUTO_MAX_BYTES) {
+                return false;
+            }
+            return SoundPoolClips.readDuration(afd) <= AUTO_MAX_DURATION_MS;
+        } catch (Exception e) {
+            //Compressed or missing resources can't be opened as a descriptor, leave those to MediaPlayer
+            return false;
+        } finally {
+            SoundPoolClips.closeQuietly(afd);
+        }
+    }
+
+    @Override
+    public void loadResource(int resourceId) {
+        release();
+        currentResourceId = resourceId;
+        pausedPosition = 0;
+        clips.load(resourceId);
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return currentResourceId != -1 && clips.isLoaded(currentResourceId);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        if (playing && SystemClock.uptimeMillis() - startUptime >= getDuration()) {
+            playing = false;
+            pausedPosition = 0;
+        }
+        return playing;
+    }
+
+    @Override
+    public void play() {
+        if (!isPrepared()) {
+            return;
+        }
+
+        if (playing || pausedPosition == 0) {
+            //Overlap a fresh instance, stealing the oldest stream slot once all are used
+            int slot = nextStreamSlot;
+            nextStreamSlot = (nextStreamSlot + 1) % MAX_STREAMS;
+            if (streamIds[slot] != 0) {
+                clips.stop(streamIds[slot]);
+            }
+            streamIds[slot] = clips.play(currentResourceId);
+            startUptime = SystemClock.uptimeMillis();
+        } else {
+            for (int streamId : streamIds) {
+                if (streamId != 0) {
+                    clips.resume(streamId);
+                }
+            }
+            startUptime = SystemClock.uptimeMillis() - pausedPosition;
+        }
+
+        playing = true;
+    }
+
+    @Override
+    public void pause() {
+        if (!isPlaying()) {
+            return;
+        }
+
+        for (int streamId : streamIds) {
+            if (streamId != 0) {
+                clips.pause(streamId);
+            }
+        }
+        pausedPosition = getCurrentPosition();
+        playing = false;
+    }
+
+    @Override
+    public void reset() {
+        boolean wasPlaying = isPlaying();
+        stopStreams();
+        pausedPosition = 0;
+        if (wasPlaying) {
+            play();
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        if (!isPlaying()) {
+            return pausedPosition;
+        }
+        return (int) (SystemClock.uptimeMillis() - startUptime);
+    }
+
+    @Override
+    public void setCurrentPosition(int currentPosition) {
+        //SoundPool can't seek, the only supported position is the start of the clip
+        if (currentPosition == 0) {
+            reset();
+        }
+    }
+
+    @Override
+    public void scrubTo(int position) {
+        //Nothing to preview, the seek on release does whatever SoundPool can
+    }
+
+    @Override
+    public int getDuration() {
+        return currentResourceId != -1 ? clips.getDuration(currentResourceId) : 0;
+    }
+
+    @Override
+    public void release() {
+        stopStreams();
+        pausedPosition = 0;
+    }
+
+    private void stopStreams() {
+        for (int i = 0; i < streamIds.length; i++) {
+            if (streamIds[i] != 0) {
+                clips.stop(streamIds[i]);
+                streamIds[i] = 0;
+            }
+        }
+        playing = false;
+    }
+}
@@ -0,0 +1,97 @@
+package com.alittlelost.soundaffect;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Picture;
+import android.os.Build;
+
+/**
+ * The parts of a view that only change on size, color or state changes, painted once and replayed every frame.
+ * Recorded as a display list where the canvas can replay one (hardware canvases from M on),
+ * otherwise rendered into a bitmap the size of the view.
+ */
+
+class StaticLayer {
+
+    interface Painter {
+        void paint(Canvas canvas);
+    }
+
+    private final Painter painter;
+
+    private Picture picture;
+    private Bitmap bitmap;
+    private Canvas bitmapCanvas;
+    private boolean valid = false;
+
+    StaticLayer(Painter painter) {
+        this.painter = painter;
+    }
+
+    //Repainted on the next draw
+    void invalidate() {
+        valid = false;
+    }
+
+    void draw(Canvas canvas, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        //Before M a hardware canvas can't replay a Picture
+        boolean usePicture = !canvas.isHardwareAccelerated() || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+
+        if (usePicture) {
+            if (!valid || picture == null || picture.getWidth() != width || picture.getHeight() != height) {
+                record(width, height);
+            }
+            canvas.drawPicture(picture);
+        } else {
+            if (!valid || bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                render(width, height);
+            }
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        }
+    }
+
+    private void record(int width, int height) {
+        releaseBitmap();
+        if (picture == null) {
+            picture = new Picture();
+        }
+
+        painter.paint(picture.beginRecording(width, height));
+        picture.endRecording();
+        valid = true;
+    }
+
+    private void render(int width, int height) {
+        picture = null;
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            releaseBitmap();
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmapCanvas = new Canvas(bitmap);
+        } else {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+
+        painter.paint(bitmapCanvas);
+        valid = true;
+    }
+
+    //Drops what was painted, for views that are off screen
+    void release() {
+        picture = null;
+        releaseBitmap();
+        valid = false;
+    }
+
+    private void releaseBitmap() {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+            bitmapCanvas = null;
+        }
+    }
+}
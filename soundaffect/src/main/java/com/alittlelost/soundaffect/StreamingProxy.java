@@ -0,0 +1,433 @@
+package com.alittlelost.soundaffect;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local HTTP server on the loopback interface that players stream URLs through.
+ * Range requests are answered from the ChunkStore, missing chunks are fetched from the origin
+ * and stored as they pass through. A dropped origin connection is resumed from the byte it stopped at
+ * after a backoff, so a flaky network shows up as a short stall instead of the stream starting over.
+ */
+
+class StreamingProxy {
+
+    private static final String TAG = "StreamingProxy";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final int CLIENT_TIMEOUT_MS = 30000;
+    private static final int MAX_CONNECTIONS = 4;
+
+    //Origin retries back off from 250ms to 8s, progress resets the count
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long INITIAL_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 8000;
+
+    private final ChunkStore chunkStore;
+
+    //Path on the proxy -> origin url
+    private final Map<String, String> urls = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    StreamingProxy(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+
+        executor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket socket = serverSocket;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections(socket);
+            }
+        }, "soundaffect-proxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+
+        closeQuietly(serverSocket);
+        serverSocket = null;
+        acceptThread = null;
+    }
+
+    synchronized boolean isRunning() {
+        return serverSocket != null;
+    }
+
+    /**
+     * @return the url a player should open to stream url through this proxy, null if it isn't running
+     */
+    synchronized String getProxyUrl(String url) {
+        if (serverSocket == null) {
+            return null;
+        }
+
+        String path = AudioCache.keyFor(url);
+        urls.put(path, url);
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + path;
+    }
+
+    private void acceptConnections(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.e(TAG, "Failed to accept connection: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setSoTimeout(CLIENT_TIMEOUT_MS);
+            Request request = Request.read(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+
+            String url = request != null ? urls.get(request.path) : null;
+            if (url == null) {
+                writeStatus(out, "404 Not Found", 0);
+                out.flush();
+                return;
+            }
+
+            ChunkStore.Track track = chunkStore.open(url);
+            try {
+                serve(request, url, track, out);
+            } finally {
+                chunkStore.release(url, track);
+            }
+            out.flush();
+        } catch (IOException e) {
+            //Players drop connections whenever they seek, nothing to report
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    private void serve(Request request, String url, ChunkStore.Track track, OutputStream out) throws IOException {
+        long length = track.getLength();
+        if (length == -1) {
+            length = fetchLength(url);
+            if (length == -1) {
+                writeStatus(out, "502 Bad Gateway", 0);
+                return;
+            }
+            track.setLength(length);
+        }
+
+        long start = request.rangeStart;
+        long end = request.rangeEnd == -1 ? length - 1 : Math.min(request.rangeEnd, length - 1);
+        if (start >= length || start > end) {
+            out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            return;
+        }
+
+        StringBuilder headers = new StringBuilder();
+        headers.append(request.hasRange ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                .append("Content-Type: application/octet-stream\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (request.hasRange) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(length).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+
+        if (request.head) {
+            return;
+        }
+
+        byte[] buffer = new byte[ChunkStore.CHUNK_SIZE];
+        long position = start;
+        while (position <= end) {
+            int chunk = (int) (position / ChunkStore.CHUNK_SIZE);
+            if (track.hasChunk(chunk)) {
+                int count = track.read(position, buffer, 0, (int) Math.min(buffer.length, end - position + 1));
+                out.write(buffer, 0, count);
+                position += count;
+            } else {
+                position = fetch(url, track, position, end, out);
+            }
+        }
+    }
+
+    /**
+     * Streams from the origin starting at the chunk holding position, storing every completed chunk
+     * and passing on the bytes from position on. Stops at the end of the range or at the next chunk
+     * that is already stored.
+     *
+     * @return the position reached
+     */
+    private long fetch(String url, ChunkStore.Track track, long position, long end, OutputStream out)
+            throws IOException {
+        long length = track.getLength();
+        int chunk = (int) (position / ChunkStore.CHUNK_SIZE);
+        long chunkStart = (long) chunk * ChunkStore.CHUNK_SIZE;
+        byte[] chunkBuffer = new byte[ChunkStore.CHUNK_SIZE];
+        int chunkFill = 0;
+
+        int attempt = 0;
+        long backoff = INITIAL_BACKOFF_MS;
+        while (true) {
+            long offset = chunkStart + chunkFill;
+            HttpURLConnection connection = null;
+            InputStream in = null;
+            try {
+                connection = openOrigin(url, offset);
+                int responseCode = connection.getResponseCode();
+                in = connection.getInputStream();
+                if (responseCode == HttpURLConnection.HTTP_OK && offset > 0) {
+                    //Origin ignored the range, throw away what we already have
+                    skipFully(in, offset);
+                } else if (responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected response " + responseCode);
+                }
+
+                while (true) {
+                    int chunkLength = (int) Math.min(ChunkStore.CHUNK_SIZE, length - chunkStart);
+                    int read = in.read(chunkBuffer, chunkFill, chunkLength - chunkFill);
+                    if (read == -1) {
+                        throw new IOException("Origin closed the connection at " + (chunkStart + chunkFill));
+                    }
+
+                    //Pass on whatever of the new bytes the client asked for
+                    long readStart = chunkStart + chunkFill;
+                    long from = Math.max(readStart, position);
+                    long to = Math.min(readStart + read, end + 1);
+                    if (to > from) {
+                        writeToClient(out, chunkBuffer, (int) (from - chunkStart), (int) (to - from));
+                        position = to;
+                    }
+
+                    chunkFill += read;
+                    attempt = 0;
+                    backoff = INITIAL_BACKOFF_MS;
+
+                    if (chunkFill < chunkLength) {
+                        continue;
+                    }
+
+                    track.writeChunk(chunk, chunkBuffer, chunkLength);
+                    chunk++;
+                    chunkStart += chunkLength;
+                    chunkFill = 0;
+
+                    if (position > end || chunkStart >= length || track.hasChunk(chunk)) {
+                        return position;
+                    }
+                }
+            } catch (ClientGoneException e) {
+                throw e;
+            } catch (IOException e) {
+                if (++attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+
+                Log.e(TAG, "Origin failed at " + (chunkStart + chunkFill) + ", retrying in " + backoff + "ms: " + e);
+                sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            } finally {
+                closeQuietly(in);
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+    }
+
+    //Failures writing to the player end the request, only origin failures are retried
+    private static class ClientGoneException extends IOException {
+        ClientGoneException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static void writeToClient(OutputStream out, byte[] buffer, int offset, int count) throws IOException {
+        try {
+            out.write(buffer, offset, count);
+        } catch (IOException e) {
+            throw new ClientGoneException(e);
+        }
+    }
+
+    //Asks the origin for the first byte, the total comes back in the Content-Range header
+    private long fetchLength(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = openOrigin(url, 0);
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+                if (slash != -1 && !contentRange.endsWith("*")) {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                return connection.getContentLength();
+            }
+            Log.e(TAG, "No length for " + url + ", response " + responseCode);
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Failed to get length of " + url + ": " + e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        return -1;
+    }
+
+    private static HttpURLConnection openOrigin(String url, long offset) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        return connection;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Origin closed the connection while skipping");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static void writeStatus(OutputStream out, String status, int contentLength) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + contentLength
+                + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    //Request line and the one header the proxy cares about
+    private static class Request {
+        String path;
+        boolean head;
+        boolean hasRange;
+        long rangeStart = 0;
+        long rangeEnd = -1;
+
+        static Request read(InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return null;
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                return null;
+            }
+
+            Request request = new Request();
+            request.head = "HEAD".equals(parts[0]);
+            request.path = parts[1].startsWith("/") ? parts[1].substring(1) : parts[1];
+
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    request.parseRange(line.substring(colon + 1).trim());
+                }
+            }
+            return request;
+        }
+
+        //Only single "bytes=start-[end]" ranges, which is all players send
+        private void parseRange(String value) {
+            if (!value.startsWith("bytes=") || value.indexOf(',') != -1) {
+                return;
+            }
+
+            String range = value.substring(6);
+            int dash = range.indexOf('-');
+            if (dash <= 0) {
+                return;
+            }
+
+            try {
+                rangeStart = Long.parseLong(range.substring(0, dash).trim());
+                String end = range.substring(dash + 1).trim();
+                rangeEnd = end.isEmpty() ? -1 : Long.parseLong(end);
+                hasRange = true;
+            } catch (NumberFormatException e) {
+                rangeStart = 0;
+                rangeEnd = -1;
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int length = line.length();
+                    return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}
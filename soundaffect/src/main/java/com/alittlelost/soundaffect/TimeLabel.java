@@ -0,0 +1,41 @@
+package com.alittlelost.soundaffect;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * A "mm:ss" label backed by a preallocated char buffer.
+ * The text (and its measured width) is only rebuilt when the displayed second changes,
+ * so drawing it never allocates.
+ */
+
+class TimeLabel {
+
+    private final char[] chars = new char[TimeText.MAX_LENGTH];
+    private int start = TimeText.MAX_LENGTH;
+    private long displayedSeconds = -1;
+    private float width = 0;
+
+    /**
+     * @return true if the displayed text changed
+     */
+    boolean setMillis(long millis, Paint paint) {
+        long seconds = Math.max(0, millis) / 1000;
+        if (seconds == displayedSeconds) {
+            return false;
+        }
+
+        displayedSeconds = seconds;
+        start = TimeText.format(seconds, chars);
+        width = paint.measureText(chars, start, TimeText.MAX_LENGTH - start);
+        return true;
+    }
+
+    float getWidth() {
+        return width;
+    }
+
+    void draw(Canvas canvas, float x, float y, Paint paint) {
+        canvas.drawText(chars, start, TimeText.MAX_LENGTH - start, x, y, paint);
+    }
+}
@@ -0,0 +1,39 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Writes a number of seconds as "mm:ss" into a char buffer without allocating, for TimeLabel.
+ * Kept apart from TimeLabel's Paint and Canvas so the formatting runs on a plain JVM.
+ */
+
+class TimeText {
+
+    //Enough room for "mmmmm:ss", well past any realistic track length
+    static final int MAX_LENGTH = 8;
+
+    private TimeText() {
+    }
+
+    /**
+     * Right aligns the text in the first MAX_LENGTH chars, minutes take as many digits as they need, at least two.
+     *
+     * @return the index of the first char of the text, which runs to MAX_LENGTH
+     */
+    static int format(long seconds, char[] chars) {
+        long minutes = seconds / 60;
+        int remainder = (int) (seconds % 60);
+
+        int i = MAX_LENGTH;
+        chars[--i] = (char) ('0' + remainder % 10);
+        chars[--i] = (char) ('0' + remainder / 10);
+        chars[--i] = ':';
+
+        int digits = 0;
+        do {
+            chars[--i] = (char) ('0' + minutes % 10);
+            minutes /= 10;
+            digits++;
+        } while ((minutes > 0 || digits < 2) && i > 0);
+
+        return i;
+    }
+}
@@ -0,0 +1,60 @@
+package com.alittlelost.soundaffect;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Format details and tags of a track, read once per source without preparing a player.
+ * Numbers that couldn't be read are 0, tags the track doesn't have are null.
+ */
+
+public final class TrackMetadata {
+
+    private final int durationMs;
+    private final int bitrate;
+    private final int sampleRate;
+    private final int channelCount;
+    private final String title;
+    private final String artist;
+
+    TrackMetadata(int durationMs, int bitrate, int sampleRate, int channelCount, String title, String artist) {
+        this.durationMs = durationMs;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.title = title;
+        this.artist = artist;
+    }
+
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    //Bits per second
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Nullable
+    public String getTitle() {
+        return title;
+    }
+
+    @Nullable
+    public String getArtist() {
+        return artist;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackMetadata{durationMs=" + durationMs + ", bitrate=" + bitrate + ", sampleRate=" + sampleRate
+                + ", channelCount=" + channelCount + ", title=" + title + ", artist=" + artist + "}";
+    }
+}
@@ -0,0 +1,83 @@
+package com.alittlelost.soundaffect;
+
+import java.util.PriorityQueue;
+
+/**
+ * Deterministic time for SimulatedPlayerBackend. Nothing happens until advance() is called,
+ * then every task that falls due runs in time order (submission order for ties) on the calling thread.
+ */
+
+class VirtualClock {
+
+    private static class Task implements Comparable<Task> {
+        final long dueMillis;
+        final long sequence;
+        final Runnable runnable;
+        boolean cancelled = false;
+
+        Task(long dueMillis, long sequence, Runnable runnable) {
+            this.dueMillis = dueMillis;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueMillis != other.dueMillis) {
+                return dueMillis < other.dueMillis ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long nowMillis = 0;
+    private long nextSequence = 0;
+
+    long now() {
+        return nowMillis;
+    }
+
+    //Returns a handle for cancel()
+    Object schedule(long delayMillis, Runnable runnable) {
+        Task task = new Task(nowMillis + Math.max(0, delayMillis), nextSequence++, runnable);
+        tasks.add(task);
+        return task;
+    }
+
+    void cancel(Object handle) {
+        if (handle != null) {
+            ((Task) handle).cancelled = true;
+        }
+    }
+
+    //Moves time forward, running everything that falls due on the way
+    void advance(long millis) {
+        long target = nowMillis + millis;
+        while (!tasks.isEmpty() && tasks.peek().dueMillis <= target) {
+            Task task = tasks.poll();
+            nowMillis = task.dueMillis;
+            if (!task.cancelled) {
+                task.runnable.run();
+            }
+        }
+        nowMillis = target;
+    }
+
+    /**
+     * Jumps to the next pending task and runs everything due at that moment.
+     *
+     * @return false if nothing is scheduled
+     */
+    boolean advanceToNextTask() {
+        while (!tasks.isEmpty() && tasks.peek().cancelled) {
+            tasks.poll();
+        }
+        if (tasks.isEmpty()) {
+            return false;
+        }
+
+        advance(tasks.peek().dueMillis - nowMillis);
+        return true;
+    }
+}
@@ -0,0 +1,28 @@
+package com.alittlelost.soundaffect;
+
+/**
+ * Compact min/max peak summary of a track, one signed byte pair per bucket.
+ */
+
+class Waveform {
+
+    private final byte[] minPeaks;
+    private final byte[] maxPeaks;
+
+    Waveform(byte[] minPeaks, byte[] maxPeaks) {
+        this.minPeaks = minPeaks;
+        this.maxPeaks = maxPeaks;
+    }
+
+    int getBucketCount() {
+        return minPeaks.length;
+    }
+
+    byte[] getMinPeaks() {
+        return minPeaks;
+    }
+
+    byte[] getMaxPeaks() {
+        return maxPeaks;
+    }
+}
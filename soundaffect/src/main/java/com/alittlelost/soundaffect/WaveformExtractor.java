@@ -0,0 +1,155 @@
+package com.alittlelost.soundaffect;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes a track with MediaExtractor/MediaCodec and reduces it to a fixed number of min/max peak buckets.
+ * PCM is consumed one codec output buffer at a time, so memory use does not grow with track length.
+ * Must be called off the main thread, interrupting the calling thread aborts the decode.
+ */
+
+class WaveformExtractor {
+
+    private static final long TIMEOUT_US = 10000;
+
+    private WaveformExtractor() {
+    }
+
+    /**
+     * @param extractor an extractor with its data source already set, released by the caller
+     * @return the peaks, or null if the track has no decodable audio or the decode was interrupted
+     */
+    static Waveform extract(MediaExtractor extractor, int bucketCount) throws IOException {
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = extractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+
+        if (format == null || !format.containsKey(MediaFormat.KEY_DURATION)) {
+            return null;
+        }
+
+        long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (durationUs <= 0) {
+            return null;
+        }
+
+        short[] minPeaks = new short[bucketCount];
+        short[] maxPeaks = new short[bucketCount];
+
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        try {
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            //Deprecated in 21 but the only option on our min SDK
+            @SuppressWarnings("deprecation") ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            @SuppressWarnings("deprecation") ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+            long frameIndex = 0;
+            boolean inputDone = false;
+            boolean outputDone = false;
+
+            while (!outputDone) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    if (info.size > 0) {
+                        ByteBuffer buffer = outputBuffers[outputIndex];
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        ShortBuffer samples = buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+
+                        frameIndex = accumulate(samples, channelCount, sampleRate, durationUs, frameIndex,
+                                minPeaks, maxPeaks);
+                    }
+
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    //noinspection deprecation
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+            }
+        } finally {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) {
+                //Never got started
+            }
+            codec.release();
+        }
+
+        return new Waveform(toBytes(minPeaks), toBytes(maxPeaks));
+    }
+
+    //Folds one buffer of interleaved 16 bit PCM into the buckets, returns the running frame count
+    private static long accumulate(ShortBuffer samples, int channelCount, int sampleRate, long durationUs,
+                                   long frameIndex, short[] minPeaks, short[] maxPeaks) {
+        int bucketCount = minPeaks.length;
+
+        while (samples.remaining() >= channelCount) {
+            long timeUs = frameIndex * 1000000L / sampleRate;
+            int bucket = (int) Math.min(bucketCount - 1, timeUs * bucketCount / durationUs);
+
+            for (int c = 0; c < channelCount; c++) {
+                short sample = samples.get();
+                if (sample < minPeaks[bucket]) {
+                    minPeaks[bucket] = sample;
+                }
+                if (sample > maxPeaks[bucket]) {
+                    maxPeaks[bucket] = sample;
+                }
+            }
+
+            frameIndex++;
+        }
+
+        return frameIndex;
+    }
+
+    private static byte[] toBytes(short[] peaks) {
+        byte[] bytes = new byte[peaks.length];
+        for (int i = 0; i < peaks.length; i++) {
+            bytes[i] = (byte) (peaks[i] >> 8);
+        }
+        return bytes;
+    }
+}
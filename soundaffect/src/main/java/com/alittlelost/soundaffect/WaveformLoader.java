@@ -0,0 +1,247 @@
+package com.alittlelost.soundaffect;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces waveforms for SoundAffect's seek bar on a single background thread.
+ * Peaks are cached in memory and on disk, keyed by source and bucket count, so each track is decoded once.
+ * URL tracks are only decoded from a complete file in the audio cache. One still downloading is decoded when
+ * its download finishes, without holding the thread meanwhile, and one that is neither is reported as failed
+ * rather than fetched a second time.
+ */
+
+class WaveformLoader {
+
+    interface OnWaveformLoadedListener {
+        //Called on the main thread, sourceKey lets the caller drop results for a track it no longer shows
+        void onWaveformLoaded(String sourceKey, Waveform waveform);
+
+        //Called on the main thread when the source could not be decoded, or is not on the device to decode
+        void onWaveformFailed(String sourceKey);
+    }
+
+    private static final String TAG = "WaveformLoader";
+    private static final String DIRECTORY_NAME = "soundaffect-waveforms";
+    private static final int FILE_VERSION = 1;
+    private static final int MEMORY_CACHE_ENTRIES = 32;
+
+    private final Context context;
+    private final AudioCache audioCache;
+    private final File directory;
+    private final ExecutorService executor;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Waveform> memoryCache = new LruCache<>(MEMORY_CACHE_ENTRIES);
+
+    WaveformLoader(Context context, AudioCache audioCache) {
+        this.context = context;
+        this.audioCache = audioCache;
+        this.directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+    }
+
+    static String sourceKeyForUrl(String url) {
+        return "url:" + url;
+    }
+
+    static String sourceKeyForResource(int resourceId) {
+        return "res:" + resourceId;
+    }
+
+    void loadUrl(final String url, int bucketCount, OnWaveformLoadedListener listener) {
+        load(sourceKeyForUrl(url), bucketCount, listener, new SourceOpener() {
+            @Override
+            public boolean isPending(Runnable retry) {
+                return audioCache.get(url) == null && audioCache.whenDownloaded(url, retry);
+            }
+
+            @Override
+            public void open(MediaExtractor extractor) throws IOException {
+                File file = audioCache.get(url);
+                if (file == null) {
+                    throw new FileNotFoundException(url + " is not cached");
+                }
+                extractor.setDataSource(file.getAbsolutePath());
+            }
+        });
+    }
+
+    void loadResource(final int resourceId, int bucketCount, OnWaveformLoadedListener listener) {
+        load(sourceKeyForResource(resourceId), bucketCount, listener, new SourceOpener() {
+            @Override
+            public boolean isPending(Runnable retry) {
+                return false;
+            }
+
+            @Override
+            public void open(MediaExtractor extractor) throws IOException {
+                AssetFileDescriptor afd = context.getResources().openRawResourceFd(resourceId);
+                try {
+                    extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+                } finally {
+                    afd.close();
+                }
+            }
+        });
+    }
+
+    void clearMemoryCache() {
+        memoryCache.evictAll();
+    }
+
+    private interface SourceOpener {
+        //True if the source is still arriving, retry is then run once it has arrived or failed to
+        boolean isPending(Runnable retry);
+
+        void open(MediaExtractor extractor) throws IOException;
+    }
+
+    private void load(final String sourceKey, final int bucketCount, final OnWaveformLoadedListener listener,
+                      final SourceOpener opener) {
+        final String cacheKey = AudioCache.keyFor(sourceKey) + "_" + bucketCount;
+
+        Waveform cached = memoryCache.get(cacheKey);
+        if (cached != null) {
+            listener.onWaveformLoaded(sourceKey, cached);
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Waveform waveform = memoryCache.get(cacheKey);
+                if (waveform == null) {
+                    waveform = readFromDisk(cacheKey, bucketCount);
+                }
+                if (waveform == null) {
+                    final Runnable load = this;
+                    boolean pending = opener.isPending(new Runnable() {
+                        @Override
+                        public void run() {
+                            executor.execute(load);
+                        }
+                    });
+                    if (pending) {
+                        return;
+                    }
+
+                    waveform = decode(opener, bucketCount);
+                    if (waveform != null) {
+                        writeToDisk(cacheKey, waveform);
+                    }
+                }
+                if (waveform == null) {
+                    mainThreadHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onWaveformFailed(sourceKey);
+                        }
+                    });
+                    return;
+                }
+
+                memoryCache.put(cacheKey, waveform);
+                final Waveform result = waveform;
+                mainThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onWaveformLoaded(sourceKey, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private Waveform decode(SourceOpener opener, int bucketCount) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            opener.open(extractor);
+            return WaveformExtractor.extract(extractor, bucketCount);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to decode waveform: " + e);
+            return null;
+        } catch (RuntimeException e) {
+            //MediaExtractor and MediaCodec report unsupported content with runtime exceptions
+            Log.e(TAG, "Failed to decode waveform: " + e);
+            return null;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private Waveform readFromDisk(String cacheKey, int bucketCount) {
+        File file = new File(directory, cacheKey + ".peaks");
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FILE_VERSION || in.readInt() != bucketCount) {
+                return null;
+            }
+
+            byte[] minPeaks = new byte[bucketCount];
+            byte[] maxPeaks = new byte[bucketCount];
+            in.readFully(minPeaks);
+            in.readFully(maxPeaks);
+            return new Waveform(minPeaks, maxPeaks);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read cached waveform: " + e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeToDisk(String cacheKey, Waveform waveform) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(new File(directory, cacheKey + ".peaks")));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(waveform.getBucketCount());
+            out.write(waveform.getMinPeaks());
+            out.write(waveform.getMaxPeaks());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to cache waveform: " + e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
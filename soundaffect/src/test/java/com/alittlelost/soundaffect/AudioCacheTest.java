@@ -0,0 +1,192 @@
+package com.alittlelost.soundaffect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads a track from a loopback HTTP server through the cache while a player reads it.
+ * The server sends the first half, then holds the rest back until the test lets it go, or drops the connection.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class AudioCacheTest {
+
+    private static final int TRACK_BYTES = 300 * 1024;
+    private static final int HELD_BACK_FROM = TRACK_BYTES / 2;
+
+    private final byte[] track = new byte[TRACK_BYTES];
+    private final AtomicInteger requests = new AtomicInteger();
+    private final CountDownLatch sendRest = new CountDownLatch(1);
+    private volatile boolean dropRest = false;
+    private ServerSocket server;
+    private ExecutorService readers;
+    private AudioCache audioCache;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(3).nextBytes(track);
+
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        serve(server.accept());
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        readers = Executors.newSingleThreadExecutor();
+        audioCache = new AudioCache(RuntimeEnvironment.application);
+        url = "http://127.0.0.1:" + server.getLocalPort() + "/track.mp3";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sendRest.countDown();
+        readers.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void playbackReadsThroughTheDownloadAndRepeatsComeFromDisk() throws Exception {
+        CacheDownload download = audioCache.download(url);
+        final CacheDataSource dataSource = new CacheDataSource(download);
+
+        assertEquals(TRACK_BYTES, dataSource.getSize());
+        assertArrayEquals(Arrays.copyOfRange(track, 0, 1000), readFully(dataSource, 0, 1000));
+
+        //The tail is still held back by the server, the read waits for it
+        Future<byte[]> tail = readers.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return readFully(dataSource, TRACK_BYTES - 1000, 1000);
+            }
+        });
+        try {
+            tail.get(200, TimeUnit.MILLISECONDS);
+            fail("Read returned bytes the server had not sent yet");
+        } catch (TimeoutException expected) {
+        }
+
+        sendRest.countDown();
+        assertArrayEquals(Arrays.copyOfRange(track, TRACK_BYTES - 1000, TRACK_BYTES), tail.get(5, TimeUnit.SECONDS));
+        assertEquals(-1, dataSource.readAt(TRACK_BYTES, new byte[1000], 0, 1000));
+        dataSource.close();
+
+        download.awaitFinished();
+        File cached = audioCache.get(url);
+        assertNotNull(cached);
+        assertArrayEquals(track, readFile(cached));
+
+        //Replays are served from disk without going back to the server
+        assertNotNull(audioCache.get(url));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void readPastAFailedDownloadThrows() throws Exception {
+        dropRest = true;
+        CacheDownload download = audioCache.download(url);
+        CacheDataSource dataSource = new CacheDataSource(download);
+
+        assertArrayEquals(Arrays.copyOfRange(track, 0, 1000), readFully(dataSource, 0, 1000));
+        sendRest.countDown();
+
+        try {
+            dataSource.readAt(TRACK_BYTES - 1000, new byte[1000], 0, 1000);
+            fail("Read past the end of a failed download ended the track instead of failing");
+        } catch (IOException expected) {
+        }
+        dataSource.close();
+
+        download.awaitFinished();
+        assertNull(audioCache.get(url));
+    }
+
+    private void serve(Socket socket) throws IOException {
+        requests.incrementAndGet();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String line;
+            do {
+                line = reader.readLine();
+            } while (line != null && !line.isEmpty());
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + TRACK_BYTES + "\r\nConnection: close\r\n\r\n")
+                    .getBytes("US-ASCII"));
+            out.write(track, 0, HELD_BACK_FROM);
+            out.flush();
+
+            if (sendRest.await(10, TimeUnit.SECONDS) && !dropRest) {
+                out.write(track, HELD_BACK_FROM, TRACK_BYTES - HELD_BACK_FROM);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            socket.close();
+        }
+    }
+
+    //readAt may return fewer bytes than asked for
+    private static byte[] readFully(CacheDataSource dataSource, long position, int size) throws IOException {
+        byte[] buffer = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            int read = dataSource.readAt(position + offset, buffer, offset, size - offset);
+            if (read <= 0) {
+                throw new IOException("End of data at " + (position + offset));
+            }
+            offset += read;
+        }
+        return buffer;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.alittlelost.soundaffect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two sessions' MediaManagers sharing one PlayerPool of simulated players, the way MediaService runs them.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class MediaManagerTest {
+
+    private static final String URL = "http://127.0.0.1/track.mp3";
+    private static final String UNCACHED_URL = "http://127.0.0.1/uncached.mp3";
+    private static final int DURATION_MS = 10000;
+
+    private final VirtualClock clock = new VirtualClock();
+    private SimulatedPlayerBackend.Factory playerFactory;
+    private PlayerPool playerPool;
+    private AudioCache audioCache;
+
+    @Before
+    public void setUp() throws IOException {
+        playerFactory = new SimulatedPlayerBackend.Factory(clock);
+        playerFactory.setDefaultDuration(DURATION_MS);
+        playerPool = new PlayerPool(playerFactory);
+        audioCache = new AudioCache(RuntimeEnvironment.application);
+
+        //Already cached, so nothing goes to the network
+        File cacheDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "soundaffect");
+        cacheDirectory.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(cacheDirectory, AudioCache.keyFor(URL) + ".audio"));
+        out.write(new byte[1024]);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        audioCache.shutdown();
+    }
+
+    @Test
+    public void pooledPlayerCallsBackIntoTheSessionReusingIt() {
+        Completions a = new Completions();
+        MediaManager sessionA = newSession("a", a);
+        sessionA.loadUrl(URL);
+        clock.advance(1000);
+        assertTrue(sessionA.isPrepared());
+        sessionA.release();
+        int aStateChanges = a.stateChanges;
+
+        Completions b = new Completions();
+        MediaManager sessionB = newSession("b", b);
+        sessionB.loadUrl(URL);
+        assertTrue("Session B should reuse session A's prepared player", sessionB.isPrepared());
+        assertEquals(1, playerFactory.getPlayersCreated());
+
+        sessionB.play();
+        clock.advance(DURATION_MS + 1000);
+
+        assertEquals(1, b.completed);
+        assertEquals(1, b.stateChanges);
+        assertEquals(0, a.completed);
+        assertEquals(aStateChanges, a.stateChanges);
+    }
+
+    @Test
+    public void pooledNextPlayerCallsBackIntoTheSessionReusingIt() {
+        Completions a = new Completions();
+        MediaManager sessionA = newSession("a", a);
+        sessionA.setNextUrl(URL);
+        clock.advance(1000);
+        sessionA.release();
+        int aStateChanges = a.stateChanges;
+
+        Completions b = new Completions();
+        MediaManager sessionB = newSession("b", b);
+        sessionB.setNextUrl(URL);
+        sessionB.loadUrl(URL);
+        assertTrue(sessionB.isPrepared());
+        assertEquals(1, playerFactory.getPlayersCreated());
+
+        sessionB.play();
+        clock.advance(DURATION_MS + 1000);
+
+        assertEquals(1, b.completed);
+        assertEquals(0, a.completed);
+        assertEquals(aStateChanges, a.stateChanges);
+    }
+
+    //No MediaDataSource to read a download through, the proxy streams and stores the track in one fetch
+    @Test
+    @Config(sdk = 19)
+    public void uncachedTrackIsOnlyFetchedOnceBelowApi23() {
+        MediaManager session = newSession("a", new Completions());
+        session.loadUrl(UNCACHED_URL);
+        clock.advance(1000);
+
+        assertTrue(session.isPrepared());
+        assertFalse("A download was started alongside the player", audioCache.whenDownloaded(UNCACHED_URL,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }));
+    }
+
+    private MediaManager newSession(String sessionId, Completions completions) {
+        MediaManager mediaManager = new MediaManager(RuntimeEnvironment.application, audioCache, playerPool, null,
+                sessionId);
+        mediaManager.setOnTrackChangeListener(completions);
+        mediaManager.setOnStateChangeListener(completions);
+        return mediaManager;
+    }
+
+    private static class Completions implements MediaManager.OnTrackChangeListener,
+            MediaManager.OnStateChangeListener {
+
+        int completed = 0;
+        int stateChanges = 0;
+
+        @Override
+        public void onTrackAdvanced() {
+        }
+
+        @Override
+        public void onTrackCompleted() {
+            completed++;
+        }
+
+        @Override
+        public void onPlayerStateChanged() {
+            stateChanges++;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.alittlelost.soundaffect;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks Mixer output sample for sample against reference buffers worked out by hand:
+ * pass through, summing, clipping, gain ramps, crossfades, underruns, ring wrap around
+ * and rate conversion.
+ */
+
+public class MixerTest {
+
+    private static final int STEREO = 2;
+
+    @Test
+    public void passThrough() {
+        Mixer mixer = new Mixer(STEREO, 4);
+        mixer.add(channel(1, new short[]{100, -100, 200, -200, 32767, -32768, 0, 1}));
+
+        assertArrayEquals(new short[]{100, -100, 200, -200, 32767, -32768, 0, 1}, mix(mixer, 4));
+    }
+
+    @Test
+    public void sum() {
+        Mixer mixer = new Mixer(STEREO, 2);
+        mixer.add(channel(1, new short[]{1000, 1000, 1000, 1000}));
+        mixer.add(channel(0.5f, new short[]{2000, -2000, 4000, -4000}));
+
+        assertArrayEquals(new short[]{2000, 0, 3000, -1000}, mix(mixer, 2));
+    }
+
+    @Test
+    public void clip() {
+        Mixer mixer = new Mixer(STEREO, 1);
+        mixer.add(channel(1, new short[]{30000, -30000}));
+        mixer.add(channel(1, new short[]{30000, -30000}));
+
+        assertArrayEquals(new short[]{32767, -32768}, mix(mixer, 1));
+    }
+
+    @Test
+    public void gainRamp() {
+        Mixer mixer = new Mixer(STEREO, 6);
+        MixerChannel channel = channel(0, constant(10000, 6));
+        channel.rampTo(1, 4, false);
+        mixer.add(channel);
+
+        assertArrayEquals(new short[]{2500, 2500, 5000, 5000, 7500, 7500, 10000, 10000, 10000, 10000, 10000, 10000},
+                mix(mixer, 6));
+    }
+
+    @Test
+    public void crossfade() {
+        Mixer mixer = new Mixer(STEREO, 5);
+        MixerChannel out = channel(1, constant(8000, 8));
+        MixerChannel in = channel(0, constant(4000, 8));
+        out.rampTo(0, 4, true);
+        in.rampTo(1, 4, false);
+        mixer.add(out);
+        mixer.add(in);
+
+        assertArrayEquals(new short[]{7000, 7000, 6000, 6000, 5000, 5000, 4000, 4000, 4000, 4000}, mix(mixer, 5));
+        assertTrue("Faded out channel still playing", out.isFinished());
+        assertArrayEquals(new short[]{4000, 4000}, mix(mixer, 1));
+    }
+
+    @Test
+    public void underrun() {
+        Mixer mixer = new Mixer(STEREO, 4);
+        MixerChannel channel = new MixerChannel(64, 1);
+        channel.ring.write(new short[]{500, 500, 600, 600}, 0, 4);
+        mixer.add(channel);
+
+        //A producer that falls behind leaves silence and keeps its channel
+        assertArrayEquals(new short[]{500, 500, 600, 600, 0, 0, 0, 0}, mix(mixer, 4));
+        assertFalse("Channel dropped before its input ended", channel.isFinished() || mixer.isIdle());
+
+        channel.endInput();
+        assertArrayEquals(new short[]{0, 0}, mix(mixer, 1));
+        assertTrue("Ended channel still in the mix", channel.isFinished() && mixer.isIdle());
+    }
+
+    @Test
+    public void ringWrapAround() {
+        PcmRingBuffer ring = new PcmRingBuffer(6);
+        assertEquals(8, ring.getCapacity());
+
+        short[] read = new short[8];
+        ring.write(new short[]{1, 2, 3, 4, 5, 6}, 0, 6);
+        ring.read(read, 0, 5);
+        assertEquals("Samples written into 7 free", 7, ring.write(new short[]{7, 8, 9, 10, 11, 12, 13, 14}, 0, 8));
+
+        int count = ring.read(read, 0, 8);
+        assertArrayEquals(new short[]{6, 7, 8, 9, 10, 11, 12, 13}, Arrays.copyOf(read, count));
+    }
+
+    @Test(timeout = 30000)
+    public void ringAcrossThreads() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(256);
+        final int total = 1000000;
+        final AtomicReference<Throwable> producerFailure = new AtomicReference<>();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    short[] block = new short[37];
+                    int next = 0;
+                    while (next < total) {
+                        int count = Math.min(block.length, total - next);
+                        for (int i = 0; i < count; i++) {
+                            block[i] = (short) (next + i);
+                        }
+                        int offset = 0;
+                        while (offset < count) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return;
+                            }
+                            int written = ring.write(block, offset, count - offset);
+                            if (written == 0) {
+                                //Full, let the consumer run on a single core
+                                Thread.yield();
+                            }
+                            offset += written;
+                        }
+                        next += count;
+                    }
+                } catch (Throwable t) {
+                    producerFailure.set(t);
+                }
+            }
+        });
+        producer.start();
+
+        short[] block = new short[53];
+        int expected = 0;
+        try {
+            while (expected < total) {
+                int count = ring.read(block, 0, block.length);
+                if (count == 0) {
+                    Thread.yield();
+                }
+                for (int i = 0; i < count; i++, expected++) {
+                    assertEquals("Sample " + expected, (short) expected, block[i]);
+                }
+            }
+        } finally {
+            producer.interrupt();
+            producer.join();
+        }
+        assertNull(producerFailure.get());
+    }
+
+    @Test
+    public void upsampleMono() {
+        PcmConverter converter = new PcmConverter(22050, 1, 44100, STEREO);
+        short[] out = new short[converter.getMaxOutputSamples(3)];
+
+        int count = converter.convert(new short[]{0, 1000, 2000}, 3, out);
+        assertArrayEquals(new short[]{0, 0, 500, 500, 1000, 1000, 1500, 1500, 2000, 2000}, Arrays.copyOf(out, count));
+
+        //Carries on from the last call's final frame, no gap or repeat at the boundary
+        count = converter.convert(new short[]{3000, 4000}, 2, out);
+        assertArrayEquals(new short[]{2500, 2500, 3000, 3000, 3500, 3500, 4000, 4000}, Arrays.copyOf(out, count));
+    }
+
+    private static MixerChannel channel(float gain, short[] samples) {
+        MixerChannel channel = new MixerChannel(samples.length, gain);
+        channel.ring.write(samples, 0, samples.length);
+        channel.endInput();
+        return channel;
+    }
+
+    private static short[] constant(int value, int frames) {
+        short[] samples = new short[frames * STEREO];
+        Arrays.fill(samples, (short) value);
+        return samples;
+    }
+
+    private static short[] mix(Mixer mixer, int frames) {
+        short[] out = new short[frames * STEREO];
+        mixer.mix(out, frames);
+        return out;
+    }
+}
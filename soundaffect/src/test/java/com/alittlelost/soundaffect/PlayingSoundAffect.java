@@ -0,0 +1,155 @@
+package com.alittlelost.soundaffect;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.View;
+import android.view.ViewGroup;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * A 500x200 SoundAffect in an activity, bound to a MediaService on simulated players and playing a cached
+ * track, for tests that drive its frames and touches themselves.
+ * Tests using it run on API 19, Robolectric can't create the service's MediaSession on later ones.
+ */
+
+class PlayingSoundAffect {
+
+    static final int WIDTH = 500;
+    static final int HEIGHT = 200;
+
+    private static final String URL = "http://127.0.0.1/track.mp3";
+    private static final String SESSION_ID = "view-test";
+
+    final VirtualClock clock = new VirtualClock();
+    final MediaService service;
+    final SoundAffect view;
+    private final ServiceController<MediaService> serviceController;
+
+    PlayingSoundAffect() throws IOException {
+        SimulatedPlayerBackend.Factory playerFactory = new SimulatedPlayerBackend.Factory(clock);
+        playerFactory.setDefaultDuration(180000);
+
+        serviceController = Robolectric.buildService(MediaService.class);
+        serviceController.get().playerBackendFactory = playerFactory;
+        service = serviceController.create().get();
+        ShadowApplication.getInstance().setComponentNameAndServiceForBindService(
+                new ComponentName(RuntimeEnvironment.application, MediaService.class),
+                service.onBind(new Intent()));
+
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        view = new SoundAffect(activity, null);
+        activity.setContentView(view, new ViewGroup.LayoutParams(WIDTH, HEIGHT));
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+
+        view.setSessionId(SESSION_ID);
+        view.bindService(new SoundAffect.OnBindAttemptCompleteCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure() {
+                fail("Service did not bind");
+            }
+        });
+        ShadowLooper.idleMainLooper();
+
+        //Already cached, so nothing goes to the network
+        File cacheDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "soundaffect");
+        cacheDirectory.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(cacheDirectory, AudioCache.keyFor(URL) + ".audio"));
+        out.write(new byte[1024]);
+        out.close();
+
+        view.loadUrl(URL);
+        runPlayerThread();
+        clock.advance(1000);
+        runPlayerThread();
+        view.play();
+        runPlayerThread();
+        ShadowLooper.idleMainLooper();
+    }
+
+    void release() {
+        view.unbindService();
+        runPlayerThread();
+        //Stops the player thread, its looper may be gone as soon as this returns
+        serviceController.destroy();
+    }
+
+    boolean isPlaying() {
+        return service.getSession(SESSION_ID).isPlaying();
+    }
+
+    void runPlayerThread() {
+        shadowOf(service.playerExecutor.getLooper()).idle();
+    }
+
+    //Robolectric never reports the window as visible, so the ticker isn't running and frames are driven by hand
+    FrameTicker.Listener getFrameListener() throws Exception {
+        Field field = SoundAffect.class.getDeclaredField("frameListener");
+        field.setAccessible(true);
+        return (FrameTicker.Listener) field.get(view);
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //Robolectric's canvas records every call, which would be counted against the view
+    static class NullCanvas extends Canvas {
+
+        @Override
+        public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+        }
+
+        @Override
+        public void drawRect(Rect rect, Paint paint) {
+        }
+
+        @Override
+        public void drawRect(RectF rect, Paint paint) {
+        }
+
+        @Override
+        public void drawCircle(float cx, float cy, float radius, Paint paint) {
+        }
+
+        @Override
+        public void drawPath(Path path, Paint paint) {
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        }
+
+        @Override
+        public void drawPicture(Picture picture) {
+        }
+    }
+}
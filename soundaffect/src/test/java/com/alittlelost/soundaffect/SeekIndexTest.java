@@ -0,0 +1,157 @@
+package com.alittlelost.soundaffect;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Indexes MP3 files made of bare 44.1 kHz stereo MPEG1 layer III frames, with and without
+ * the tag frame encoders put in front of the audio.
+ */
+
+public class SeekIndexTest {
+
+    private static final int FRAMES = 200;
+    private static final int SAMPLES_PER_FRAME = 1152;
+
+    //Bitrate indexes of 128 and 192 kbps, 417 and 626 bytes a frame at 44.1 kHz
+    private static final int BITRATE_128 = 9;
+    private static final int BITRATE_192 = 11;
+    private static final int FRAME_128 = 417;
+    private static final int FRAME_192 = 626;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void variableBitrateStreamIsIndexedFromItsFirstFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVariableFrames(out);
+
+        SeekIndex index = SeekIndex.build(write(out));
+        assertNotNull(index);
+        assertEquals(0, index.getOffset(0));
+        assertEquals(0, index.getTimeMs(0));
+        assertEquals(FRAMES * SAMPLES_PER_FRAME * 1000L / 44100, index.getDurationMs());
+    }
+
+    @Test
+    public void xingFrameWithoutTableOfContentsIsSkipped() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTagFrame(out, 36, "Xing", 0x01);
+        writeVariableFrames(out);
+
+        SeekIndex index = SeekIndex.build(write(out));
+        assertNotNull(index);
+        assertEquals(FRAME_128, index.getOffset(0));
+        assertEquals(0, index.getTimeMs(0));
+        assertEquals(FRAMES * SAMPLES_PER_FRAME * 1000L / 44100, index.getDurationMs());
+
+        //The second entry is the first frame starting at or after 500 ms of audio, the 21st
+        assertEquals(20 * SAMPLES_PER_FRAME * 1000 / 44100, index.getTimeMs(1));
+        assertEquals(FRAME_128 + offsetOfFrame(20), index.getOffset(1));
+    }
+
+    @Test
+    public void xingTableOfContentsIsLeftToThePlayer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTagFrame(out, 36, "Xing", 0x0f);
+        writeVariableFrames(out);
+
+        assertNull(SeekIndex.build(write(out)));
+    }
+
+    @Test
+    public void vbriTableOfContentsIsLeftToThePlayer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTagFrame(out, 36, "VBRI", 0);
+        writeVariableFrames(out);
+
+        assertNull(SeekIndex.build(write(out)));
+    }
+
+    @Test
+    public void constantBitrateIsNotIndexed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            writeFrame(out, BITRATE_128);
+        }
+
+        assertNull(SeekIndex.build(write(out)));
+    }
+
+    @Test
+    public void adtsIsNotIndexed() throws IOException {
+        //AAC LC at 44.1 kHz stereo, frames of varying length
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            int length = i % 2 == 0 ? 300 : 400;
+            byte[] frame = new byte[length];
+            frame[0] = (byte) 0xff;
+            frame[1] = (byte) 0xf1;
+            frame[2] = (byte) 0x50;
+            frame[3] = (byte) (0x80 | (length >> 11));
+            frame[4] = (byte) (length >> 3);
+            frame[5] = (byte) ((length & 0x07) << 5 | 0x1f);
+            frame[6] = (byte) 0xfc;
+            out.write(frame);
+        }
+
+        assertNull(SeekIndex.build(write(out)));
+    }
+
+    //Frames alternate 128 and 192 kbps in runs of 10
+    private static void writeVariableFrames(ByteArrayOutputStream out) throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            writeFrame(out, (i / 10) % 2 == 0 ? BITRATE_128 : BITRATE_192);
+        }
+    }
+
+    private static long offsetOfFrame(int frame) {
+        long offset = 0;
+        for (int i = 0; i < frame; i++) {
+            offset += (i / 10) % 2 == 0 ? FRAME_128 : FRAME_192;
+        }
+        return offset;
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, int bitrateIndex) throws IOException {
+        byte[] frame = new byte[bitrateIndex == BITRATE_128 ? FRAME_128 : FRAME_192];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xfb;
+        frame[2] = (byte) (bitrateIndex << 4);
+        frame[3] = 0;
+        out.write(frame);
+    }
+
+    //A 128 kbps frame carrying tag at offset, followed by the Xing flags
+    private static void writeTagFrame(ByteArrayOutputStream out, int offset, String tag, int flags) throws IOException {
+        byte[] frame = new byte[FRAME_128];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xfb;
+        frame[2] = (byte) (BITRATE_128 << 4);
+        for (int i = 0; i < tag.length(); i++) {
+            frame[offset + i] = (byte) tag.charAt(i);
+        }
+        frame[offset + 7] = (byte) flags;
+        out.write(frame);
+    }
+
+    private File write(ByteArrayOutputStream out) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            out.writeTo(fileOut);
+        } finally {
+            fileOut.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,169 @@
+package com.alittlelost.soundaffect;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures SoundAffect's per frame and per touch work under Robolectric and fails if either allocates more
+ * than soundaffect-view-baseline.properties says. Times are only compared against it when the
+ * benchmark.compareTimes property is set (-PviewBenchmark), as they depend on the machine running the tests.
+ * Every run prints its numbers in the file's format, paste them over it to re-baseline.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 19)
+public class SoundAffectBenchmarkTest {
+
+    private static final String BASELINE = "soundaffect-view-baseline.properties";
+    private static final long FRAME_MS = 16;
+    private static final int WARM_UP_OPERATIONS = 3000;
+    private static final int ROUNDS = 5;
+    private static final int OPERATIONS_PER_ROUND = 3000;
+
+    private static final boolean COMPARE_TIMES = Boolean.getBoolean("benchmark.compareTimes");
+
+    //Robolectric's shadows make timings noisier than the benchmark module's, only flag a time that tripled
+    private static final double TIME_TOLERANCE = Double.parseDouble(System.getProperty("benchmark.timeTolerance", "2.0"));
+    private static final double ALLOCATION_SLACK_BYTES = 8;
+
+    private PlayingSoundAffect playing;
+    private Properties baseline;
+
+    @Before
+    public void setUp() throws IOException {
+        playing = new PlayingSoundAffect();
+        baseline = new Properties();
+        InputStream in = getClass().getClassLoader().getResourceAsStream(BASELINE);
+        assertNotNull("Missing " + BASELINE, in);
+        try {
+            baseline.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        playing.release();
+    }
+
+    @Test
+    public void frame() throws Exception {
+        assertTrue(playing.isPlaying());
+        final FrameTicker.Listener frameListener = playing.getFrameListener();
+        final Canvas canvas = new PlayingSoundAffect.NullCanvas();
+
+        //The ticker callback and the draw it invalidates, the track moving on a frame each time
+        check("viewFrame", new Runnable() {
+            private long frameTimeNanos = 0;
+
+            @Override
+            public void run() {
+                SystemClock.sleep(FRAME_MS);
+                frameTimeNanos += FRAME_MS * 1000000;
+                frameListener.onFrame(frameTimeNanos);
+                playing.view.onDraw(canvas);
+            }
+        });
+    }
+
+    @Test
+    public void touchMove() throws Exception {
+        Rect notchTouchRect = getNotchTouchRect();
+        long downTime = SystemClock.uptimeMillis();
+        MotionEvent down = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN,
+                notchTouchRect.exactCenterX(), notchTouchRect.exactCenterY(), 0);
+        final MotionEvent move = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_MOVE,
+                notchTouchRect.exactCenterX(), notchTouchRect.exactCenterY(), 0);
+        MotionEvent up = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_UP,
+                notchTouchRect.exactCenterX(), notchTouchRect.exactCenterY(), 0);
+
+        //Scrubbing asks the ticker for frames, which an unpaused main looper would run inline without end
+        ShadowLooper.pauseMainLooper();
+        playing.view.onTouchEvent(down);
+        //A finger sweeping back and forth across the whole bar, a little past each end
+        check("viewTouchMove", new Runnable() {
+            private float x = 0;
+            private float step = 3.7f;
+
+            @Override
+            public void run() {
+                if (x < -20 || x > PlayingSoundAffect.WIDTH + 20) {
+                    step = -step;
+                }
+                x += step;
+                move.setLocation(x, move.getY());
+                playing.view.onTouchEvent(move);
+            }
+        });
+        assertTrue("Touch down missed the notch", isSeeking());
+        playing.view.onTouchEvent(up);
+
+        down.recycle();
+        move.recycle();
+        up.recycle();
+    }
+
+    //Fastest and least allocating of several rounds, as in the benchmark module
+    private void check(String name, Runnable operation) {
+        for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+            operation.run();
+        }
+
+        double nanos = Double.MAX_VALUE;
+        double bytes = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocatedBefore = PlayingSoundAffect.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+                operation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = PlayingSoundAffect.allocatedBytes() - allocatedBefore;
+
+            nanos = Math.min(nanos, (double) elapsed / OPERATIONS_PER_ROUND);
+            bytes = Math.min(bytes, (double) allocated / OPERATIONS_PER_ROUND);
+        }
+
+        System.out.println(String.format("%s.nsPerOp=%.1f", name, nanos));
+        System.out.println(String.format("%s.bytesPerOp=%.1f", name, bytes));
+
+        double baselineNanos = Double.parseDouble(baseline.getProperty(name + ".nsPerOp"));
+        double baselineBytes = Double.parseDouble(baseline.getProperty(name + ".bytesPerOp"));
+        if (COMPARE_TIMES) {
+            assertTrue(String.format("%s took %.1f ns/op against a baseline of %.1f", name, nanos, baselineNanos),
+                    nanos <= baselineNanos * (1 + TIME_TOLERANCE));
+        }
+        assertTrue(String.format("%s allocated %.1f bytes/op against a baseline of %.1f", name, bytes, baselineBytes),
+                bytes <= baselineBytes + ALLOCATION_SLACK_BYTES);
+    }
+
+    private boolean isSeeking() throws Exception {
+        Field field = SoundAffect.class.getDeclaredField("isSeeking");
+        field.setAccessible(true);
+        return field.getBoolean(playing.view);
+    }
+
+    private Rect getNotchTouchRect() throws Exception {
+        Field field = SoundAffect.class.getDeclaredField("notchTouchRect");
+        field.setAccessible(true);
+        return new Rect((Rect) field.get(playing.view));
+    }
+}
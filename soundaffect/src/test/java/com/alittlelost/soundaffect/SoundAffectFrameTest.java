@@ -0,0 +1,82 @@
+package com.alittlelost.soundaffect;
+
+import android.graphics.Canvas;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays a simulated track in a SoundAffect and checks that a frame, the ticker callback plus the draw
+ * it triggers, allocates nothing once the view is warmed up.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 19)
+public class SoundAffectFrameTest {
+
+    private static final long FRAME_MS = 16;
+
+    private PlayingSoundAffect playing;
+
+    @Before
+    public void setUp() throws IOException {
+        playing = new PlayingSoundAffect();
+    }
+
+    @After
+    public void tearDown() {
+        playing.release();
+    }
+
+    @Test
+    public void frameAllocatesNothing() throws Exception {
+        assertTrue(playing.isPlaying());
+
+        FrameTicker.Listener frameListener = playing.getFrameListener();
+        SoundAffect view = playing.view;
+        Canvas canvas = new PlayingSoundAffect.NullCanvas();
+        long frameTimeNanos = 0;
+
+        //First frames build the static layer, labels and dirty rects
+        for (int i = 0; i < 120; i++) {
+            SystemClock.sleep(FRAME_MS);
+            frameTimeNanos += FRAME_MS * 1000000;
+            frameListener.onFrame(frameTimeNanos);
+            view.onDraw(canvas);
+        }
+
+        long overhead = measurementOverhead();
+        long allocated = 0;
+        //Long enough for the current time label to roll over a few seconds
+        for (int i = 0; i < 300; i++) {
+            SystemClock.sleep(FRAME_MS);
+            frameTimeNanos += FRAME_MS * 1000000;
+
+            long before = PlayingSoundAffect.allocatedBytes();
+            frameListener.onFrame(frameTimeNanos);
+            view.onDraw(canvas);
+            allocated += PlayingSoundAffect.allocatedBytes() - before - overhead;
+        }
+
+        assertEquals("Bytes allocated over 300 frames", 0, allocated);
+    }
+
+    //Asking for the count allocates a little itself
+    private static long measurementOverhead() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long before = PlayingSoundAffect.allocatedBytes();
+            overhead = Math.min(overhead, PlayingSoundAffect.allocatedBytes() - before);
+        }
+        return overhead;
+    }
+}
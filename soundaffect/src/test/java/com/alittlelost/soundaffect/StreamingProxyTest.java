@@ -0,0 +1,187 @@
+package com.alittlelost.soundaffect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams a track through the proxy from a loopback origin that drops every response after 150 KB,
+ * the way a flaky mobile connection does.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class StreamingProxyTest {
+
+    private static final int TRACK_BYTES = 600 * 1024 + 3;
+    private static final int DROP_AFTER_BYTES = 150 * 1024;
+
+    private final byte[] track = new byte[TRACK_BYTES];
+
+    //Start offset of every request the origin answered, 0 for one without a range
+    private final List<Long> requestOffsets = Collections.synchronizedList(new ArrayList<Long>());
+    private volatile boolean originUp = true;
+    private ServerSocket origin;
+    private File storeDirectory;
+    private StreamingProxy proxy;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(5).nextBytes(track);
+
+        origin = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread originThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = origin.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }).start();
+                }
+            }
+        });
+        originThread.setDaemon(true);
+        originThread.start();
+
+        storeDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "proxy-test-chunks");
+        proxy = startProxy();
+        url = "http://127.0.0.1:" + origin.getLocalPort() + "/track.mp3";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.stop();
+        origin.close();
+    }
+
+    @Test
+    public void streamResumesFromWhereEachDropLeftOff() throws IOException {
+        assertArrayEquals(track, get(proxy.getProxyUrl(url), -1, -1));
+
+        //After the length probe, every resume asks for the byte the last response was cut off at
+        List<Long> expected = new ArrayList<>();
+        expected.add(0L);
+        for (long offset = 0; offset < TRACK_BYTES; offset += DROP_AFTER_BYTES) {
+            expected.add(offset);
+        }
+        assertEquals(expected, requestOffsets);
+    }
+
+    @Test
+    public void rangesAreServedFromTheStoreOnceFetched() throws IOException {
+        String proxyUrl = proxy.getProxyUrl(url);
+        assertArrayEquals(Arrays.copyOfRange(track, 300000, 400001), get(proxyUrl, 300000, 400000));
+        assertArrayEquals(track, get(proxyUrl, 0, -1));
+
+        //A new proxy over the same store, with the origin gone
+        proxy.stop();
+        originUp = false;
+        proxy = startProxy();
+        proxyUrl = proxy.getProxyUrl(url);
+
+        assertArrayEquals(Arrays.copyOfRange(track, TRACK_BYTES - 1000, TRACK_BYTES),
+                get(proxyUrl, TRACK_BYTES - 1000, -1));
+        assertArrayEquals(Arrays.copyOfRange(track, 123456, 234568), get(proxyUrl, 123456, 234567));
+        assertArrayEquals(track, get(proxyUrl, -1, -1));
+    }
+
+    private StreamingProxy startProxy() throws IOException {
+        StreamingProxy started = new StreamingProxy(new ChunkStore(storeDirectory));
+        started.start();
+        return started;
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            long start = 0;
+            long end = TRACK_BYTES - 1;
+            boolean range = false;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("range: bytes=")) {
+                    String[] bounds = line.substring("range: bytes=".length()).trim().split("-", -1);
+                    start = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                    range = true;
+                }
+            }
+            if (!originUp) {
+                return;
+            }
+            requestOffsets.add(start);
+
+            OutputStream out = socket.getOutputStream();
+            out.write(((range ? "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + end + "/"
+                    + TRACK_BYTES + "\r\n" : "HTTP/1.1 200 OK\r\n")
+                    + "Content-Length: " + (end - start + 1) + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.write(track, (int) start, (int) Math.min(end - start + 1, DROP_AFTER_BYTES));
+            out.flush();
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    //start -1 for a plain request, end -1 for an open ended range
+    private static byte[] get(String url, long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (start >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+        }
+
+        InputStream in = connection.getInputStream();
+        try {
+            assertEquals(start >= 0 ? 206 : 200, connection.getResponseCode());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+    }
+}